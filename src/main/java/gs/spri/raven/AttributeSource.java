@@ -0,0 +1,98 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up the Attributes of principals in a directory service or other
+ * store, many at a time. An Enricher calls it with every principal whose
+ * lookup has been requested since its previous call, so one backend call
+ * serves many concurrent requests. Implementations must be thread-safe, but
+ * an Enricher never makes two calls to the same source at once.
+ */
+public abstract class AttributeSource {
+
+    /**
+     * Returns the Attributes of each of 'principals' that the source knows,
+     * keyed by principal. Principals left out are taken to have no
+     * attributes.
+     *
+     * @throws IOException
+     *             if the source cannot be reached. Every lookup in the batch
+     *             fails, and nothing is cached.
+     */
+    public abstract Map<String, Attributes> lookup(
+	    Collection<String> principals) throws IOException;
+
+    /**
+     * An AttributeSource backed by a map in memory, standing in for a
+     * directory service in tests and demonstrations. It counts its calls, so
+     * that batching and caching can be observed.
+     */
+    public static final class InMemory extends AttributeSource {
+	private final ConcurrentHashMap<String, Attributes> attributes =
+		new ConcurrentHashMap<String, Attributes>();
+	private final AtomicInteger calls = new AtomicInteger();
+	private final AtomicInteger principals = new AtomicInteger();
+
+	/** Sets the values of the attribute 'name' of 'principal'. */
+	public void put(String principal, String name, List<String> values) {
+	    final Attributes old = this.attributes.get(principal);
+	    final Map<String, List<String>> copy =
+		    new HashMap<String, List<String>>();
+	    if (old != null)
+		for (String n : old.getNames())
+		    copy.put(n, old.getAll(n));
+	    copy.put(name, values);
+	    this.attributes.put(principal, new Attributes(principal, copy));
+	}
+
+	public Map<String, Attributes> lookup(Collection<String> principals) {
+	    this.calls.incrementAndGet();
+	    this.principals.addAndGet(principals.size());
+	    final Map<String, Attributes> ans =
+		    new HashMap<String, Attributes>();
+	    for (String p : principals) {
+		final Attributes a = this.attributes.get(p);
+		if (a != null)
+		    ans.put(p, a);
+	    }
+	    return ans;
+	}
+
+	/** Returns the number of calls made to 'lookup()'. */
+	public int getCalls() {
+	    return this.calls.get();
+	}
+
+	/** Returns the total number of principals passed to 'lookup()'. */
+	public int getPrincipals() {
+	    return this.principals.get();
+	}
+    }
+}
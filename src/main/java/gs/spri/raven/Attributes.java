@@ -0,0 +1,91 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of a principal found by an AttributeSource, for example
+ * group memberships, each a name with a list of values. Immutable.
+ */
+public final class Attributes {
+
+    /** Attributes with no values, for principals the source does not know. */
+    public static Attributes none(String principal) {
+	return new Attributes(principal,
+		Collections.<String, List<String>> emptyMap());
+    }
+
+    /**
+     * Constructs Attributes for 'principal' holding a copy of 'values'.
+     */
+    public Attributes(String principal, Map<String, List<String>> values) {
+	final Map<String, List<String>> copy =
+		new HashMap<String, List<String>>(
+			(int) (values.size() / 0.75f) + 1);
+	for (Map.Entry<String, List<String>> e : values.entrySet())
+	    copy.put(e.getKey(), Collections
+		    .unmodifiableList(new ArrayList<String>(e.getValue())));
+	this.principal = principal;
+	this.values = Collections.unmodifiableMap(copy);
+    }
+
+    private final String principal;
+
+    private final Map<String, List<String>> values;
+
+    /** Returns the principal these attributes belong to. */
+    public String getPrincipal() {
+	return this.principal;
+    }
+
+    /** Returns the names of the attributes present. */
+    public Set<String> getNames() {
+	return this.values.keySet();
+    }
+
+    /**
+     * Returns every value of the attribute 'name', or an empty list if it is
+     * absent.
+     */
+    public List<String> getAll(String name) {
+	final List<String> ans = this.values.get(name);
+	return ans == null ? Collections.<String> emptyList() : ans;
+    }
+
+    /**
+     * Returns the first value of the attribute 'name', or 'null' if it is
+     * absent.
+     */
+    public String get(String name) {
+	final List<String> ans = this.values.get(name);
+	return ans == null || ans.isEmpty() ? null : ans.get(0);
+    }
+
+    public String toString() {
+	return this.principal + this.values;
+    }
+}
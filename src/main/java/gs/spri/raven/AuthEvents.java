@@ -0,0 +1,108 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+/**
+ * Emits JDK Flight Recorder events for each step of the authentication
+ * lifecycle, so that authentication latency can be correlated with GC and
+ * lock contention in an ordinary recording. Each event records its duration
+ * and, where known, the kid and status of the Token and the reason for
+ * failure. The events are named "gs.spri.raven.Request", "...Intercept",
+ * "...Handle", "...Parse" and "...Verify", in the category "Raven".
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.PARSE);
+ * ...
+ * span.end(kid, status, reason);
+ * </pre>
+ *
+ * If the JVM has no Flight Recorder, no recording has been started, or the
+ * event is not enabled in any running recording, 'begin()' returns a shared
+ * Span that does nothing, so the cost is one check per step.
+ */
+public final class AuthEvents {
+
+    /** The steps of the authentication lifecycle that are recorded. */
+    public enum Kind {
+	/** A request handled by 'RavenServlet'. */
+	REQUEST,
+	/** 'RavenSession.receiveResponse()'. */
+	INTERCEPT,
+	/** 'RavenSession.authenticate()' or 'authenticateAsync()'. */
+	HANDLE,
+	/** 'Authenticator.parseToken()'. */
+	PARSE,
+	/** The signature check made by 'Authenticator'. */
+	VERIFY
+    }
+
+    /** A step in progress. */
+    public interface Span {
+	/**
+	 * Ends the step, recording 'kid' and 'status' of the Token involved
+	 * (or 'null' and 0 if there is none), and the reason it failed (or
+	 * 'null' if it succeeded).
+	 */
+	void end(String kid, int status, String reason);
+    }
+
+    private AuthEvents() {
+    }
+
+    /** Returns a Span for a step of type 'kind' that starts now. */
+    public static Span begin(Kind kind) {
+	return SOURCE == null ? NONE : SOURCE.begin(kind);
+    }
+
+    /** The Span returned when nothing is being recorded. */
+    static final Span NONE = new Span() {
+	public void end(String kid, int status, String reason) {
+	    // Do nothing!
+	}
+    };
+
+    /** Creates Spans that are recorded by the Flight Recorder. */
+    abstract static class Source {
+	abstract Span begin(Kind kind);
+    }
+
+    /** 'null' if this JVM has no Flight Recorder. */
+    private static final Source SOURCE = loadSource();
+
+    /**
+     * Returns a JfrEvents if this JVM has the Flight Recorder API, otherwise
+     * 'null'. JfrEvents is loaded by name so that nothing else refers to the
+     * API.
+     */
+    private static Source loadSource() {
+	try {
+	    Class.forName("jdk.jfr.Event");
+	    return (Source) Class.forName("gs.spri.raven.JfrEvents")
+		    .getDeclaredConstructor().newInstance();
+	} catch (Exception xoov) {
+	    return null;
+	} catch (LinkageError xoov) {
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,111 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Maps the authentication types known to the library onto bits, so that sets
+ * of them can be compared as a bitmask. Types not listed here map to 0 and
+ * must be compared as strings.
+ * <p>
+ * The index of a known type is also used as a compact code for it, and
+ * 'OTHER_BIT' stands for every unknown type where information may be lost.
+ */
+abstract class AuthTypes {
+
+    /**
+     * The authentication types defined by the WAA2WLS protocol. The bit for
+     * 'KNOWN[i]' is '1L << i'.
+     */
+    private static final String[] KNOWN = { "pwd" };
+
+    /** The code of the empty string, i.e. no authentication type. */
+    static final byte NO_CODE = -1;
+
+    /** The code of every type not in 'KNOWN'. */
+    static final byte OTHER_CODE = -2;
+
+    /** The name reported for types not in 'KNOWN'. */
+    static final String OTHER_NAME = "other";
+
+    /** The bit standing for every type not in 'KNOWN'. */
+    static final long OTHER_BIT = 1L << 63;
+
+    /** Returns the code for 'type'. */
+    static byte code(String type) {
+	if ("".equals(type))
+	    return NO_CODE;
+	for (int i = 0; i < KNOWN.length; i++)
+	    if (KNOWN[i].equals(type))
+		return (byte) i;
+	return OTHER_CODE;
+    }
+
+    /** Returns the type with code 'code'. */
+    static String name(byte code) {
+	if (code == NO_CODE)
+	    return "";
+	if (code == OTHER_CODE)
+	    return OTHER_NAME;
+	return KNOWN[code];
+    }
+
+    /**
+     * Returns the types in 'mask', including OTHER_NAME if 'OTHER_BIT' is
+     * set.
+     */
+    static Set<String> names(long mask) {
+	final Set<String> ans = new HashSet<String>();
+	for (int i = 0; i < KNOWN.length; i++)
+	    if ((mask & (1L << i)) != 0L)
+		ans.add(KNOWN[i]);
+	if ((mask & OTHER_BIT) != 0L)
+	    ans.add(OTHER_NAME);
+	return ans;
+    }
+
+    /** Returns the bit for 'type', or 0 if 'type' is not a known type. */
+    static long bit(String type) {
+	for (int i = 0; i < KNOWN.length; i++)
+	    if (KNOWN[i].equals(type))
+		return 1L << i;
+	return 0L;
+    }
+
+    /** Returns the union of the bits of 'types'. */
+    static long mask(Collection<String> types) {
+	long ans = 0L;
+	for (String s : types)
+	    ans |= bit(s);
+	return ans;
+    }
+
+    /** Returns 'true' if every element of 'types' is a known type. */
+    static boolean allKnown(Collection<String> types) {
+	for (String s : types)
+	    if (bit(s) == 0L)
+		return false;
+	return true;
+    }
+}
@@ -26,14 +26,24 @@ import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.Certificate;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class to validate Token objects in the context of a Request. Configured with
- * a key store and key prefix.
+ * a key store and key prefix, and optionally with extra ValidationStages.
+ * <p>
+ * Validation runs as a pipeline compiled once per Request by 'compile()'. The
+ * built-in checks and any extra stages run in order of their
+ * ValidationStage.Cost, and the RSA signature is always verified last.
  */
 public final class Authenticator {
 
@@ -51,9 +61,95 @@ public final class Authenticator {
     private final String keyPrefix;
 
     /**
-     * The key store to use.
+     * The certificates to use.
      */
-    private final KeyStore keys;
+    private final KeySet keys;
+
+    /**
+     * The source of the current time.
+     */
+    private final Clock clock;
+
+    /**
+     * How long, in milliseconds, unknown kids and rejected responses are
+     * remembered.
+     */
+    private static final long NEGATIVE_CACHE_TTL = 60000l;
+
+    /**
+     * The largest number of unknown kids and of rejected responses remembered.
+     */
+    private static final int NEGATIVE_CACHE_SIZE = 1024;
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    private static final RavenException NO_REQUEST = RavenException
+	    .shared("No request specified!");
+    private static final RavenException NO_TOKEN = RavenException
+	    .shared("No token specified!");
+    private static final RavenException NO_PRINCIPAL = RavenException
+	    .shared("Principal required but missing");
+    private static final RavenException NO_KID = RavenException
+	    .shared("kid is missing");
+    private static final RavenException NO_SIGNATURE = RavenException
+	    .shared("Signature is missing");
+    private static final RavenException AUTH_XOR_SSO = RavenException
+	    .shared("Exactly one of SSO or Auth must be set");
+    private static final RavenException NO_AUTH = RavenException
+	    .shared("Auth is missing");
+    private static final RavenException BAD_AUTH = RavenException
+	    .shared("Auth method is unacceptable");
+    private static final RavenException NO_SSO = RavenException
+	    .shared("SSO is missing");
+    private static final RavenException BAD_SSO = RavenException
+	    .shared("SSO method is unacceptable");
+    private static final RavenException FUTURE_ISSUE = RavenException
+	    .shared("Response time is in the future");
+    private static final RavenException BAD_VER = RavenException
+	    .shared("Incorrect protocol version");
+    private static final RavenException BAD_URL = RavenException
+	    .shared("Non-matching URL");
+    private static final RavenException BAD_PARAMS = RavenException
+	    .shared("Params do not match");
+    private static final RavenException BAD_SIGNATURE = RavenException
+	    .shared("Signature does not match plaintext");
+
+    /**
+     * Kids recently found to have no certificate in 'keys', mapped to the
+     * resulting error message.
+     */
+    private final NegativeCache<String> unknownKids;
+
+    /**
+     * Digests of responses recently rejected by 'parseToken()', mapped to the
+     * reason for rejection.
+     */
+    private final NegativeCache<NegativeCache.Digest> rejectedResponses;
+
+    /**
+     * Digests of the kid, plaintext and signature of Tokens whose signature
+     * recently failed to verify, mapped to the reason for rejection. Only
+     * failures which depend on the Token alone are remembered, so that a
+     * replayed response cannot cause a genuine one to be refused.
+     */
+    private final NegativeCache<NegativeCache.Digest> badSignatures;
+
+    /**
+     * The provider that the JCA chose for each certificate's key, so that
+     * later checks need not search the installed providers again. The choice
+     * is made with the key, so keys that only a FIPS or PKCS#11 provider
+     * accepts still go to it.
+     */
+    private final ConcurrentHashMap<Certificate, Provider> providers;
+
+    /**
+     * Application-defined checks, sorted by cost. Never modified.
+     */
+    private final ValidationStage[] stages;
+
+    /**
+     * The largest responses accepted by 'parseToken()'.
+     */
+    private final ResponseLimits limits;
 
     /**
      * Create a reusable authenticator configured with the given key-store and
@@ -66,8 +162,155 @@ public final class Authenticator {
      *            the prefix for keys in the store.
      */
     public Authenticator(KeyStore keys, String keyPrefix) {
+	this(keys, keyPrefix, Clock.SYSTEM);
+    }
+
+    /**
+     * Create a reusable authenticator configured with the given key-store and
+     * key prefix, which reads the current time from 'clock'.
+     * 
+     * @param keys
+     *            the key store from which certificates can be extracted to
+     *            verify tokens.
+     * @param keyPrefix
+     *            the prefix for keys in the store.
+     * @param clock
+     *            the Clock used to check that tokens were not issued in the
+     *            future.
+     */
+    public Authenticator(KeyStore keys, String keyPrefix, Clock clock) {
+	this(KeySet.of(keys), keyPrefix, clock);
+    }
+
+    /**
+     * Create a reusable authenticator that checks signatures with the
+     * certificates in 'keys', for example those shared through KeyRegistry,
+     * and reads the current time from 'clock'.
+     * 
+     * @param keys
+     *            the certificates with which to verify tokens.
+     * @param keyPrefix
+     *            the prefix for keys in the set.
+     * @param clock
+     *            the Clock used to check that tokens were not issued in the
+     *            future.
+     */
+    public Authenticator(KeySet keys, String keyPrefix, Clock clock) {
 	this.keys = keys;
 	this.keyPrefix = keyPrefix;
+	this.clock = clock;
+	this.unknownKids = new NegativeCache<String>(NEGATIVE_CACHE_SIZE,
+		NEGATIVE_CACHE_TTL, clock);
+	this.rejectedResponses = new NegativeCache<NegativeCache.Digest>(
+		NEGATIVE_CACHE_SIZE, NEGATIVE_CACHE_TTL, clock);
+	this.badSignatures = new NegativeCache<NegativeCache.Digest>(
+		NEGATIVE_CACHE_SIZE, NEGATIVE_CACHE_TTL, clock);
+	this.providers = new ConcurrentHashMap<Certificate, Provider>();
+	this.stages = new ValidationStage[0];
+	this.limits = ResponseLimits.DEFAULT;
+    }
+
+    /**
+     * Copies 'base', replacing its extra stages with 'stages' and its limits
+     * with 'limits'.
+     */
+    private Authenticator(Authenticator base, ValidationStage[] stages,
+	    ResponseLimits limits) {
+	this.keys = base.keys;
+	this.keyPrefix = base.keyPrefix;
+	this.clock = base.clock;
+	this.unknownKids = base.unknownKids;
+	this.rejectedResponses = base.rejectedResponses;
+	this.badSignatures = base.badSignatures;
+	this.providers = base.providers;
+	this.stages = stages;
+	this.limits = limits;
+    }
+
+    /**
+     * Returns an Authenticator which is the same as this one but also applies
+     * 'stage' to every Token. The new stage runs after every built-in check
+     * and earlier stage in its own Cost tier or a cheaper one, and before the
+     * signature is verified. This Authenticator is unchanged.
+     */
+    public Authenticator withStage(ValidationStage stage) {
+	final ValidationStage[] ans = new ValidationStage[this.stages.length + 1];
+	int i = 0;
+	while (i < this.stages.length
+		&& this.stages[i].getCost().compareTo(stage.getCost()) <= 0) {
+	    ans[i] = this.stages[i];
+	    i++;
+	}
+	ans[i] = stage;
+	System.arraycopy(this.stages, i, ans, i + 1, this.stages.length - i);
+	return new Authenticator(this, ans, this.limits);
+    }
+
+    /**
+     * Returns an Authenticator which is the same as this one but refuses
+     * responses that exceed 'limits'. By default, 'ResponseLimits.DEFAULT'
+     * apply. This Authenticator is unchanged.
+     */
+    public Authenticator withLimits(ResponseLimits limits) {
+	return new Authenticator(this, this.stages, limits);
+    }
+
+    /**
+     * Returns the limits on the responses this Authenticator accepts.
+     */
+    public ResponseLimits getLimits() {
+	return this.limits;
+    }
+
+    /**
+     * Returns the Clock this authenticator reads the current time from.
+     */
+    public Clock getClock() {
+	return this.clock;
+    }
+
+    /**
+     * Parses an Encoded Response String into a Token, as 'new Token(ers,
+     * getClock(), getLimits())' does. A response that this Authenticator has
+     * recently failed to parse is refused again straight away.
+     * 
+     * @throws RavenException
+     *             if 'ers' does not have the correct format, exceeds the
+     *             limits, or recently failed to parse.
+     */
+    public Token parseToken(String ers) throws RavenException {
+	final long started = SlowAuthLog.start();
+	try {
+	    return this.parse(ers);
+	} finally {
+	    SlowAuthLog.record(SlowAuthLog.Phase.PARSE, started);
+	}
+    }
+
+    /** The work of 'parseToken()'. */
+    private Token parse(String ers) throws RavenException {
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.PARSE);
+	// Refuse an oversized response before even hashing it.
+	if (ers.length() > this.limits.getMaxResponseLength()) {
+	    span.end(null, 0, ResponseLimits.RESPONSE_TOO_LONG.getMessage());
+	    throw ResponseLimits.RESPONSE_TOO_LONG.reuse();
+	}
+	final NegativeCache.Digest key = NegativeCache.digest(ers);
+	final String reason = this.rejectedResponses.get(key);
+	if (reason != null) {
+	    span.end(null, 0, reason);
+	    throw RavenException.expected(reason);
+	}
+	final Token t;
+	try {
+	    t = new Token(ers, this.clock, this.limits);
+	} catch (RavenException xoov) {
+	    this.rejectedResponses.put(key, xoov.getMessage());
+	    span.end(null, 0, xoov.getMessage());
+	    throw xoov;
+	}
+	span.end(t.kid, t.status, null);
+	return t;
     }
 
     /**
@@ -94,81 +337,277 @@ public final class Authenticator {
      * Validates a Token and Request object, using the configured KeyStore to
      * do cryptographic verification of the Token and checking against the
      * Request object to ensure that the Token is one that matches the Request.
+     * <p>
+     * This compiles 'r' afresh. Callers that validate several Tokens against
+     * the same Request should use 'compile()' once instead.
      * 
      * @throws RavenException
      *             if any validation failures occur.
      */
     public final void validateTokenAgainstRequest(Request r, Token t)
 	    throws RavenException {
-
 	if (r == null)
-	    throw new RavenException("No request specified!");
-	if (t == null)
-	    throw new RavenException("No token specified!");
-
-	// Check that an acceptable combination of parameters is present.
-	if (!r.ver.equals(t.ver))
-	    throw new RavenException("Incorrect protocol version");
-
-	// Check that the status was 200 OK.
-	if (t.status != HTTP_OK)
-	    throw new RavenAuthenticationException(t.msg, t.status);
-
-	// Check that the issue date is not in the future.
-	final long now = System.currentTimeMillis();
-	if (t.getIssue().getTime() > now + LEGAL_CLOCK_SKEW)
-	    throw new RavenException("Response time is in the future");
-
-	// Check URL is one we expected.
-	if (!r.url.equals(t.url))
-	    throw new RavenException("Non-matching URL");
-
-	// Check that principal exists.
-	if ("".equals(t.principal))
-	    throw new RavenException("Principal required but missing");
-
-	// Check that auth or sso exist and are acceptable.
-	if (!"".equals(t.auth) ^ t.sso.size() == 0)
-	    throw new RavenException("Exactly one of SSO or Auth must be set");
-	if (r.iact == Boolean.TRUE) {
-	    if ("".equals(t.auth))
-		throw new RavenException("Auth is missing");
-	    if (r.aauth != null && !r.aauth.contains(t.auth))
-		throw new RavenException("Auth method is unacceptable");
-	} else if (r.iact == Boolean.FALSE) {
-	    if (t.sso.size() == 0)
-		throw new RavenException("SSO is missing");
-	    boolean isOkay = r.aauth == null;
-	    for (Iterator<String> it = t.sso.iterator(); !isOkay
-		    && it.hasNext();) {
-		final String s = (String) it.next();
-		isOkay |= r.aauth.contains(s);
+	    throw NO_REQUEST.reuse();
+	this.compile(r).validate(t);
+    }
+
+    /**
+     * Compiles the validation pipeline for Tokens received in response to
+     * 'r'. The fields of 'r' are read now, so later changes to 'r' are not
+     * seen by the result.
+     */
+    public Validator compile(Request r) {
+	return new Validator(r);
+    }
+
+    /**
+     * The validation pipeline for one Request. Immutable and thread-safe.
+     */
+    public final class Validator {
+
+	private Validator(Request r) {
+	    this.request = r;
+	    this.ver = r.ver;
+	    this.url = r.url;
+	    this.params = r.params;
+	    this.iact = r.iact;
+	    if (r.aauth == null) {
+		this.anyAuth = true;
+		this.aauthMask = 0L;
+		this.aauth = null;
+	    } else {
+		this.anyAuth = false;
+		this.aauthMask = AuthTypes.mask(r.aauth);
+		this.aauth = AuthTypes.allKnown(r.aauth) ? null
+			: new HashSet<String>(r.aauth);
+	    }
+	    final List<ValidationStage> rest = new ArrayList<ValidationStage>(
+		    Arrays.asList(stages));
+	    this.trivial = take(rest, ValidationStage.Cost.TRIVIAL);
+	    this.linear = take(rest, ValidationStage.Cost.LINEAR);
+	    this.lookup = take(rest, ValidationStage.Cost.LOOKUP);
+	    this.remote = rest.toArray(new ValidationStage[rest.size()]);
+	}
+
+	/** The Request this pipeline was compiled from. */
+	public Request getRequest() {
+	    return this.request;
+	}
+
+	/**
+	 * Validates 't' as a response to 'getRequest()'.
+	 * 
+	 * @throws RavenException
+	 *             if any validation failures occur.
+	 */
+	public void validate(Token t) throws RavenException {
+	    if (t == null)
+		throw NO_TOKEN.reuse();
+	    this.check(t);
+	}
+
+	private void check(Token t) throws RavenException {
+	    // Constant-time checks.
+
+	    // Check that an acceptable combination of parameters is present.
+	    if (!this.ver.equals(t.ver))
+		throw BAD_VER.reuse();
+
+	    // Check that the status was 200 OK.
+	    if (t.status != HTTP_OK)
+		throw RavenAuthenticationException.expected(t.msg, t.status);
+
+	    // Check that principal exists.
+	    if ("".equals(t.principal))
+		throw NO_PRINCIPAL.reuse();
+
+	    // Check that kid and signature exist.
+	    if ("".equals(t.kid))
+		throw NO_KID.reuse();
+	    if (!t.hasSig())
+		throw NO_SIGNATURE.reuse();
+
+	    // Check that neither the kid has recently been found unknown nor the
+	    // signature bad. Digest the Token only if some signature has.
+	    final String unknown = unknownKids.get(t.kid);
+	    if (unknown != null)
+		throw RavenException.expected(unknown);
+	    NegativeCache.Digest digest = null;
+	    if (!badSignatures.isEmpty()) {
+		digest = NegativeCache.digest(t.kid, t.signedString, t.sig);
+		final String bad = badSignatures.get(digest);
+		if (bad != null)
+		    throw RavenException.expected(bad);
 	    }
-	    if (!isOkay)
-		throw new RavenException("SSO method is unacceptable");
+
+	    // Check that auth or sso exist and are acceptable.
+	    final boolean hasAuth = !"".equals(t.auth);
+	    if (hasAuth ^ t.sso.size() == 0)
+		throw AUTH_XOR_SSO.reuse();
+	    if (this.iact == Boolean.TRUE) {
+		if (!hasAuth)
+		    throw NO_AUTH.reuse();
+		if (!this.accepts(t.auth))
+		    throw BAD_AUTH.reuse();
+	    } else if (this.iact == Boolean.FALSE) {
+		if (t.sso.size() == 0)
+		    throw NO_SSO.reuse();
+		if (!this.acceptsAny(t))
+		    throw BAD_SSO.reuse();
+	    }
+
+	    // Check that the issue date is not in the future.
+	    if (t.issue.getTime() > clock.currentTimeMillis()
+		    + LEGAL_CLOCK_SKEW)
+		throw FUTURE_ISSUE.reuse();
+
+	    run(this.trivial, t);
+
+	    // Checks that compare strings.
+
+	    // Check URL is one we expected.
+	    if (!this.url.equals(t.url))
+		throw BAD_URL.reuse();
+
+	    // Check that params match.
+	    if (this.params != null && !this.params.equals(t.params))
+		throw BAD_PARAMS.reuse();
+
+	    run(this.linear, t);
+	    run(this.lookup, t);
+	    run(this.remote, t);
+
+	    // Check signature.
+	    verifySignature(t, digest);
+	}
+
+	/** Returns 'true' if the authentication type 'type' is acceptable. */
+	private boolean accepts(String type) {
+	    return this.anyAuth || (AuthTypes.bit(type) & this.aauthMask) != 0L
+		    || (this.aauth != null && this.aauth.contains(type));
+	}
+
+	/** Returns 'true' if any type in 't.sso' is acceptable. */
+	private boolean acceptsAny(Token t) {
+	    if (this.anyAuth || (t.ssoMask & this.aauthMask) != 0L)
+		return true;
+	    if (this.aauth != null)
+		for (String s : t.sso)
+		    if (this.aauth.contains(s))
+			return true;
+	    return false;
+	}
+
+	private void run(ValidationStage[] tier, Token t)
+		throws RavenException {
+	    for (int i = 0; i < tier.length; i++)
+		tier[i].validate(this.request, t);
+	}
+
+	private final Request request;
+	private final String ver;
+	private final String url;
+	private final String params;
+	private final Boolean iact;
+
+	/** 'true' if 'request.aauth' was 'null', so any type is acceptable. */
+	private final boolean anyAuth;
+
+	/** The bits of the known types in 'request.aauth'. */
+	private final long aauthMask;
+
+	/**
+	 * A copy of 'request.aauth' if it contains types unknown to
+	 * AuthTypes, which must be compared as strings. Otherwise 'null'.
+	 */
+	private final Set<String> aauth;
+
+	private final ValidationStage[] trivial;
+	private final ValidationStage[] linear;
+	private final ValidationStage[] lookup;
+	private final ValidationStage[] remote;
+    }
+
+    /**
+     * Removes from the front of 'sorted' the stages in tier 'cost', and
+     * returns them.
+     */
+    private static ValidationStage[] take(List<ValidationStage> sorted,
+	    ValidationStage.Cost cost) {
+	int n = 0;
+	while (n < sorted.size() && sorted.get(n).getCost() == cost)
+	    n++;
+	final List<ValidationStage> tier = sorted.subList(0, n);
+	final ValidationStage[] ans = tier.toArray(new ValidationStage[n]);
+	tier.clear();
+	return ans;
+    }
+
+    /**
+     * Checks the signature of 't' against the certificate for 't.kid', and
+     * records the check as an AuthEvents span. 'digest' is the Token's key in
+     * 'badSignatures', or 'null' if it has not been computed.
+     */
+    private void verifySignature(Token t, NegativeCache.Digest digest)
+	    throws RavenException {
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.VERIFY);
+	try {
+	    this.checkSignature(t, digest);
+	} catch (RavenException xoov) {
+	    span.end(t.kid, t.status, xoov.getMessage());
+	    throw xoov;
 	}
+	span.end(t.kid, t.status, null);
+    }
+
+    /** The algorithm of Raven's signatures. */
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
-	// Check that params match.
-	if (r.params != null && !r.params.equals(t.params))
-	    throw new RavenException("Params do not match");
+    /** The most certificates whose provider is remembered. */
+    private static final int MAX_PROVIDERS = 64;
 
-	// Check that kid exists.
-	if ("".equals(t.kid))
-	    throw new RavenException("kid is missing");
+    /**
+     * Remembers that the JCA chose 'provider' to verify with 'cert'. A key
+     * store that keeps changing cannot make the map grow without bound.
+     */
+    private void rememberProvider(Certificate cert, Provider provider) {
+	if (this.providers.size() >= MAX_PROVIDERS)
+	    this.providers.clear();
+	this.providers.put(cert, provider);
+    }
 
-	// Check signature.
-	if (!t.hasSig())
-	    throw new RavenException("Signature is missing");
+    /** The work of 'verifySignature()'. */
+    private void checkSignature(Token t, NegativeCache.Digest key)
+	    throws RavenException {
 	try {
 	    final String certFile = this.keyPrefix + t.kid;
+	    final long lookup = SlowAuthLog.start();
 	    final Certificate cert = this.keys.getCertificate(certFile);
-	    if (cert == null)
-		throw new RavenException("Cannot read certificate: " + certFile);
-	    final Signature sig = Signature.getInstance("SHA1withRSA");
-	    sig.initVerify(cert);
-	    sig.update(t.signedString);
-	    if (!sig.verify(t.sig))
-		throw new RavenException("Signature does not match plaintext");
+	    SlowAuthLog.record(SlowAuthLog.Phase.KEY_LOOKUP, lookup);
+	    if (cert == null) {
+		final String reason = "Cannot read certificate: " + certFile;
+		this.unknownKids.put(t.kid, reason);
+		throw RavenException.expected(reason);
+	    }
+	    final long verify = SlowAuthLog.start();
+	    try {
+		final Provider provider = this.providers.get(cert);
+		final Signature sig = provider == null ? Signature
+			.getInstance(SIGNATURE_ALGORITHM) : Signature.getInstance(
+			SIGNATURE_ALGORITHM, provider);
+		sig.initVerify(cert);
+		if (provider == null)
+		    this.rememberProvider(cert, sig.getProvider());
+		sig.update(t.signedString);
+		if (!sig.verify(t.sig)) {
+		    if (key == null)
+			key = NegativeCache.digest(t.kid, t.signedString, t.sig);
+		    this.badSignatures.put(key, BAD_SIGNATURE.getMessage());
+		    throw BAD_SIGNATURE.reuse();
+		}
+	    } finally {
+		SlowAuthLog.record(SlowAuthLog.Phase.VERIFY, verify);
+	    }
 	} catch (InvalidKeyException e) {
 	    throw new RavenException(e.getMessage());
 	} catch (KeyStoreException e) {
@@ -176,7 +615,8 @@ public final class Authenticator {
 	} catch (NoSuchAlgorithmException e) {
 	    throw new RavenException(e.getMessage());
 	} catch (SignatureException e) {
-	    throw new RavenException(e.getMessage());
+	    // A malformed signature is a rejected Token, not a fault.
+	    throw RavenException.expected(e.getMessage());
 	}
     }
 
@@ -0,0 +1,123 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The source of the current time for every time check made by the library:
+ * token expiry, issue-time validation and the date stamped on each Request.
+ * Times are milliseconds since the epoch, so reading a Clock allocates
+ * nothing.
+ * <p>
+ * Use 'SYSTEM' by default, 'coarse()' where the clock is read on every web
+ * request, and 'fixed()' to replay historical tokens or in tests.
+ */
+public abstract class Clock {
+
+    /**
+     * Returns the current time in milliseconds since the epoch.
+     */
+    public abstract long currentTimeMillis();
+
+    /** A Clock that reads 'System.currentTimeMillis()' every time. */
+    public static final Clock SYSTEM = new Clock() {
+	public long currentTimeMillis() {
+	    return System.currentTimeMillis();
+	}
+    };
+
+    /**
+     * Returns a Clock that always reads 'millis' until it is changed with
+     * 'FixedClock.set()' or 'FixedClock.advance()'.
+     */
+    public static FixedClock fixed(long millis) {
+	return new FixedClock(millis);
+    }
+
+    /**
+     * Returns a Clock that caches the system time and refreshes it from a
+     * background daemon thread every 'resolution' milliseconds. The caller
+     * must call 'CoarseClock.stop()' when the Clock is no longer needed.
+     */
+    public static CoarseClock coarse(long resolution) {
+	return new CoarseClock(resolution);
+    }
+
+    /**
+     * A Clock whose time only changes when told to. Safe to read and set from
+     * any thread.
+     */
+    public static final class FixedClock extends Clock {
+	private volatile long now;
+
+	private FixedClock(long now) {
+	    this.now = now;
+	}
+
+	public long currentTimeMillis() {
+	    return this.now;
+	}
+
+	/** Sets the time returned by this Clock. */
+	public void set(long millis) {
+	    this.now = millis;
+	}
+
+	/** Moves the time returned by this Clock on by 'millis'. */
+	public synchronized void advance(long millis) {
+	    this.now += millis;
+	}
+    }
+
+    /**
+     * A Clock that is at most 'resolution' milliseconds behind the system
+     * clock, and costs a single volatile read.
+     */
+    public static final class CoarseClock extends Clock {
+	private volatile long now = System.currentTimeMillis();
+
+	private final Timer timer = new Timer("raven-coarse-clock", true);
+
+	private CoarseClock(long resolution) {
+	    if (resolution <= 0)
+		throw new IllegalArgumentException("Resolution must be positive");
+	    this.timer.scheduleAtFixedRate(new TimerTask() {
+		public void run() {
+		    now = System.currentTimeMillis();
+		}
+	    }, resolution, resolution);
+	}
+
+	public long currentTimeMillis() {
+	    return this.now;
+	}
+
+	/**
+	 * Stops the background thread. The Clock then keeps returning the last
+	 * time it read.
+	 */
+	public void stop() {
+	    this.timer.cancel();
+	}
+    }
+}
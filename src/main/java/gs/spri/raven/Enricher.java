@@ -0,0 +1,286 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds the Attributes of authenticated principals through an
+ * AttributeSource, off the request thread. Lookups requested while a call to
+ * the source is in progress are gathered, up to 'maxBatch' at a time, into
+ * the next call, so concurrent logins cost one backend call rather than one
+ * each. Results are cached for 'ttl' milliseconds. A cached result read in
+ * the last 'refreshAhead' milliseconds of its life is returned at once and
+ * refreshed in the background, so that busy principals never wait for the
+ * source.
+ * <p>
+ * A failed call to the source fails every lookup in it and caches nothing;
+ * the next lookup tries again. One Enricher is normally shared by every
+ * session. Thread-safe.
+ */
+public final class Enricher {
+
+    private final AttributeSource source;
+    private final Executor executor;
+    private final long ttl;
+    private final long refreshAhead;
+    private final int maxBatch;
+    private final int maxEntries;
+    private final Clock clock;
+
+    /** Cached results, by principal. */
+    private final ConcurrentHashMap<String, Cached> cache =
+	    new ConcurrentHashMap<String, Cached>();
+
+    /** Lookups waiting for the next call to the source, by principal. */
+    private final ConcurrentHashMap<String, CompletableFuture<Attributes>>
+	    pending = new ConcurrentHashMap<String, CompletableFuture<Attributes>>();
+
+    /** Lookups in the call to the source in progress, by principal. */
+    private final ConcurrentHashMap<String, CompletableFuture<Attributes>>
+	    inFlight = new ConcurrentHashMap<String, CompletableFuture<Attributes>>();
+
+    /** 'true' while a task is draining 'pending'. */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Constructs an Enricher which makes its calls to 'source' on
+     * 'executor', with batches of at most 100 principals, a cache of at most
+     * 10000, and the system Clock.
+     */
+    public Enricher(AttributeSource source, Executor executor, long ttl,
+	    long refreshAhead) {
+	this(source, executor, ttl, refreshAhead, 100, 10000, Clock.SYSTEM);
+    }
+
+    /**
+     * Constructs an Enricher.
+     *
+     * @param source
+     *            where to look up Attributes.
+     * @param executor
+     *            where to make the calls to 'source'.
+     * @param ttl
+     *            how long, in milliseconds, to cache each result.
+     * @param refreshAhead
+     *            how long, in milliseconds, before a result expires that
+     *            reading it starts a refresh. Zero disables refresh-ahead.
+     * @param maxBatch
+     *            the most principals passed to one call to 'source'.
+     * @param maxEntries
+     *            the most results to cache.
+     * @param clock
+     *            the Clock used to expire results.
+     */
+    public Enricher(AttributeSource source, Executor executor, long ttl,
+	    long refreshAhead, int maxBatch, int maxEntries, Clock clock) {
+	if (ttl <= 0 || refreshAhead < 0 || refreshAhead >= ttl
+		|| maxBatch <= 0 || maxEntries <= 0)
+	    throw new IllegalArgumentException("Bad enrichment limits");
+	this.source = source;
+	this.executor = executor;
+	this.ttl = ttl;
+	this.refreshAhead = refreshAhead;
+	this.maxBatch = maxBatch;
+	this.maxEntries = maxEntries;
+	this.clock = clock;
+    }
+
+    /**
+     * Returns the Attributes of 'principal'. The future is already complete
+     * if they are cached; otherwise it completes when the source has been
+     * called, exceptionally with an IOException if the call failed.
+     */
+    public CompletableFuture<Attributes> lookup(String principal) {
+	final long now = this.clock.currentTimeMillis();
+	final Cached c = this.cache.get(principal);
+	if (c != null && now < c.expires) {
+	    if (now >= c.expires - this.refreshAhead
+		    && c.refreshing.compareAndSet(false, true))
+		this.enqueue(principal);
+	    return c.future;
+	}
+	return this.enqueue(principal);
+    }
+
+    /** Forgets the cached Attributes of 'principal', if any. */
+    public void invalidate(String principal) {
+	this.cache.remove(principal);
+    }
+
+    /**
+     * Returns the future for the call to the source in progress or the next
+     * one that includes 'principal', arranging for that call to be made.
+     */
+    private CompletableFuture<Attributes> enqueue(String principal) {
+	CompletableFuture<Attributes> ans = this.inFlight.get(principal);
+	if (ans == null)
+	    ans = this.pending.get(principal);
+	if (ans == null) {
+	    final CompletableFuture<Attributes> fresh =
+		    new CompletableFuture<Attributes>();
+	    ans = this.pending.putIfAbsent(principal, fresh);
+	    if (ans == null) {
+		ans = fresh;
+		this.startDraining();
+	    }
+	}
+	return ans;
+    }
+
+    /** Starts a task to drain 'pending', unless one is already running. */
+    private void startDraining() {
+	if (!this.draining.compareAndSet(false, true))
+	    return;
+	try {
+	    this.executor.execute(new Runnable() {
+		public void run() {
+		    drain();
+		}
+	    });
+	} catch (RejectedExecutionException xoov) {
+	    this.draining.set(false);
+	    final Iterator<CompletableFuture<Attributes>> i = this.pending
+		    .values().iterator();
+	    while (i.hasNext()) {
+		i.next().completeExceptionally(xoov);
+		i.remove();
+	    }
+	}
+    }
+
+    /** Calls the source in batches until nothing is pending. */
+    private void drain() {
+	while (true) {
+	    final List<String> batch = new ArrayList<String>();
+	    final List<CompletableFuture<Attributes>> futures =
+		    new ArrayList<CompletableFuture<Attributes>>();
+	    final Iterator<String> i = this.pending.keySet().iterator();
+	    while (i.hasNext() && batch.size() < this.maxBatch) {
+		final String principal = i.next();
+		final CompletableFuture<Attributes> f = this.pending
+			.remove(principal);
+		if (f != null) {
+		    this.inFlight.put(principal, f);
+		    batch.add(principal);
+		    futures.add(f);
+		}
+	    }
+	    if (batch.isEmpty()) {
+		this.draining.set(false);
+		// A lookup may have arrived after the check but before the flag
+		// was cleared; if so, and no other task has started, go on.
+		if (this.pending.isEmpty()
+			|| !this.draining.compareAndSet(false, true))
+		    return;
+		continue;
+	    }
+	    this.call(batch, futures);
+	}
+    }
+
+    /** Makes one call to the source, and completes 'futures' with it. */
+    private void call(List<String> batch,
+	    List<CompletableFuture<Attributes>> futures) {
+	final Map<String, Attributes> found;
+	try {
+	    found = this.source.lookup(batch);
+	} catch (IOException xoov) {
+	    this.fail(batch, futures, xoov);
+	    return;
+	} catch (RuntimeException xoov) {
+	    this.fail(batch, futures, xoov);
+	    return;
+	}
+	final long expires = this.clock.currentTimeMillis() + this.ttl;
+	for (int i = 0; i < batch.size(); i++) {
+	    final String principal = batch.get(i);
+	    Attributes a = found == null ? null : found.get(principal);
+	    if (a == null)
+		a = Attributes.none(principal);
+	    this.put(principal, new Cached(
+		    CompletableFuture.completedFuture(a), expires));
+	    this.inFlight.remove(principal);
+	    futures.get(i).complete(a);
+	}
+    }
+
+    private void fail(List<String> batch,
+	    List<CompletableFuture<Attributes>> futures, Exception cause) {
+	for (int i = 0; i < batch.size(); i++) {
+	    // Let a later read try to refresh again.
+	    final Cached c = this.cache.get(batch.get(i));
+	    if (c != null)
+		c.refreshing.set(false);
+	    this.inFlight.remove(batch.get(i));
+	    futures.get(i).completeExceptionally(cause);
+	}
+    }
+
+    /** Caches 'c', first making room if the cache is full. */
+    private void put(String principal, Cached c) {
+	if (this.cache.size() >= this.maxEntries
+		&& !this.cache.containsKey(principal))
+	    this.evict();
+	this.cache.put(principal, c);
+    }
+
+    /**
+     * Drops expired results, then arbitrary ones, until the cache is at most
+     * three-quarters full, so that a full cache is scanned only once every
+     * 'maxEntries' / 4 new principals rather than once for each.
+     */
+    private void evict() {
+	final long now = this.clock.currentTimeMillis();
+	final int target = this.maxEntries * 3 / 4;
+	for (Iterator<Cached> i = this.cache.values().iterator(); i.hasNext();)
+	    if (i.next().expires <= now)
+		i.remove();
+	for (Iterator<Cached> i = this.cache.values().iterator(); i.hasNext()
+		&& this.cache.size() > target;) {
+	    i.next();
+	    i.remove();
+	}
+    }
+
+    /** A cached result. */
+    private static final class Cached {
+	Cached(CompletableFuture<Attributes> future, long expires) {
+	    this.future = future;
+	    this.expires = expires;
+	}
+
+	final CompletableFuture<Attributes> future;
+	final long expires;
+
+	/** 'true' once a refresh-ahead has been started. */
+	final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+}
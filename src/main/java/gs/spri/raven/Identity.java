@@ -0,0 +1,122 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The identity established by a validated Token, reduced to what an
+ * application needs for the rest of the session. It is much smaller than the
+ * Token it comes from: the signature, the signed text and the other response
+ * fields are dropped, the principal and kid are interned, and the
+ * authentication types are stored as codes.
+ * <p>
+ * Authentication types unknown to the library are reported as "other".
+ * Immutable.
+ */
+public final class Identity {
+
+    /**
+     * Returns the identity established by 't'. 't' must already have been
+     * validated; this method does not check it.
+     */
+    public static Identity of(Token t) {
+	return new Identity(t.principal.intern(), AuthTypes.code(t.auth),
+		t.ssoMask | (AuthTypes.allKnown(t.sso) ? 0L : AuthTypes.OTHER_BIT),
+		t.kid.intern(), t.lifeEnd);
+    }
+
+    Identity(String principal, byte authCode, long ssoMask,
+	    String kid, long lifeEnd) {
+	this.principal = principal;
+	this.authCode = authCode;
+	this.ssoMask = ssoMask;
+	this.kid = kid;
+	this.lifeEnd = lifeEnd;
+    }
+
+    private final String principal;
+
+    private final byte authCode;
+
+    private final long ssoMask;
+
+    private final String kid;
+
+    private final long lifeEnd;
+
+    /** Returns the authenticated principal, as in 'Token.principal'. */
+    public String getPrincipal() {
+	return this.principal;
+    }
+
+    /**
+     * Returns the authentication type used, as in 'Token.auth', or the empty
+     * string if the identity was established by single sign-on.
+     */
+    public String getAuth() {
+	return AuthTypes.name(this.authCode);
+    }
+
+    /**
+     * Returns the authentication types previously used for single sign-on, as
+     * in 'Token.sso'. A new Set is built on each call.
+     */
+    public Set<String> getSso() {
+	return Collections.unmodifiableSet(AuthTypes.names(this.ssoMask));
+    }
+
+    /** Returns the code of 'getAuth()'; see AuthTypes. */
+    byte getAuthCode() {
+	return this.authCode;
+    }
+
+    /** Returns the bit mask of 'getSso()'; see AuthTypes. */
+    long getSsoMask() {
+	return this.ssoMask;
+    }
+
+    /** Returns the kid of the key that signed the Token. */
+    public String getKid() {
+	return this.kid;
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, at which this
+     * identity expires, or Long.MAX_VALUE if the Token gave no 'life'.
+     */
+    public long getLifeEnd() {
+	return this.lifeEnd;
+    }
+
+    /**
+     * Returns 'true' if this identity has not expired by 'when', in
+     * milliseconds since the epoch.
+     */
+    public boolean isCurrent(long when) {
+	return when < this.lifeEnd;
+    }
+
+    public String toString() {
+	return this.principal;
+    }
+}
@@ -0,0 +1,347 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the Identities of authenticated sessions outside the Java heap, as
+ * fixed-size records in a direct buffer or a memory-mapped file, so that a
+ * server with hundreds of thousands of sessions does not carry their
+ * authentication state through every garbage collection. A session keeps
+ * only the 'long' handle returned by 'put()'.
+ * <p>
+ * A record is found by its handle alone, not by the ID of its session, so it
+ * survives the container changing the ID, e.g. to prevent session fixation.
+ * Each record holds a generation that changes each time the record is
+ * reused, so a stale handle finds nothing. Records are freed by 'remove()',
+ * or by 'sweep()' once the life of their Identity has ended; 'put()' sweeps
+ * by itself when the store is full.
+ * <p>
+ * Reading a record allocates nothing unless an Identity is asked for.
+ * Thread-safe.
+ */
+public final class IdentityStore implements Closeable {
+
+    /** The longest kid stored, in characters. */
+    private static final int MAX_KID_LENGTH = 8;
+
+    /* The layout of a record. */
+    private static final int GENERATION = 0;
+    private static final int AUTH_CODE = 4;
+    private static final int KID_LENGTH = 5;
+    private static final int PRINCIPAL_LENGTH = 6;
+    private static final int LIFE_END = 8;
+    private static final int SSO_MASK = 16;
+    private static final int KID = 24;
+    private static final int PRINCIPAL = KID + 2 * MAX_KID_LENGTH;
+
+    /** The 'lifeEnd' of a free record; no Identity has it. */
+    private static final long FREE = Long.MIN_VALUE;
+
+    /** The number of locks, each guarding every this-many'th record. */
+    private static final int STRIPES = 64;
+
+    private final ByteBuffer buffer;
+    private final RandomAccessFile file;
+    private final int capacity;
+    private final int maxPrincipalLength;
+    private final int recordSize;
+    private final Object[] locks = new Object[STRIPES];
+
+    /** The indices of the free records, used as a stack. */
+    private final int[] free;
+    private int freeCount;
+
+    /**
+     * Constructs an IdentityStore in direct memory, holding at most
+     * 'capacity' Identities whose principals have at most
+     * 'maxPrincipalLength' characters.
+     *
+     * @throws IllegalArgumentException
+     *             if either is not positive, or the store would need more
+     *             than 2GB.
+     */
+    public IdentityStore(int capacity, int maxPrincipalLength) {
+	this(capacity, maxPrincipalLength, null, ByteBuffer
+		.allocateDirect(size(capacity, maxPrincipalLength)));
+    }
+
+    /**
+     * Constructs an IdentityStore in the memory-mapped file 'file', which is
+     * created or overwritten, so that the operating system may page records
+     * out to disk. Its previous contents are discarded. The file is closed by
+     * 'close()'.
+     *
+     * @throws IOException
+     *             if 'file' cannot be created or mapped.
+     * @throws IllegalArgumentException
+     *             as for 'IdentityStore(int, int)'.
+     */
+    public IdentityStore(File file, int capacity, int maxPrincipalLength)
+	    throws IOException {
+	this(capacity, maxPrincipalLength, new RandomAccessFile(file, "rw"));
+    }
+
+    private IdentityStore(int capacity, int maxPrincipalLength,
+	    RandomAccessFile file) throws IOException {
+	this(capacity, maxPrincipalLength, file, map(file, capacity,
+		maxPrincipalLength));
+    }
+
+    private IdentityStore(int capacity, int maxPrincipalLength,
+	    RandomAccessFile file, ByteBuffer buffer) {
+	this.capacity = capacity;
+	this.maxPrincipalLength = maxPrincipalLength;
+	this.recordSize = recordSize(maxPrincipalLength);
+	this.file = file;
+	this.buffer = buffer;
+	for (int i = 0; i < STRIPES; i++)
+	    this.locks[i] = new Object();
+	this.free = new int[capacity];
+	// Hand out the lowest records first.
+	for (int i = 0; i < capacity; i++) {
+	    this.buffer.putLong(i * this.recordSize + LIFE_END, FREE);
+	    this.free[i] = capacity - 1 - i;
+	}
+	this.freeCount = capacity;
+    }
+
+    /** Returns the size of a record holding 'maxPrincipalLength' chars. */
+    private static int recordSize(int maxPrincipalLength) {
+	return (PRINCIPAL + 2 * maxPrincipalLength + 7) & ~7;
+    }
+
+    /**
+     * Returns the size of a store with the given limits.
+     *
+     * @throws IllegalArgumentException
+     *             if either is not positive, or the store would need more
+     *             than 2GB.
+     */
+    private static int size(int capacity, int maxPrincipalLength) {
+	if (capacity <= 0 || maxPrincipalLength <= 0
+		|| maxPrincipalLength > Short.MAX_VALUE)
+	    throw new IllegalArgumentException("Bad identity store limits");
+	final long ans = (long) capacity * recordSize(maxPrincipalLength);
+	if (ans > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException("Identity store is too large");
+	return (int) ans;
+    }
+
+    /**
+     * Maps the start of 'file' to hold a store with the given limits, closing
+     * it on failure.
+     */
+    private static ByteBuffer map(RandomAccessFile file, int capacity,
+	    int maxPrincipalLength) throws IOException {
+	try {
+	    final int size = size(capacity, maxPrincipalLength);
+	    file.setLength(0L);
+	    file.setLength(size);
+	    return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+		    size);
+	} catch (IOException xoov) {
+	    file.close();
+	    throw xoov;
+	} catch (IllegalArgumentException xoov) {
+	    file.close();
+	    throw xoov;
+	}
+    }
+
+    /** Returns the most Identities this store can hold. */
+    public int getCapacity() {
+	return this.capacity;
+    }
+
+    /** Returns the number of Identities in this store. */
+    public int size() {
+	synchronized (this.free) {
+	    return this.capacity - this.freeCount;
+	}
+    }
+
+    /**
+     * Stores 'identity', and returns its handle. Returns -1 if the identity does not fit a record, or the store
+     * is full even after sweeping the identities that have expired by 'now';
+     * the caller should then keep the identity on the heap.
+     */
+    public long put(Identity identity, long now) {
+	final String principal = identity.getPrincipal();
+	final String kid = identity.getKid();
+	if (principal.length() > this.maxPrincipalLength
+		|| kid.length() > MAX_KID_LENGTH
+		|| identity.getLifeEnd() <= now)
+	    return -1L;
+	int slot = this.allocate();
+	if (slot < 0) {
+	    this.sweep(now);
+	    slot = this.allocate();
+	    if (slot < 0)
+		return -1L;
+	}
+	final int base = slot * this.recordSize;
+	synchronized (this.locks[slot % STRIPES]) {
+	    final ByteBuffer b = this.buffer;
+	    final int generation = b.getInt(base + GENERATION) + 1;
+	    b.putInt(base + GENERATION, generation);
+	    b.putLong(base + SSO_MASK, identity.getSsoMask());
+	    b.put(base + AUTH_CODE, identity.getAuthCode());
+	    b.put(base + KID_LENGTH, (byte) kid.length());
+	    b.putShort(base + PRINCIPAL_LENGTH, (short) principal.length());
+	    for (int i = 0; i < kid.length(); i++)
+		b.putChar(base + KID + 2 * i, kid.charAt(i));
+	    for (int i = 0; i < principal.length(); i++)
+		b.putChar(base + PRINCIPAL + 2 * i, principal.charAt(i));
+	    // Written last: the record is in use once it is not FREE.
+	    b.putLong(base + LIFE_END, identity.getLifeEnd());
+	    return ((long) generation << 32) | slot;
+	}
+    }
+
+    /**
+     * Returns 'true' if 'handle' is the handle of a stored Identity that has
+     * not expired by 'when'. Allocates nothing.
+     */
+    public boolean isCurrent(long handle, long when) {
+	final int slot = slot(handle);
+	if (slot < 0)
+	    return false;
+	final int base = slot * this.recordSize;
+	synchronized (this.locks[slot % STRIPES]) {
+	    return this.matches(base, handle)
+		    && when < this.buffer.getLong(base + LIFE_END);
+	}
+    }
+
+    /**
+     * Returns the Identity with handle 'handle', or 'null' if there is none.
+     * The Identity may have expired; check with 'Identity.isCurrent()'.
+     */
+    public Identity get(long handle) {
+	final int slot = slot(handle);
+	if (slot < 0)
+	    return null;
+	final int base = slot * this.recordSize;
+	final char[] principal;
+	final char[] kid;
+	final byte authCode;
+	final long ssoMask;
+	final long lifeEnd;
+	synchronized (this.locks[slot % STRIPES]) {
+	    final ByteBuffer b = this.buffer;
+	    if (!this.matches(base, handle))
+		return null;
+	    lifeEnd = b.getLong(base + LIFE_END);
+	    ssoMask = b.getLong(base + SSO_MASK);
+	    authCode = b.get(base + AUTH_CODE);
+	    kid = new char[b.get(base + KID_LENGTH)];
+	    for (int i = 0; i < kid.length; i++)
+		kid[i] = b.getChar(base + KID + 2 * i);
+	    principal = new char[b.getShort(base + PRINCIPAL_LENGTH)];
+	    for (int i = 0; i < principal.length; i++)
+		principal[i] = b.getChar(base + PRINCIPAL + 2 * i);
+	}
+	return new Identity(new String(principal).intern(), authCode, ssoMask,
+		new String(kid).intern(), lifeEnd);
+    }
+
+    /** Frees the record with handle 'handle', if it is still in use. */
+    public void remove(long handle) {
+	final int slot = slot(handle);
+	if (slot < 0)
+	    return;
+	final int base = slot * this.recordSize;
+	synchronized (this.locks[slot % STRIPES]) {
+	    if (!this.matches(base, handle))
+		return;
+	    this.buffer.putLong(base + LIFE_END, FREE);
+	}
+	this.release(slot);
+    }
+
+    /**
+     * Frees every record whose Identity has expired by 'now'. Returns the
+     * number freed.
+     */
+    public int sweep(long now) {
+	int ans = 0;
+	for (int slot = 0; slot < this.capacity; slot++) {
+	    final int base = slot * this.recordSize;
+	    synchronized (this.locks[slot % STRIPES]) {
+		final long lifeEnd = this.buffer.getLong(base + LIFE_END);
+		if (lifeEnd == FREE || now < lifeEnd)
+		    continue;
+		this.buffer.putLong(base + LIFE_END, FREE);
+	    }
+	    this.release(slot);
+	    ans++;
+	}
+	return ans;
+    }
+
+    /**
+     * Releases the memory-mapped file, if any. The store must not be used
+     * afterwards.
+     */
+    public void close() throws IOException {
+	if (this.file != null) {
+	    ((MappedByteBuffer) this.buffer).force();
+	    this.file.close();
+	}
+    }
+
+    /**
+     * Returns 'true' if the record at 'base' is in use by the generation of
+     * 'handle'. Called with the record's lock held.
+     */
+    private boolean matches(int base, long handle) {
+	final ByteBuffer b = this.buffer;
+	return b.getLong(base + LIFE_END) != FREE
+		&& b.getInt(base + GENERATION) == (int) (handle >>> 32);
+    }
+
+    /** Returns the record index of 'handle', or -1 if it has none. */
+    private int slot(long handle) {
+	final int ans = (int) handle;
+	return ans >= 0 && ans < this.capacity ? ans : -1;
+    }
+
+    /** Takes a free record, returning its index, or -1 if there is none. */
+    private int allocate() {
+	synchronized (this.free) {
+	    return this.freeCount == 0 ? -1 : this.free[--this.freeCount];
+	}
+    }
+
+    private void release(int slot) {
+	synchronized (this.free) {
+	    this.free[this.freeCount++] = slot;
+	}
+    }
+}
@@ -0,0 +1,128 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events behind AuthEvents. This is the only class that
+ * refers to the jdk.jfr API; AuthEvents loads it by name, and only if the API
+ * exists.
+ */
+final class JfrEvents extends AuthEvents.Source {
+
+    AuthEvents.Span begin(AuthEvents.Kind kind) {
+	// Loading the event types is slow, so wait until a recording has been
+	// started before touching them.
+	if (!FlightRecorder.isInitialized()
+		|| !Probes.ALL[kind.ordinal()].isEnabled())
+	    return AuthEvents.NONE;
+	final Base ans;
+	switch (kind) {
+	case REQUEST:
+	    ans = new RequestEvent();
+	    break;
+	case INTERCEPT:
+	    ans = new InterceptEvent();
+	    break;
+	case HANDLE:
+	    ans = new HandleEvent();
+	    break;
+	case PARSE:
+	    ans = new ParseEvent();
+	    break;
+	default:
+	    ans = new VerifyEvent();
+	}
+	ans.begin();
+	return ans;
+    }
+
+    /**
+     * One instance of each event type, indexed by Kind, used only to ask
+     * whether the type is enabled. Loaded on first use.
+     */
+    private static final class Probes {
+	static final Base[] ALL = { new RequestEvent(), new InterceptEvent(),
+		new HandleEvent(), new ParseEvent(), new VerifyEvent() };
+    }
+
+    @Category("Raven")
+    @StackTrace(false)
+    abstract static class Base extends Event implements AuthEvents.Span {
+	@Label("Key ID")
+	String kid;
+
+	@Label("Status")
+	@Description("The status of the Raven response, or 0 if there is none")
+	int status;
+
+	@Label("Failure Reason")
+	String reason;
+
+	public void end(String kid, int status, String reason) {
+	    this.end();
+	    if (this.shouldCommit()) {
+		this.kid = kid;
+		this.status = status;
+		this.reason = reason;
+		this.commit();
+	    }
+	}
+    }
+
+    @Name("gs.spri.raven.Request")
+    @Label("Raven Request")
+    @Description("A request handled by a RavenServlet")
+    static final class RequestEvent extends Base {
+    }
+
+    @Name("gs.spri.raven.Intercept")
+    @Label("Raven Intercept Login")
+    @Description("A response from Raven received by a RavenSession")
+    static final class InterceptEvent extends Base {
+    }
+
+    @Name("gs.spri.raven.Handle")
+    @Label("Raven Handle Authentication")
+    @Description("A check that a session is authenticated, including any"
+	    + " validation of a Token")
+    static final class HandleEvent extends Base {
+    }
+
+    @Name("gs.spri.raven.Parse")
+    @Label("Raven Token Parse")
+    @Description("The parsing of a WLS-Response into a Token")
+    static final class ParseEvent extends Base {
+    }
+
+    @Name("gs.spri.raven.Verify")
+    @Label("Raven Signature Verify")
+    @Description("The check of the signature of a Token")
+    static final class VerifyEvent extends Base {
+    }
+}
@@ -0,0 +1,218 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A JVM-wide registry of the Raven public keys, so that every servlet and
+ * filter that names the same key store shares one copy of it, however many
+ * of them there are. Entries are keyed by the canonical path of the key store
+ * and a digest of its password, and are reloaded when its modification time
+ * changes. The keys are returned as a KeySet, which cannot be modified; each
+ * user builds its own Authenticator over them, so that its negative caches
+ * are not shared with other servlets or web applications.
+ * <p>
+ * The registry is held in static fields, so it is shared only by code loaded
+ * through the same class loader. For web applications to share keys, rslib
+ * must be installed in the container's shared or common class loader; a
+ * copy in each application's WEB-INF/lib gives each application its own
+ * registry, which still serves all the servlets and filters in it.
+ * <p>
+ * A key store is either a JKS file or a directory of X.509 certificates, PEM
+ * or DER, one per file, named for example "pubkey2.crt" or "pubkey2.pem". A
+ * directory needs no password, and loads faster because there is no
+ * integrity check to compute. Each certificate's alias is its file name
+ * without the extension, so the key prefix for "pubkey2.crt" is "pubkey".
+ * <p>
+ * Thread-safe.
+ */
+public final class KeyRegistry {
+
+    private static final ConcurrentHashMap<Key, Entry> ENTRIES =
+	    new ConcurrentHashMap<Key, Entry>();
+
+    /** One lock per key store, held while it is loaded. */
+    private static final ConcurrentHashMap<Key, Object> LOCKS =
+	    new ConcurrentHashMap<Key, Object>();
+
+    private KeyRegistry() {
+    }
+
+    /**
+     * Returns the certificates in the JKS file or certificate directory at
+     * 'path', loading them only if they are not already loaded or have
+     * changed since.
+     *
+     * @param password
+     *            the password of a JKS file; ignored for a directory.
+     * @throws IOException
+     *             if 'path' cannot be read.
+     * @throws GeneralSecurityException
+     *             if it does not hold valid certificates, or the password is
+     *             wrong.
+     */
+    public static KeySet keys(String path, String password)
+	    throws IOException, GeneralSecurityException {
+	return entry(path, password).keys;
+    }
+
+    /** Returns the current Entry for 'path', loading it if necessary. */
+    private static Entry entry(String path, String password)
+	    throws IOException, GeneralSecurityException {
+	final File file = new File(path).getCanonicalFile();
+	final long stamp = stamp(file);
+	final Key key = new Key(file.getPath(), file.isDirectory()
+		|| password == null ? null : NegativeCache.digest(password));
+	Entry e = ENTRIES.get(key);
+	if (e != null && e.stamp == stamp)
+	    return e;
+	// Loading is slow, so let only one thread load each key store while
+	// the others wait for it.
+	Object lock = LOCKS.get(key);
+	if (lock == null) {
+	    final Object fresh = new Object();
+	    lock = LOCKS.putIfAbsent(key, fresh);
+	    if (lock == null)
+		lock = fresh;
+	}
+	synchronized (lock) {
+	    e = ENTRIES.get(key);
+	    if (e != null && e.stamp == stamp)
+		return e;
+	    e = new Entry(stamp, KeySet.copyOf(file.isDirectory()
+		    ? loadDirectory(file) : loadJKS(file, password)));
+	    ENTRIES.put(key, e);
+	    return e;
+	}
+    }
+
+    /**
+     * Returns a value that changes whenever 'file', or a file in it if it is
+     * a directory, is added, removed or modified.
+     *
+     * @throws FileNotFoundException
+     *             if 'file' does not exist.
+     */
+    private static long stamp(File file) throws FileNotFoundException {
+	final long modified = file.lastModified();
+	if (modified == 0L)
+	    throw new FileNotFoundException(file.getPath());
+	if (!file.isDirectory())
+	    return modified;
+	long ans = modified;
+	final File[] files = file.listFiles();
+	if (files != null)
+	    for (File f : files)
+		ans = ans * 31 + f.lastModified() + f.getName().hashCode();
+	return ans;
+    }
+
+    private static KeyStore loadJKS(File file, String password)
+	    throws IOException, GeneralSecurityException {
+	final KeyStore ans = KeyStore.getInstance("JKS");
+	final InputStream is = new FileInputStream(file);
+	try {
+	    ans.load(is, password == null ? null : password.toCharArray());
+	} finally {
+	    is.close();
+	}
+	return ans;
+    }
+
+    private static KeyStore loadDirectory(File dir) throws IOException,
+	    GeneralSecurityException {
+	final KeyStore ans = KeyStore.getInstance(KeyStore.getDefaultType());
+	ans.load(null, null);
+	final CertificateFactory factory = CertificateFactory
+		.getInstance("X.509");
+	final File[] files = dir.listFiles();
+	if (files == null)
+	    throw new IOException("Cannot list " + dir);
+	Arrays.sort(files);
+	for (File f : files) {
+	    final String name = f.getName();
+	    final int dot = name.lastIndexOf('.');
+	    if (dot <= 0 || !f.isFile())
+		continue;
+	    final String extension = name.substring(dot + 1);
+	    if (!extension.equals("pem") && !extension.equals("crt")
+		    && !extension.equals("cer"))
+		continue;
+	    final InputStream is = new FileInputStream(f);
+	    try {
+		ans.setCertificateEntry(name.substring(0, dot),
+			factory.generateCertificate(is));
+	    } finally {
+		is.close();
+	    }
+	}
+	return ans;
+    }
+
+    /**
+     * Identifies a key store by its path and a digest of its password, so
+     * that passwords are not kept for the life of the JVM.
+     */
+    private static final class Key {
+	Key(String path, NegativeCache.Digest password) {
+	    this.path = path;
+	    this.password = password;
+	}
+
+	final String path;
+	final NegativeCache.Digest password;
+
+	public int hashCode() {
+	    return this.path.hashCode() * 31
+		    + (this.password == null ? 0 : this.password.hashCode());
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key))
+		return false;
+	    final Key k = (Key) o;
+	    return this.path.equals(k.path)
+		    && (this.password == null ? k.password == null
+			    : this.password.equals(k.password));
+	}
+    }
+
+    /** A loaded key store. */
+    private static final class Entry {
+	Entry(long stamp, KeySet keys) {
+	    this.stamp = stamp;
+	    this.keys = keys;
+	}
+
+	final long stamp;
+	final KeySet keys;
+    }
+}
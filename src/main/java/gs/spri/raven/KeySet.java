@@ -0,0 +1,85 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Raven certificates an Authenticator checks signatures with, found by
+ * alias. A KeySet made by 'copyOf()' holds its own copy of the certificates,
+ * which cannot be changed, so it can safely be shared by every servlet and
+ * filter in the JVM, as KeyRegistry does. Thread-safe.
+ */
+public final class KeySet {
+
+    /**
+     * Returns a KeySet holding the certificates now in 'keys'. Later changes
+     * to 'keys' are not seen.
+     *
+     * @throws KeyStoreException
+     *             if 'keys' has not been loaded.
+     */
+    public static KeySet copyOf(KeyStore keys) throws KeyStoreException {
+	final Map<String, Certificate> certificates =
+		new HashMap<String, Certificate>();
+	for (Enumeration<String> e = keys.aliases(); e.hasMoreElements();) {
+	    final String alias = e.nextElement();
+	    final Certificate cert = keys.getCertificate(alias);
+	    if (cert != null)
+		certificates.put(alias, cert);
+	}
+	return new KeySet(certificates, null);
+    }
+
+    /**
+     * Returns a KeySet that looks certificates up in 'keys' each time, for
+     * the constructors of Authenticator that take a KeyStore.
+     */
+    static KeySet of(KeyStore keys) {
+	return new KeySet(null, keys);
+    }
+
+    private KeySet(Map<String, Certificate> certificates, KeyStore keys) {
+	this.certificates = certificates;
+	this.keys = keys;
+    }
+
+    /** The copied certificates, or 'null' if they are looked up in 'keys'. */
+    private final Map<String, Certificate> certificates;
+
+    private final KeyStore keys;
+
+    /**
+     * Returns the certificate with alias 'alias', or 'null' if there is none.
+     *
+     * @throws KeyStoreException
+     *             if the underlying KeyStore has not been loaded.
+     */
+    public Certificate getCertificate(String alias) throws KeyStoreException {
+	return this.certificates != null ? this.certificates.get(alias)
+		: this.keys.getCertificate(alias);
+    }
+}
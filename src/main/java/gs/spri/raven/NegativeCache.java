@@ -0,0 +1,187 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A small, bounded, thread-safe map from keys to the reason they were
+ * rejected. Entries are forgotten 'ttl' milliseconds after they are added.
+ * Whenever the cache fills up, expired entries and then arbitrary ones are
+ * dropped, so it cannot be used to exhaust memory.
+ */
+final class NegativeCache<K> {
+
+    private final ConcurrentHashMap<K, Entry> entries;
+
+    private final int maxEntries;
+
+    private final long ttl;
+
+    private final Clock clock;
+
+    /**
+     * Constructs an empty cache.
+     * 
+     * @param maxEntries
+     *            the largest number of entries to hold.
+     * @param ttl
+     *            how long, in milliseconds, to remember each entry.
+     * @param clock
+     *            the Clock used to expire entries.
+     */
+    NegativeCache(int maxEntries, long ttl, Clock clock) {
+	this.entries = new ConcurrentHashMap<K, Entry>();
+	this.maxEntries = maxEntries;
+	this.ttl = ttl;
+	this.clock = clock;
+    }
+
+    /**
+     * Returns the reason 'key' was rejected, or 'null' if it is not in the
+     * cache or its entry has expired.
+     */
+    String get(K key) {
+	final Entry e = this.entries.get(key);
+	if (e == null)
+	    return null;
+	if (e.expiry <= this.clock.currentTimeMillis()) {
+	    this.entries.remove(key, e);
+	    return null;
+	}
+	return e.reason;
+    }
+
+    /**
+     * Returns 'true' if the cache holds no entries, so that callers can skip
+     * computing a key that could not be found.
+     */
+    boolean isEmpty() {
+	return this.entries.isEmpty();
+    }
+
+    /** Remembers that 'key' was rejected for 'reason'. */
+    void put(K key, String reason) {
+	final long now = this.clock.currentTimeMillis();
+	if (this.entries.size() >= this.maxEntries)
+	    this.purge(now);
+	this.entries.put(key, new Entry(reason, now + this.ttl));
+    }
+
+    /**
+     * Removes expired entries and, if that is not enough, arbitrary entries
+     * until the cache is three-quarters full.
+     */
+    private void purge(long now) {
+	for (Iterator<Entry> it = this.entries.values().iterator(); it
+		.hasNext();)
+	    if (it.next().expiry <= now)
+		it.remove();
+	final int target = this.maxEntries * 3 / 4;
+	for (Iterator<Map.Entry<K, Entry>> it = this.entries.entrySet()
+		.iterator(); it.hasNext() && this.entries.size() > target;) {
+	    it.next();
+	    it.remove();
+	}
+    }
+
+    private static final class Entry {
+	Entry(String reason, long expiry) {
+	    this.reason = reason;
+	    this.expiry = expiry;
+	}
+
+	final String reason;
+
+	final long expiry;
+    }
+
+    /**
+     * Returns a key identifying 's' by its SHA-256 digest, so that the cache
+     * never holds on to large attacker-supplied strings.
+     */
+    static Digest digest(String s) {
+	return new Digest(SHA256.get().digest(s.getBytes(UTF8)));
+    }
+
+    /**
+     * Returns a key identifying the signature 'sig' by 'kid' over 'text'.
+     * Each part is preceded by its length, so that no two different triples
+     * share a key.
+     */
+    static Digest digest(String kid, byte[] text, byte[] sig) {
+	final MessageDigest md = SHA256.get();
+	final byte[] k = kid.getBytes(UTF8);
+	update(md, k.length);
+	md.update(k);
+	update(md, text.length);
+	md.update(text);
+	update(md, sig.length);
+	md.update(sig);
+	return new Digest(md.digest());
+    }
+
+    private static void update(MessageDigest md, int n) {
+	md.update((byte) (n >>> 24));
+	md.update((byte) (n >>> 16));
+	md.update((byte) (n >>> 8));
+	md.update((byte) n);
+    }
+
+    /** A message digest with value semantics, for use as a key. */
+    static final class Digest {
+	private Digest(byte[] bytes) {
+	    this.bytes = bytes;
+	    this.hash = Arrays.hashCode(bytes);
+	}
+
+	private final byte[] bytes;
+
+	private final int hash;
+
+	public int hashCode() {
+	    return this.hash;
+	}
+
+	public boolean equals(Object o) {
+	    return o instanceof Digest
+		    && Arrays.equals(this.bytes, ((Digest) o).bytes);
+	}
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+	protected MessageDigest initialValue() {
+	    try {
+		return MessageDigest.getInstance("SHA-256");
+	    } catch (NoSuchAlgorithmException zoov) {
+		throw new RuntimeException("SHA-256 not supported. Apparently.");
+	    }
+	}
+    };
+}
@@ -0,0 +1,225 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides from its path alone whether a request is public, protected, or the
+ * callback from Raven, according to a list of path patterns compiled into a
+ * trie of path segments. Finding the rule for a path takes one hash look-up
+ * per segment, however many patterns there are, and allocates nothing, so it
+ * can run before any session is looked up or any parameter is parsed.
+ * <p>
+ * A pattern is either an exact path, such as "/about", or a path ending in
+ * "/*", such as "/static/*", which matches that path and every path below
+ * it. "/*" matches every path. The most specific pattern wins: an exact
+ * match, otherwise the longest matching "/*" pattern. Usage:
+ *
+ * <pre>
+ * final PathPolicy policy = PathPolicy.parse("/, /static/*", "/admin/*",
+ * 	"/login");
+ * if (policy.match(req.getPathInfo()) == PathPolicy.Rule.PUBLIC)
+ *     ...
+ * </pre>
+ *
+ * Immutable.
+ */
+public final class PathPolicy {
+
+    /** How a request is to be treated. */
+    public enum Rule {
+	/** No authentication is needed. */
+	PUBLIC,
+	/** The user must be authenticated. */
+	PROTECTED,
+	/** The request is the callback from Raven. */
+	CALLBACK
+    }
+
+    private final Node root;
+
+    /**
+     * Compiles 'patterns', each mapped to its Rule.
+     *
+     * @throws IllegalArgumentException
+     *             if a pattern does not start with '/', or has a '*' other
+     *             than as its last segment.
+     */
+    public PathPolicy(Map<String, Rule> patterns) {
+	final Draft draft = new Draft();
+	for (Map.Entry<String, Rule> e : patterns.entrySet()) {
+	    final String pattern = e.getKey();
+	    if (!pattern.startsWith("/"))
+		throw new IllegalArgumentException("Bad path pattern: "
+			+ pattern);
+	    final boolean subtree = pattern.endsWith("/*");
+	    final String path = subtree ? pattern.substring(0,
+		    pattern.length() - 2) : pattern;
+	    if (path.indexOf('*') >= 0)
+		throw new IllegalArgumentException("Bad path pattern: "
+			+ pattern);
+	    Draft d = draft;
+	    // "/*" applies at the root; any other path starts a segment.
+	    int start = path.length() == 0 ? -1 : 1;
+	    while (start >= 0) {
+		final int slash = path.indexOf('/', start);
+		final int end = slash < 0 ? path.length() : slash;
+		d = d.child(path.substring(start, end));
+		start = slash < 0 ? -1 : slash + 1;
+	    }
+	    if (subtree)
+		d.subtree = e.getValue();
+	    else
+		d.exact = e.getValue();
+	}
+	this.root = draft.compile();
+    }
+
+    /**
+     * Returns a PathPolicy from comma- or space-separated lists of patterns,
+     * any of which may be 'null'.
+     *
+     * @throws IllegalArgumentException
+     *             if a pattern is bad, or appears in two lists.
+     */
+    public static PathPolicy parse(String publicPaths, String protectedPaths,
+	    String callbackPaths) {
+	final Map<String, Rule> patterns = new HashMap<String, Rule>();
+	add(patterns, publicPaths, Rule.PUBLIC);
+	add(patterns, protectedPaths, Rule.PROTECTED);
+	add(patterns, callbackPaths, Rule.CALLBACK);
+	return new PathPolicy(patterns);
+    }
+
+    private static void add(Map<String, Rule> patterns, String list,
+	    Rule rule) {
+	if (list == null)
+	    return;
+	for (String pattern : list.trim().split("[,\\s]+")) {
+	    if (pattern.length() == 0)
+		continue;
+	    final Rule old = patterns.put(pattern, rule);
+	    if (old != null && old != rule)
+		throw new IllegalArgumentException("Path pattern is both "
+			+ old + " and " + rule + ": " + pattern);
+	}
+    }
+
+    /**
+     * Returns the Rule of the most specific pattern matching 'path', for
+     * example 'HttpServletRequest.getPathInfo()', or 'null' if none does. A
+     * 'null' path is matched only by "/*".
+     */
+    public Rule match(String path) {
+	Node node = this.root;
+	Rule ans = node.subtree;
+	if (path == null || path.length() == 0 || path.charAt(0) != '/')
+	    return ans;
+	int start = 1;
+	while (true) {
+	    int end = path.indexOf('/', start);
+	    if (end < 0)
+		end = path.length();
+	    node = node.child(path, start, end);
+	    if (node == null)
+		return ans;
+	    if (end == path.length())
+		return node.exact != null ? node.exact
+			: node.subtree != null ? node.subtree : ans;
+	    if (node.subtree != null)
+		ans = node.subtree;
+	    start = end + 1;
+	}
+    }
+
+    /** A node of the trie while patterns are being added. */
+    private static final class Draft {
+	Rule exact;
+	Rule subtree;
+	final Map<String, Draft> children = new HashMap<String, Draft>();
+
+	Draft child(String segment) {
+	    Draft ans = this.children.get(segment);
+	    if (ans == null) {
+		ans = new Draft();
+		this.children.put(segment, ans);
+	    }
+	    return ans;
+	}
+
+	Node compile() {
+	    int size = 1;
+	    while (size < 2 * this.children.size())
+		size *= 2;
+	    final String[] keys = new String[size];
+	    final Node[] nodes = new Node[size];
+	    for (Map.Entry<String, Draft> e : this.children.entrySet()) {
+		int i = e.getKey().hashCode() & (size - 1);
+		while (keys[i] != null)
+		    i = (i + 1) & (size - 1);
+		keys[i] = e.getKey();
+		nodes[i] = e.getValue().compile();
+	    }
+	    return new Node(this.exact, this.subtree, keys, nodes);
+	}
+    }
+
+    /**
+     * A compiled node of the trie: the Rules of the path it represents, and
+     * an open-addressed hash table of its children by path segment.
+     */
+    private static final class Node {
+	Node(Rule exact, Rule subtree, String[] keys, Node[] children) {
+	    this.exact = exact;
+	    this.subtree = subtree;
+	    this.keys = keys;
+	    this.children = children;
+	}
+
+	final Rule exact;
+	final Rule subtree;
+	private final String[] keys;
+	private final Node[] children;
+
+	/**
+	 * Returns the child for the segment of 'path' from 'start' to 'end',
+	 * or 'null'. Hashes the segment as 'String.hashCode()' would, without
+	 * copying it.
+	 */
+	Node child(String path, int start, int end) {
+	    int hash = 0;
+	    for (int i = start; i < end; i++)
+		hash = 31 * hash + path.charAt(i);
+	    final int mask = this.keys.length - 1;
+	    final int length = end - start;
+	    for (int i = hash & mask;; i = (i + 1) & mask) {
+		final String key = this.keys[i];
+		if (key == null)
+		    return null;
+		if (key.length() == length
+			&& path.regionMatches(start, key, 0, length))
+		    return this.children[i];
+	    }
+	}
+    }
+}
@@ -44,6 +44,23 @@ public class RavenAuthenticationException extends RavenException {
 		this.status = status;
 	}
 
+	private RavenAuthenticationException(String msg, int status,
+			boolean stackless) {
+		super(msg, stackless);
+		this.status = status;
+	}
+
+	/**
+	 * Returns a new RavenAuthenticationException for a failure reported by
+	 * Raven, such as the user cancelling, which is expected and so records a
+	 * stack trace only if the system property "gs.spri.raven.stack-traces" is
+	 * "true"; see RavenException.
+	 */
+	public static RavenAuthenticationException expected(String msg,
+			int status) {
+		return new RavenAuthenticationException(msg, status, !stackTraces());
+	}
+
 	/**
 	 * The status code returned by Raven, as defined by the WLS-WAA protocol
 	 * specification.
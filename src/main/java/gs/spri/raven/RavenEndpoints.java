@@ -0,0 +1,202 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A list of Raven servers (WLS endpoints) to which users can be sent to
+ * authenticate, each with a weight, and the recent behaviour of each.
+ * <p>
+ * Callers report whether each callback from an endpoint carried a response
+ * that could be parsed, and 'select()' favours the endpoint with the best
+ * combination of weight and success rate. Only what an endpoint controls is
+ * recorded: how long a user takes to log in, or whether they come back at
+ * all, says nothing about the server. The success rate is an exponentially
+ * decayed average updated without locks. A small share of redirects is
+ * spread over all endpoints by weight, so that an endpoint that has
+ * recovered is noticed. Thread-safe; one instance is normally shared by
+ * every session.
+ */
+public final class RavenEndpoints {
+
+    /**
+     * Parses a list of endpoints. 'spec' is a comma-separated list of entries
+     * of the form "URL" or "URL WEIGHT", where WEIGHT is a positive integer
+     * (default 1). A single URL is therefore a valid list.
+     * 
+     * @throws IllegalArgumentException
+     *             if 'spec' is 'null', or contains no endpoints or a bad
+     *             weight.
+     */
+    public static RavenEndpoints parse(String spec) {
+	if (spec == null)
+	    throw new IllegalArgumentException("No Raven endpoints given");
+	final List<Endpoint> ans = new ArrayList<Endpoint>();
+	final StringTokenizer entries = new StringTokenizer(spec, ",");
+	while (entries.hasMoreTokens()) {
+	    final StringTokenizer words = new StringTokenizer(
+		    entries.nextToken());
+	    if (!words.hasMoreTokens())
+		continue;
+	    final String url = words.nextToken();
+	    int weight = 1;
+	    if (words.hasMoreTokens())
+		weight = Integer.parseInt(words.nextToken());
+	    if (words.hasMoreTokens() || weight <= 0)
+		throw new IllegalArgumentException("Bad endpoint: " + url);
+	    ans.add(new Endpoint(url, weight));
+	}
+	if (ans.isEmpty())
+	    throw new IllegalArgumentException("No Raven endpoints given");
+	return new RavenEndpoints(ans);
+    }
+
+    /**
+     * Returns a list of exactly one endpoint, 'url', taken as it is. Unlike
+     * 'parse()', commas and spaces in 'url' have no special meaning.
+     */
+    public static RavenEndpoints single(String url) {
+	return new RavenEndpoints(Collections.singletonList(new Endpoint(url,
+		1)));
+    }
+
+    private RavenEndpoints(List<Endpoint> endpoints) {
+	this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+	int total = 0;
+	for (Endpoint e : this.endpoints)
+	    total += e.weight;
+	this.totalWeight = total;
+    }
+
+    /** Returns the endpoints, in the order given to 'parse()'. */
+    public List<Endpoint> getEndpoints() {
+	return Collections.unmodifiableList(Arrays.asList(this.endpoints));
+    }
+
+    /**
+     * Returns the endpoint to which the next user should be sent.
+     */
+    public Endpoint select() {
+	if (this.endpoints.length == 1)
+	    return this.endpoints[0];
+	final ThreadLocalRandom random = ThreadLocalRandom.current();
+	if (random.nextInt(100) < EXPLORE_PERCENT) {
+	    int n = random.nextInt(this.totalWeight);
+	    for (Endpoint e : this.endpoints) {
+		n -= e.weight;
+		if (n < 0)
+		    return e;
+	    }
+	}
+	Endpoint best = this.endpoints[0];
+	double bestScore = best.score();
+	for (int i = 1; i < this.endpoints.length; i++) {
+	    final double score = this.endpoints[i].score();
+	    if (score > bestScore) {
+		best = this.endpoints[i];
+		bestScore = score;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * One Raven server, and an exponentially decayed average of how it has
+     * behaved recently.
+     */
+    public static final class Endpoint {
+	private Endpoint(String url, int weight) {
+	    this.url = url;
+	    this.weight = weight;
+	}
+
+	/** The URL to which users are redirected in order to authenticate. */
+	public final String url;
+
+	/** The relative preference for this endpoint. */
+	public final int weight;
+
+	/**
+	 * The average of 1 for each well-formed response and 0 for each
+	 * malformed one, as the bits of a double.
+	 */
+	private final AtomicLong successRate = new AtomicLong(
+		Double.doubleToLongBits(1.0));
+
+	/**
+	 * Records that a user sent to this endpoint came back with a response
+	 * that could be parsed, whatever its status.
+	 */
+	public void recordSuccess() {
+	    decay(this.successRate, 1.0);
+	}
+
+	/**
+	 * Records that a user sent to this endpoint came back with a response
+	 * that could not be parsed.
+	 */
+	public void recordFailure() {
+	    decay(this.successRate, 0.0);
+	}
+
+	/** Returns the current average success rate, between 0 and 1. */
+	public double getSuccessRate() {
+	    return Double.longBitsToDouble(this.successRate.get());
+	}
+
+	/** Higher is better. */
+	double score() {
+	    return this.weight * this.getSuccessRate();
+	}
+
+	public String toString() {
+	    return this.url + " " + this.weight;
+	}
+    }
+
+    /** Moves the average held in 'average' a step towards 'sample'. */
+    private static void decay(AtomicLong average, double sample) {
+	while (true) {
+	    final long bits = average.get();
+	    final double old = Double.longBitsToDouble(bits);
+	    final double next = old + DECAY * (sample - old);
+	    if (average.compareAndSet(bits, Double.doubleToLongBits(next)))
+		return;
+	}
+    }
+
+    /** The weight of each new sample in the averages. */
+    private static final double DECAY = 0.2;
+
+    /** The percentage of selections spread over all endpoints by weight. */
+    private static final int EXPLORE_PERCENT = 5;
+
+    private final Endpoint[] endpoints;
+
+    private final int totalWeight;
+}
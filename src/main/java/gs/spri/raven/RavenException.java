@@ -23,6 +23,15 @@ package gs.spri.raven;
 /**
  * An Exception thrown by RavenAuthenticator to indicate unsuccessful
  * authentication.
+ * <p>
+ * Failed authentications are an expected outcome, not a bug, so they record
+ * no stack trace. Failures whose message never varies are thrown as shared
+ * instances created by 'shared()'; the others are created by 'expected()'.
+ * Set the system property "gs.spri.raven.stack-traces" to "true" to record
+ * stack traces for these as well: shared instances are then copied before
+ * they are thrown, so that the stack trace shows where. RavenExceptions
+ * created with a public constructor, such as those wrapping an unexpected
+ * failure, always record a stack trace.
  * 
  * @author Matthew Lavy and Alistair Turnbull
  * @version 1.0, 31 August 2005
@@ -31,6 +40,13 @@ public class RavenException extends Exception {
 
     private static final long serialVersionUID = -7135272612559716224L;
 
+    /**
+     * 'true' if 'reuse()' copies shared instances, so that they have stack
+     * traces. Read once from the system property "gs.spri.raven.stack-traces".
+     */
+    private static final boolean STACK_TRACES = Boolean
+	    .getBoolean("gs.spri.raven.stack-traces");
+
     public RavenException() {
 	super();
     }
@@ -38,4 +54,54 @@ public class RavenException extends Exception {
     public RavenException(String msg) {
 	super(msg);
     }
+
+    /**
+     * Constructs a RavenException that records nothing about where it was
+     * created and cannot be modified, so that it can be thrown by any number
+     * of threads at once. Subclasses that use this constructor must override
+     * 'copy()'.
+     */
+    protected RavenException(String msg, boolean shared) {
+	super(msg, null, !shared, !shared);
+    }
+
+    /**
+     * Returns a new RavenException with message 'msg' for an expected failure,
+     * such as a rejected Token, which records a stack trace only if
+     * STACK_TRACES is set.
+     */
+    public static RavenException expected(String msg) {
+	return STACK_TRACES ? new RavenException(msg) : new RavenException(msg,
+		true);
+    }
+
+    /** Returns 'true' if expected failures should record stack traces. */
+    static boolean stackTraces() {
+	return STACK_TRACES;
+    }
+
+    /**
+     * Returns a RavenException with message 'msg' to be kept in a constant and
+     * thrown with 'reuse()'.
+     */
+    public static RavenException shared(String msg) {
+	return new RavenException(msg, true);
+    }
+
+    /**
+     * Returns this RavenException, ready to be thrown. If STACK_TRACES is set,
+     * returns a copy instead, so that the stack trace shows where it was
+     * thrown.
+     */
+    public final RavenException reuse() {
+	return STACK_TRACES ? this.copy() : this;
+    }
+
+    /**
+     * Returns a new RavenException of the same class and with the same message
+     * as this one. Used by 'reuse()'.
+     */
+    protected RavenException copy() {
+	return new RavenException(this.getMessage());
+    }
 }
@@ -0,0 +1,59 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+/**
+ * A RavenException that is thrown because a Token could not be verified in
+ * time: the VerificationService was already full. The Token itself may be
+ * perfectly good, and the client should be asked to try again later.
+ */
+public class RavenOverloadedException extends RavenException {
+
+    private static final long serialVersionUID = -3321865902738061548L;
+
+    public RavenOverloadedException() {
+	super();
+    }
+
+    public RavenOverloadedException(String msg) {
+	super(msg);
+    }
+
+    /**
+     * Constructs a RavenOverloadedException that can be thrown repeatedly;
+     * see 'RavenException.shared()'.
+     */
+    protected RavenOverloadedException(String msg, boolean shared) {
+	super(msg, shared);
+    }
+
+    /**
+     * Returns a RavenOverloadedException with message 'msg' to be kept in a
+     * constant and thrown with 'reuse()'.
+     */
+    public static RavenOverloadedException shared(String msg) {
+	return new RavenOverloadedException(msg, true);
+    }
+
+    protected RavenException copy() {
+	return new RavenOverloadedException(this.getMessage());
+    }
+}
@@ -0,0 +1,450 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * The authentication state of one session, independent of any web framework.
+ * An adapter for a particular framework keeps one RavenSession per session of
+ * its own, and for each request:
+ * <ul>
+ * <li>If the request is the callback from Raven, passes its query string to
+ * 'receiveResponse()' and redirects the browser to the URL returned.
+ * <li>Otherwise, if the request needs authentication, calls 'authenticate()'
+ * or 'authenticateAsync()'. If the answer is 'false', it builds a Request
+ * whose URL is that of the callback, passes it to 'sendRequest()', and
+ * redirects the browser to the URL returned.
+ * </ul>
+ * Several requests in the same session may run concurrently, so the state is
+ * an immutable snapshot which is only ever replaced with 'compareAndSet()'.
+ * RavenSession is thread-safe.
+ */
+public class RavenSession {
+
+    /** Used to validate tokens, and to read the time. */
+    private final Authenticator auth;
+
+    /** The Raven servers, and how well each is behaving. */
+    private final RavenEndpoints endpoints;
+
+    /** Where to validate tokens, or 'null' to validate them inline. */
+    private volatile VerificationService verificationService = null;
+
+    /** Where to look up Attributes, or 'null' if there is nowhere. */
+    private volatile Enricher enricher = null;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(
+	    State.EMPTY);
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    private static final RavenException NO_REQUEST = RavenException
+	    .shared("No request specified!");
+    private static final RavenException NO_REQUEST_MEMORY = RavenException
+	    .shared("No memory of an authentication request");
+    private static final RavenException BAD_RESPONSE_ENCODING = RavenException
+	    .shared("WLS-Response is badly URL-encoded");
+    private static final RavenException NO_RESPONSE = RavenException
+	    .shared("Entire WLS-Response is missing");
+
+    /**
+     * Constructs a RavenSession which validates tokens with 'auth', and sends
+     * users to whichever of 'endpoints' is currently performing best. Both
+     * should be shared by the RavenSessions of every session.
+     */
+    public RavenSession(Authenticator auth, RavenEndpoints endpoints) {
+	this.auth = auth;
+	this.endpoints = endpoints;
+    }
+
+    /**
+     * Makes 'authenticate()' and 'authenticateAsync()' validate tokens on the
+     * bounded threads of 'service' rather than on the calling thread. If the
+     * service is full, they fail with a RavenOverloadedException and keep the
+     * token for a later attempt. 'null' restores inline validation.
+     */
+    public void setVerificationService(VerificationService service) {
+	this.verificationService = service;
+    }
+
+    /**
+     * Makes every successful validation start a lookup of the principal's
+     * Attributes with 'enricher', so that they are usually ready by the time
+     * 'getAttributes()' is called. 'null' disables lookups.
+     */
+    public void setEnricher(Enricher enricher) {
+	this.enricher = enricher;
+    }
+
+    /**
+     * Returns 'true' if a Request has been sent to Raven, so that a response
+     * can be received.
+     */
+    public boolean isExpectingResponse() {
+	return this.state.get().validator != null;
+    }
+
+    /**
+     * Receives a response from Raven. 'query' is the query string of the
+     * callback request, containing the WLS-Response parameter. The Token is
+     * kept to be validated by the next call to 'authenticate()'. Returns the
+     * URL that the user originally requested, to which the browser should be
+     * redirected.
+     *
+     * @throws RavenException
+     *             if no Request has been sent, or the response is missing,
+     *             malformed, or exceeds the Authenticator's ResponseLimits.
+     */
+    public String receiveResponse(String query) throws RavenException {
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.INTERCEPT);
+	try {
+	    final State s = this.receive(query);
+	    span.end(s.token.kid, s.token.status, null);
+	    return s.requestedURL;
+	} catch (RavenException xoov) {
+	    span.end(null, 0, xoov.getMessage());
+	    throw xoov;
+	}
+    }
+
+    /** The work of 'receiveResponse()'. Returns the new State. */
+    private State receive(String query) throws RavenException {
+	if (this.state.get().validator == null)
+	    throw NO_REQUEST_MEMORY.reuse();
+	if (query != null
+		&& query.length() > this.auth.getLimits().getMaxQueryLength())
+	    throw ResponseLimits.QUERY_TOO_LONG.reuse();
+	// Raven always redirects back with a GET, so the response is in the
+	// query string; avoid making the container decode every parameter.
+	final String p;
+	try {
+	    p = Util.queryParameter(query, "WLS-Response");
+	} catch (IllegalArgumentException xoov) {
+	    throw BAD_RESPONSE_ENCODING.reuse();
+	}
+	if (p == null)
+	    throw NO_RESPONSE.reuse();
+	final Token t;
+	try {
+	    t = this.auth.parseToken(p);
+	} catch (RavenException xoov) {
+	    final State claimed = this.claimPendingRedirect();
+	    if (claimed != null)
+		claimed.endpoint.recordFailure();
+	    throw xoov;
+	}
+	State s;
+	State next;
+	do {
+	    s = this.state.get();
+	    // A concurrent callback may have validated its Token, and dropped
+	    // the Request, since the check above.
+	    if (s.validator == null)
+		throw NO_REQUEST_MEMORY.reuse();
+	    next = s.withToken(t);
+	} while (!this.state.compareAndSet(s, next));
+	if (s.endpoint != null)
+	    s.endpoint.recordSuccess();
+	return next;
+    }
+
+    /**
+     * Makes 'request' the Request to which the next response from Raven must
+     * correspond, and returns the URL of the Raven server to which the
+     * browser should be redirected. 'requestedURL' is the URL that the user
+     * asked for, to be returned by 'receiveResponse()'. Any Token that has
+     * arrived meanwhile is kept.
+     */
+    public String sendRequest(Request request, String requestedURL) {
+	final Authenticator.Validator validator = this.auth.compile(request);
+	final RavenEndpoints.Endpoint endpoint = this.endpoints.select();
+	State s;
+	do {
+	    s = this.state.get();
+	} while (!this.state.compareAndSet(s, new State(requestedURL,
+		validator, s.token, endpoint, s.identity)));
+	// A redirect that never came back says nothing about its endpoint:
+	// the user may have closed the window, or be slow to log in.
+	return endpoint.url + "?" + request.toQString();
+    }
+
+    /**
+     * Returns 'true' if the user is authenticated at 'when', in milliseconds
+     * since the epoch, validating the Token most recently received if
+     * necessary. Returns 'false' if the user must be sent to Raven, because
+     * there is no Token or it has expired. With a VerificationService, the
+     * calling thread waits while the Token is verified; see
+     * 'authenticateAsync()' for a call that does not.
+     *
+     * @throws RavenAuthenticationException
+     *             if Raven reported that authentication failed.
+     * @throws RavenOverloadedException
+     *             if the VerificationService is full. The Token is kept.
+     * @throws RavenException
+     *             if the Token is not valid.
+     */
+    public boolean authenticate(long when) throws RavenException {
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.HANDLE);
+	final State s = this.state.get();
+	try {
+	    final boolean ans = this.authenticate(s, when);
+	    span.end(s.kid(), s.status(), null);
+	    return ans;
+	} catch (RavenException xoov) {
+	    span.end(s.kid(), s.status(), xoov.getMessage());
+	    throw xoov;
+	}
+    }
+
+    private boolean authenticate(State s, long when) throws RavenException {
+	if (s.identity != null && s.identity.isCurrent(when))
+	    return true;
+	if (s.token == null || !s.token.isCurrent(when))
+	    return false;
+	try {
+	    final VerificationService v = this.verificationService;
+	    if (v == null) {
+		s.validator.validate(s.token);
+	    } else {
+		// The pool thread is not recording, so time the wait here.
+		final long started = SlowAuthLog.start();
+		try {
+		    v.validate(s.validator, s.token);
+		} finally {
+		    SlowAuthLog.record(SlowAuthLog.Phase.VERIFY, started);
+		}
+	    }
+	} catch (RavenException xoov) {
+	    this.settle(s, xoov);
+	    throw xoov;
+	}
+	this.settle(s, null);
+	return true;
+    }
+
+    /**
+     * As 'authenticate()', but never waits for a signature to be verified.
+     * If one must be, it is verified by the VerificationService, and the
+     * future completes on one of its threads. Without a VerificationService,
+     * the signature is verified on the calling thread. This is the method to
+     * call from an event loop, with a VerificationService whose 'maxWait' is
+     * zero so that admission never waits either.
+     */
+    public CompletableFuture<Boolean> authenticateAsync(long when) {
+	final State s = this.state.get();
+	final VerificationService v = this.verificationService;
+	if (v == null || s.identity != null && s.identity.isCurrent(when)
+		|| s.token == null || !s.token.isCurrent(when)) {
+	    final CompletableFuture<Boolean> ans =
+		    new CompletableFuture<Boolean>();
+	    try {
+		ans.complete(Boolean.valueOf(this.authenticate(when)));
+	    } catch (RavenException xoov) {
+		ans.completeExceptionally(xoov);
+	    }
+	    return ans;
+	}
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.HANDLE);
+	return v.verify(s.validator, s.token).handle(
+		new BiFunction<Token, Throwable, Boolean>() {
+		    public Boolean apply(Token t, Throwable failure) {
+			settle(s, failure);
+			span.end(s.kid(), s.status(), failure == null ? null
+				: failure.getMessage());
+			if (failure != null)
+			    throw new CompletionException(failure);
+			return Boolean.TRUE;
+		    }
+		});
+    }
+
+    /**
+     * Records the outcome of validating 's.token': 'null' for success,
+     * otherwise the reason for failure. On success, keeps only the compact
+     * Identity, dropping the Token and the Request; but if another Token has
+     * arrived meanwhile, it is kept with its Request, for a later call to
+     * validate. On failure, the Token is dropped only if it is still current.
+     */
+    private void settle(State s, Throwable failure) {
+	if (failure == null) {
+	    final Identity identity = Identity.of(s.token);
+	    State current;
+	    State next;
+	    do {
+		current = this.state.get();
+		next = current.token == s.token ? new State(null, null, null,
+			null, identity) : current.withIdentity(identity);
+	    } while (!this.state.compareAndSet(current, next));
+	    final Enricher e = this.enricher;
+	    if (e != null)
+		e.lookup(s.token.principal);
+	} else if (failure instanceof RavenException
+		&& !(failure instanceof RavenOverloadedException))
+	    // Only discard the token we examined; a concurrent request may
+	    // already have replaced it with a good one. An overloaded service
+	    // did not examine it, so keep it for the next attempt.
+	    this.state.compareAndSet(s, s.withToken(null));
+    }
+
+    /**
+     * Returns 'true' if 'getIdentity()' or 'getToken()' exists and has not
+     * expired by 'when', in milliseconds since the epoch.
+     */
+    public boolean isTokenCurrent(long when) {
+	final State s = this.state.get();
+	if (s.identity != null && s.identity.isCurrent(when))
+	    return true;
+	return s.token == null ? false : s.token.isCurrent(when);
+    }
+
+    /**
+     * If 'getToken()' is valid, or has already been validated, this method
+     * does nothing. Otherwise, it throws a RavenException identifying the
+     * problem.
+     */
+    public void checkTokenValid() throws RavenException {
+	final State s = this.state.get();
+	if (s.identity != null && s.token == null)
+	    return;
+	if (s.validator == null)
+	    throw NO_REQUEST.reuse();
+	s.validator.validate(s.token);
+    }
+
+    /**
+     * Returns the authentication token most recently received from the Raven
+     * server, if it has not yet been validated.
+     */
+    public Token getToken() {
+	return this.state.get().token;
+    }
+
+    /**
+     * Returns the identity established by the most recently validated Token,
+     * or 'null' if there is none. The identity may have expired; check with
+     * 'Identity.isCurrent()'.
+     */
+    public Identity getIdentity() {
+	return this.state.get().identity;
+    }
+
+    /**
+     * Returns the Attributes of the principal of 'getIdentity()', from the
+     * Enricher. Returns 'null' if there is no identity, or no Enricher.
+     */
+    public CompletableFuture<Attributes> getAttributes() {
+	final Identity identity = this.getIdentity();
+	final Enricher e = this.enricher;
+	if (identity == null || e == null)
+	    return null;
+	return e.lookup(identity.getPrincipal());
+    }
+
+    /**
+     * Atomically forgets the pending redirect, if any. Returns the State that
+     * held it, or 'null' if there was none.
+     */
+    private State claimPendingRedirect() {
+	State s;
+	do {
+	    s = this.state.get();
+	    if (s.endpoint == null)
+		return null;
+	} while (!this.state.compareAndSet(s, s.withToken(s.token)));
+	return s;
+    }
+
+    /**
+     * An immutable snapshot of the authentication state of a session.
+     */
+    private static final class State {
+	static final State EMPTY = new State(null, null, null, null, null);
+
+	State(String requestedURL, Authenticator.Validator validator,
+		Token token, RavenEndpoints.Endpoint endpoint,
+		Identity identity) {
+	    this.requestedURL = requestedURL;
+	    this.validator = validator;
+	    this.token = token;
+	    this.endpoint = endpoint;
+	    this.identity = identity;
+	}
+
+	/**
+	 * During the authentication protocol, a record of the URL that the
+	 * user originally requested. This is used purely for cosmetic purposes.
+	 */
+	final String requestedURL;
+
+	/**
+	 * The validation pipeline compiled from the Request most recently sent
+	 * to the Raven server, or 'null'.
+	 */
+	final Authenticator.Validator validator;
+
+	/**
+	 * The Token most recently received from the Raven server, or 'null'.
+	 */
+	final Token token;
+
+	/**
+	 * The endpoint to which the user was most recently redirected, if no
+	 * callback has arrived since, otherwise 'null'.
+	 */
+	final RavenEndpoints.Endpoint endpoint;
+
+	/**
+	 * The identity established by the most recently validated Token, or
+	 * 'null'. Once a Token has been validated, it and the Request are
+	 * dropped and only this is kept.
+	 */
+	final Identity identity;
+
+	/** Returns the kid of 'token' or 'identity', or 'null'. */
+	String kid() {
+	    if (this.token != null)
+		return this.token.kid;
+	    return this.identity == null ? null : this.identity.getKid();
+	}
+
+	/** Returns the status of 'token' or 'identity', or 0. */
+	int status() {
+	    if (this.token != null)
+		return this.token.status;
+	    return this.identity == null ? 0 : 200;
+	}
+
+	/** Returns this State with 'i' as its identity. */
+	State withIdentity(Identity i) {
+	    return new State(this.requestedURL, this.validator, this.token,
+		    this.endpoint, i);
+	}
+
+	/** Returns this State with 't' as its token and no pending redirect. */
+	State withToken(Token t) {
+	    return new State(this.requestedURL, this.validator, t, null,
+		    this.identity);
+	}
+    }
+}
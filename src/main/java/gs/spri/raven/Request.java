@@ -40,7 +40,21 @@ public class Request {
      *            a value for the 'url' field.
      */
     public Request(String url) {
+	this(url, Clock.SYSTEM);
+    }
+
+    /**
+     * Constructs a Request as 'Request(String)' does, reading 'clock' for the
+     * value of 'date'.
+     * 
+     * @param url
+     *            a value for the 'url' field.
+     * @param clock
+     *            the Clock giving the current time.
+     */
+    public Request(String url, Clock clock) {
 	this.url = url;
+	this.date = new Date(clock.currentTimeMillis());
 	this.aauth.add("pwd");
     }
 
@@ -141,10 +155,10 @@ public class Request {
      * and the WLS.
      * <p>
      * This can be converted to the format required by Raven using
-     * 'encodeDate()' and back again using 'decodeDate()'. Default value = 'new
-     * Date()'.
+     * 'encodeDate()' and back again using 'decodeDate()'. Default value is the
+     * time at which this Request was constructed.
      */
-    public final Date date = new Date();
+    public final Date date;
 
     /**
      * [OPTIONAL] A text token. If this parameter is 'yes' and the outcome of
@@ -163,11 +177,15 @@ public class Request {
      * component of a URL.
      */
     public String toQString() {
-	final StringBuffer ans = new StringBuffer();
-	ans.append("ver=").append(Util.urlEncode(this.ver));
-	ans.append("&").append("url=").append(Util.urlEncode(this.url));
-	if (this.desc != null)
-	    ans.append("&").append("desc=").append(Util.urlEncode(this.desc));
+	final StringBuilder ans = new StringBuilder(128 + this.url.length());
+	ans.append("ver=");
+	Util.urlEncode(this.ver, ans);
+	ans.append("&").append("url=");
+	Util.urlEncode(this.url, ans);
+	if (this.desc != null) {
+	    ans.append("&").append("desc=");
+	    Util.urlEncode(this.desc, ans);
+	}
 	if (this.aauth != null) {
 	    ans.append("&").append("aauth=");
 	    String sep = "";
@@ -180,15 +198,17 @@ public class Request {
 	    ans.append("&").append("iact=");
 	    ans.append(this.iact.booleanValue() ? "yes" : "no");
 	}
-	if (this.msg != null)
-	    ans.append("&").append("msg=").append(Util.urlEncode(this.msg));
-	if (this.params != null)
-	    ans.append("&").append("params=")
-		    .append(Util.urlEncode(this.params));
+	if (this.msg != null) {
+	    ans.append("&").append("msg=");
+	    Util.urlEncode(this.msg, ans);
+	}
+	if (this.params != null) {
+	    ans.append("&").append("params=");
+	    Util.urlEncode(this.params, ans);
+	}
 	if (this.date != null) {
 	    ans.append("&").append("date=");
-	    ans.append(Util.urlEncode(Util.RAVEN_DATE_FORMAT
-		    .format(this.date)));
+	    Util.urlEncode(Util.formatRavenDate(this.date.getTime()), ans);
 	}
 	if (this.fail)
 	    ans.append("&").append("fail=yes");
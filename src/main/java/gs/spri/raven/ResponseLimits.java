@@ -0,0 +1,151 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+/**
+ * Upper limits on the size of the input accepted from the callback request,
+ * which anyone can send. A WLS-Response is checked against them in a single
+ * scan before anything proportional to its length is allocated, so an
+ * oversized response costs no more than a well-formed one. Immutable.
+ */
+public final class ResponseLimits {
+
+    /**
+     * The limits used unless others are given: generous for any response
+     * Raven sends, but far below what a container will accept.
+     */
+    public static final ResponseLimits DEFAULT = new ResponseLimits(8192,
+	    4096, 1024, 256);
+
+    private final int maxResponseLength;
+    private final int maxFieldLength;
+    private final int maxSignatureLength;
+    private final int maxParameters;
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    static final RavenException RESPONSE_TOO_LONG = RavenException
+	    .shared("Response is too long");
+    static final RavenException FIELD_TOO_LONG = RavenException
+	    .shared("Response field is too long");
+    static final RavenException SIGNATURE_TOO_LONG = RavenException
+	    .shared("Signature is too long");
+    static final RavenException QUERY_TOO_LONG = RavenException
+	    .shared("Query string is too long");
+
+    /**
+     * Constructs a ResponseLimits.
+     *
+     * @param maxResponseLength
+     *            the longest WLS-Response accepted, in characters.
+     * @param maxFieldLength
+     *            the longest field of a WLS-Response, other than the
+     *            signature, in characters before '%' decoding.
+     * @param maxSignatureLength
+     *            the longest signature field, in characters before decoding.
+     * @param maxParameters
+     *            the most HTTP parameters kept with a request while the user
+     *            authenticates.
+     * @throws IllegalArgumentException
+     *             if any limit is not positive.
+     */
+    public ResponseLimits(int maxResponseLength, int maxFieldLength,
+	    int maxSignatureLength, int maxParameters) {
+	if (maxResponseLength <= 0 || maxFieldLength <= 0
+		|| maxSignatureLength <= 0 || maxParameters <= 0)
+	    throw new IllegalArgumentException("Bad response limits");
+	this.maxResponseLength = maxResponseLength;
+	this.maxFieldLength = maxFieldLength;
+	this.maxSignatureLength = maxSignatureLength;
+	this.maxParameters = maxParameters;
+    }
+
+    /** Returns the longest WLS-Response accepted, in characters. */
+    public int getMaxResponseLength() {
+	return this.maxResponseLength;
+    }
+
+    /** Returns the longest field other than the signature, in characters. */
+    public int getMaxFieldLength() {
+	return this.maxFieldLength;
+    }
+
+    /** Returns the longest signature field, in characters. */
+    public int getMaxSignatureLength() {
+	return this.maxSignatureLength;
+    }
+
+    /**
+     * Returns the most HTTP parameters kept with a request while the user
+     * authenticates.
+     */
+    public int getMaxParameters() {
+	return this.maxParameters;
+    }
+
+    /**
+     * Returns the longest query string accepted by the callback: room for a
+     * WLS-Response in which every character is '%' escaped, and a field's
+     * worth of anything else.
+     */
+    public int getMaxQueryLength() {
+	return (int) Math.min(Integer.MAX_VALUE, 3L * this.maxResponseLength
+		+ this.maxFieldLength);
+    }
+
+    /**
+     * Scans 'ers' once, checking it against these limits, and returns the
+     * positions of the 12 '!' characters that separate its 13 fields.
+     *
+     * @throws RavenException
+     *             if 'ers' is too long, has the wrong number of fields, or a
+     *             field is too long.
+     */
+    int[] scan(String ers) throws RavenException {
+	final int length = ers.length();
+	if (length > this.maxResponseLength)
+	    throw RESPONSE_TOO_LONG.reuse();
+	final int[] ans = new int[12];
+	int count = 0;
+	int start = 0;
+	for (int pos = 0; pos < length; pos++) {
+	    if (ers.charAt(pos) != '!')
+		continue;
+	    if (count == ans.length)
+		throw Token.BAD_FIELD_COUNT.reuse();
+	    if (pos - start > this.maxFieldLength)
+		throw FIELD_TOO_LONG.reuse();
+	    ans[count++] = pos;
+	    start = pos + 1;
+	}
+	if (count != ans.length)
+	    throw Token.BAD_FIELD_COUNT.reuse();
+	if (length - start > this.maxSignatureLength)
+	    throw SIGNATURE_TOO_LONG.reuse();
+	return ans;
+    }
+
+    public String toString() {
+	return "ResponseLimits[response=" + this.maxResponseLength + ", field="
+		+ this.maxFieldLength + ", signature="
+		+ this.maxSignatureLength + ", parameters="
+		+ this.maxParameters + "]";
+    }
+}
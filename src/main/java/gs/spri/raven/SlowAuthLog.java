@@ -0,0 +1,249 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent requests whose authentication took longer than a
+ * threshold, each with a breakdown of where the time went, for tail-latency
+ * forensics without logging every request.
+ * <p>
+ * The thread handling a request calls 'begin()' and 'end()' around its
+ * authentication. In between, the library adds the time spent in each Phase
+ * on that thread. Requests at or above the threshold are copied into a
+ * fixed-size ring buffer, overwriting the oldest; the buffer is written
+ * without locks, and each request allocates only its array of Phase times.
+ * Usage:
+ *
+ * <pre>
+ * final long start = log.begin();
+ * ...
+ * log.end(start, "callback", kid, reason);
+ * </pre>
+ *
+ * Until a SlowAuthLog is constructed, each Phase costs one volatile read.
+ * That switch is global to the copy of this class, not to a log: once any
+ * SlowAuthLog has been constructed, every Phase on every thread reads the
+ * time, even where no log is recording the request and after the log has
+ * been discarded, though only the requests between 'begin()' and 'end()'
+ * keep the results. Thread-safe.
+ */
+public final class SlowAuthLog {
+
+    /** The steps whose time is recorded separately. */
+    public enum Phase {
+	/** Finding or creating the session state. */
+	SESSION,
+	/** 'Authenticator.parseToken()'. */
+	PARSE,
+	/** Looking up the certificate for the kid in the key store. */
+	KEY_LOOKUP,
+	/** Checking the signature, or waiting for a VerificationService to. */
+	VERIFY,
+	/** Writing a redirect to Raven or back to the requested URL. */
+	REDIRECT
+    }
+
+    /** One captured request. Immutable. */
+    public static final class Entry {
+	Entry(long sequence, long time, String kind, String kid,
+		String reason, long total, long[] phases) {
+	    this.sequence = sequence;
+	    this.time = time;
+	    this.kind = kind;
+	    this.kid = kid;
+	    this.reason = reason;
+	    this.total = total;
+	    this.phases = phases;
+	}
+
+	private final long sequence;
+	private final long[] phases;
+
+	/**
+	 * When the request ended, in milliseconds since the epoch, by the
+	 * log's Clock.
+	 */
+	public final long time;
+
+	/** What the request was, as passed to 'end()'. */
+	public final String kind;
+
+	/** The kid of the Token involved, or 'null'. */
+	public final String kid;
+
+	/** Why authentication failed, or 'null' if it did not. */
+	public final String reason;
+
+	/** The time from 'begin()' to 'end()', in nanoseconds. */
+	public final long total;
+
+	/** Returns the time spent in 'phase', in nanoseconds. */
+	public long getNanos(Phase phase) {
+	    return this.phases[phase.ordinal()];
+	}
+
+	/**
+	 * Returns a tab-separated line: the time, kind, kid, total and each
+	 * Phase in microseconds, and the reason.
+	 */
+	public String toString() {
+	    final StringBuilder ans = new StringBuilder(128);
+	    ans.append(Util.formatRavenDate(this.time)).append('\t')
+		    .append(this.kind).append('\t')
+		    .append(this.kid == null ? "-" : this.kid).append('\t')
+		    .append(this.total / 1000L);
+	    for (long p : this.phases)
+		ans.append('\t').append(p / 1000L);
+	    return ans.append('\t')
+		    .append(this.reason == null ? "-" : this.reason).toString();
+	}
+    }
+
+    /**
+     * 'true' once any SlowAuthLog exists. Never reset, as a log has no end to
+     * its life that could reset it.
+     */
+    private static volatile boolean enabled = false;
+
+    /**
+     * The Phase times of the request in progress on each thread, if any. A
+     * plain ThreadLocal, removed by 'end()', so that no value or subclass of
+     * this class outlives a request on a container's pooled threads and pins
+     * the web application's class loader.
+     */
+    private static final ThreadLocal<long[]> CURRENT =
+	    new ThreadLocal<long[]>();
+
+    private static final int PHASES = Phase.values().length;
+
+    private final long threshold;
+    private final Clock clock;
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Constructs a SlowAuthLog keeping the last 'capacity' requests that took
+     * at least 'thresholdMillis' milliseconds, stamped by Clock.SYSTEM.
+     */
+    public SlowAuthLog(int capacity, long thresholdMillis) {
+	this(capacity, thresholdMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * Constructs a SlowAuthLog keeping the last 'capacity' requests that took
+     * at least 'thresholdMillis' milliseconds, stamped with the time by
+     * 'clock'. Durations are measured with 'System.nanoTime()' regardless.
+     */
+    public SlowAuthLog(int capacity, long thresholdMillis, Clock clock) {
+	if (capacity <= 0 || thresholdMillis < 0)
+	    throw new IllegalArgumentException("Bad slow log limits");
+	this.ring = new AtomicReferenceArray<Entry>(capacity);
+	this.threshold = thresholdMillis * 1000000L;
+	this.clock = clock;
+	enabled = true;
+    }
+
+    /**
+     * Returns a start time for 'record()', or 0 if nothing is being recorded.
+     */
+    public static long start() {
+	return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Adds the time since 'start', as returned by 'start()', to 'phase' of the
+     * request in progress on this thread, if there is one.
+     */
+    public static void record(Phase phase, long start) {
+	if (start == 0L)
+	    return;
+	final long[] current = CURRENT.get();
+	if (current != null)
+	    current[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * Starts recording the Phases of a request on this thread. Returns its
+     * start time, to pass to 'end()'.
+     */
+    public long begin() {
+	CURRENT.set(new long[PHASES]);
+	return System.nanoTime();
+    }
+
+    /**
+     * Stops recording the request on this thread, and captures it if it took
+     * at least the threshold since 'start'. A 'kind' of 'null' discards it.
+     * Does nothing if the request has already ended.
+     *
+     * @param kind
+     *            what the request was, for example "callback".
+     * @param kid
+     *            the kid of the Token involved, or 'null'.
+     * @param reason
+     *            why authentication failed, or 'null'.
+     */
+    public void end(long start, String kind, String kid, String reason) {
+	final long total = System.nanoTime() - start;
+	final long[] current = CURRENT.get();
+	if (current == null)
+	    return;
+	CURRENT.remove();
+	if (kind == null || total < this.threshold)
+	    return;
+	final long sequence = this.next.getAndIncrement();
+	this.ring.set((int) (sequence % this.ring.length()), new Entry(
+		sequence, this.clock.currentTimeMillis(), kind, kid, reason, total,
+		current));
+    }
+
+    /** Returns the captured requests, oldest first. */
+    public List<Entry> snapshot() {
+	final List<Entry> ans = new ArrayList<Entry>(this.ring.length());
+	for (int i = 0; i < this.ring.length(); i++) {
+	    final Entry e = this.ring.get(i);
+	    if (e != null)
+		ans.add(e);
+	}
+	Collections.sort(ans, new Comparator<Entry>() {
+	    public int compare(Entry a, Entry b) {
+		return Long.compare(a.sequence, b.sequence);
+	    }
+	});
+	return ans;
+    }
+
+    /** Returns the header line matching 'Entry.toString()'. */
+    public static String header() {
+	final StringBuilder ans = new StringBuilder("time\tkind\tkid\ttotal-us");
+	for (Phase p : Phase.values())
+	    ans.append('\t').append(p.name().toLowerCase().replace('_', '-'))
+		    .append("-us");
+	return ans.append("\treason").toString();
+    }
+}
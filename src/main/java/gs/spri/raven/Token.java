@@ -22,7 +22,6 @@ package gs.spri.raven;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.text.ParseException;
 import java.util.Collections;
 import java.util.Date;
@@ -49,13 +48,42 @@ public class Token {
      * This constructor does <em>not</em> validate the response or check the
      * cryptographic signature.
      * 
-     * @throws IllegalArgumentException
-     *             if 'ers' does not have the correct format.
+     * @throws RavenException
+     *             if 'ers' does not have the correct format or exceeds
+     *             'ResponseLimits.DEFAULT'.
      */
     public Token(String ers) throws RavenException {
-	final String[] fields = (ers + "!END").split("!");
-	if (fields.length != 14)
-	    throw new RavenException("Incorrect number of fields");
+	this(ers, Clock.SYSTEM);
+    }
+
+    /**
+     * Constructs a Token as 'Token(String)' does, reading 'clock' to convert
+     * the 'life' field into 'lifeEnd'.
+     * 
+     * @throws RavenException
+     *             if 'ers' does not have the correct format or exceeds
+     *             'ResponseLimits.DEFAULT'.
+     */
+    public Token(String ers, Clock clock) throws RavenException {
+	this(ers, clock, ResponseLimits.DEFAULT);
+    }
+
+    /**
+     * Constructs a Token as 'Token(String, Clock)' does, refusing any 'ers'
+     * that exceeds 'limits'. The limits are checked in one scan of 'ers'
+     * before any field is copied or decoded.
+     * 
+     * @throws RavenException
+     *             if 'ers' does not have the correct format or exceeds
+     *             'limits'.
+     */
+    public Token(String ers, Clock clock, ResponseLimits limits)
+	    throws RavenException {
+	final int[] bangs = limits.scan(ers);
+	final String[] fields = new String[13];
+	for (int i = 0; i < fields.length; i++)
+	    fields[i] = ers.substring(i == 0 ? 0 : bangs[i - 1] + 1,
+		    i == bangs.length ? ers.length() : bangs[i]);
 	this.ver = Util.decode(fields[0]);
 	try {
 	    final String s = Util.decode(fields[1]);
@@ -63,21 +91,21 @@ public class Token {
 		throw new NumberFormatException();
 	    this.status = Integer.parseInt(s);
 	} catch (NumberFormatException e) {
-	    throw new RavenException("Bad status code");
+	    throw BAD_STATUS.reuse();
 	}
 	this.msg = Util.decode(fields[2]);
 	try {
-	    this.issue = Util.RAVEN_DATE_FORMAT.parse(Util.decode(fields[3]));
+	    this.issue = new Date(Util.parseRavenDate(Util.decode(fields[3])));
 	} catch (ParseException e) {
-	    throw new RavenException("Bad issue time");
+	    throw BAD_ISSUE.reuse();
 	}
 	this.id = Util.decode(fields[4]);
 	if ("".equals(this.id))
-	    throw new RavenException("Missing ID");
+	    throw NO_ID.reuse();
 	try {
-	    this.url = new URL(Util.decode(fields[5])).toString();
+	    this.url = Util.normaliseURL(Util.decode(fields[5]));
 	} catch (MalformedURLException e) {
-	    throw new RavenException("Bad URL");
+	    throw BAD_URL.reuse();
 	}
 	this.principal = Util.decode(fields[6]);
 	this.auth = Util.decode(fields[7]);
@@ -87,29 +115,28 @@ public class Token {
 	while (st.hasMoreTokens())
 	    zsso.add(st.nextToken());
 	this.sso = Collections.unmodifiableSet(zsso);
+	this.ssoMask = AuthTypes.mask(zsso);
 	try {
 	    final String s = Util.decode(fields[9]);
 	    if ("".equals(s)) {
-		this.lifeEnd = null;
+		this.lifeEnd = NO_LIFE_END;
 	    } else {
 		final int life = Integer.parseInt(Util.decode(s));
-		this.lifeEnd = new Date(System.currentTimeMillis() + 1000L
-			* life);
+		this.lifeEnd = clock.currentTimeMillis() + 1000L * life;
 	    }
 	} catch (NumberFormatException e) {
-	    throw new RavenException("Bad life");
+	    throw BAD_LIFE.reuse();
 	}
 	this.params = Util.decode(fields[10]);
 	this.kid = Util.decode(fields[11]);
 	try {
 	    this.sig = Util.decode64(Util.decode(fields[12]));
 	} catch (ParseException e) {
-	    throw new RavenException("Problem decoding sig: " + e.getMessage());
+	    throw RavenException.expected("Problem decoding sig: "
+		    + e.getMessage());
 	}
-	final int sigIndex = ers.lastIndexOf('!');
-	final int kidIndex = ers.lastIndexOf('!', sigIndex - 1);
 	try {
-	    this.signedString = ers.substring(0, kidIndex).getBytes("US-ASCII");
+	    this.signedString = ers.substring(0, bangs[10]).getBytes("US-ASCII");
 	} catch (UnsupportedEncodingException xoov) {
 	    throw new RuntimeException("US-ASCII not supported. They say.");
 	}
@@ -148,7 +175,7 @@ public class Token {
 	return (Date) this.issue.clone();
     }
 
-    private final Date issue;
+    final Date issue;
 
     /**
      * [REQUIRED] An identifier for this response. 'id', combined with 'issue'
@@ -185,6 +212,9 @@ public class Token {
      */
     public final Set<String> sso;
 
+    /** The AuthTypes bits of 'sso'. */
+    final long ssoMask;
+
     /**
      * [OPTIONAL] If the user has established an authenticated 'session' with
      * the WLS, this indicates the remaining life (in seconds) of that session.
@@ -199,10 +229,30 @@ public class Token {
      * convenient immutable Date object.
      */
     public final Date getLifeEnd() {
-	return (Date) this.lifeEnd.clone();
+	return this.lifeEnd == NO_LIFE_END ? null : new Date(this.lifeEnd);
     }
 
-    final Date lifeEnd;
+    /**
+     * The expiry time in milliseconds since the epoch, or 'NO_LIFE_END'.
+     */
+    final long lifeEnd;
+
+    /** The value of 'lifeEnd' when 'life' was absent. */
+    static final long NO_LIFE_END = Long.MAX_VALUE;
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    static final RavenException BAD_FIELD_COUNT = RavenException
+	    .shared("Incorrect number of fields");
+    private static final RavenException BAD_STATUS = RavenException
+	    .shared("Bad status code");
+    private static final RavenException BAD_ISSUE = RavenException
+	    .shared("Bad issue time");
+    private static final RavenException NO_ID = RavenException
+	    .shared("Missing ID");
+    private static final RavenException BAD_URL = RavenException
+	    .shared("Bad URL");
+    private static final RavenException BAD_LIFE = RavenException
+	    .shared("Bad life");
 
     /**
      * [REQUIRED to be a copy of the params parameter from the request].
@@ -254,7 +304,15 @@ public class Token {
      * Returns 'true' if 'this.getToken()' exists and has not expired by 'when'.
      */
     public boolean isCurrent(Date when) {
-	return lifeEnd == null || when.before(lifeEnd);
+	return this.isCurrent(when.getTime());
+    }
+
+    /**
+     * Returns 'true' if this Token has not expired by 'when', in milliseconds
+     * since the epoch.
+     */
+    public boolean isCurrent(long when) {
+	return when < this.lifeEnd;
     }
 
     final byte[] signedString;
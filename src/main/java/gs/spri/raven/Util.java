@@ -21,11 +21,19 @@
 package gs.spri.raven;
 
 import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.text.AttributedCharacterIterator;
 import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.TimeZone;
 
 /**
@@ -33,26 +41,432 @@ import java.util.TimeZone;
  */
 public abstract class Util {
 
-    /** The format in which Raven expresses dates. */
-    public static final DateFormat RAVEN_DATE_FORMAT = new SimpleDateFormat(
-	    "yyyyMMdd'T'HHmmss'Z'");
+    /**
+     * The format in which Raven expresses dates. Like every DateFormat this is
+     * not thread-safe; the library itself uses 'parseRavenDate()' and
+     * 'formatRavenDate()', which are. The underlying SimpleDateFormat, which
+     * is slow to create, is only created when this is first used, so that
+     * Util is cheap to initialise.
+     */
+    public static final DateFormat RAVEN_DATE_FORMAT = new RavenDateFormat();
 
-    static {
-	RAVEN_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+    /** Delegates to a SimpleDateFormat created on first use. */
+    private static final class RavenDateFormat extends DateFormat {
+	private static final long serialVersionUID = 1L;
+
+	private static final class Holder {
+	    static final SimpleDateFormat FORMAT = new SimpleDateFormat(
+		    "yyyyMMdd'T'HHmmss'Z'");
+	    static {
+		FORMAT.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+	    }
+	}
+
+	public StringBuffer format(Date date, StringBuffer toAppendTo,
+		FieldPosition fieldPosition) {
+	    return Holder.FORMAT.format(date, toAppendTo, fieldPosition);
+	}
+
+	public AttributedCharacterIterator formatToCharacterIterator(Object o) {
+	    return Holder.FORMAT.formatToCharacterIterator(o);
+	}
+
+	public Date parse(String source, ParsePosition pos) {
+	    return Holder.FORMAT.parse(source, pos);
+	}
+
+	public void setCalendar(Calendar calendar) {
+	    Holder.FORMAT.setCalendar(calendar);
+	}
+
+	public Calendar getCalendar() {
+	    return Holder.FORMAT.getCalendar();
+	}
+
+	public void setNumberFormat(NumberFormat numberFormat) {
+	    Holder.FORMAT.setNumberFormat(numberFormat);
+	}
+
+	public NumberFormat getNumberFormat() {
+	    return Holder.FORMAT.getNumberFormat();
+	}
+
+	public void setTimeZone(TimeZone zone) {
+	    Holder.FORMAT.setTimeZone(zone);
+	}
+
+	public TimeZone getTimeZone() {
+	    return Holder.FORMAT.getTimeZone();
+	}
+
+	public void setLenient(boolean lenient) {
+	    Holder.FORMAT.setLenient(lenient);
+	}
+
+	public boolean isLenient() {
+	    return Holder.FORMAT.isLenient();
+	}
+
+	public Object clone() {
+	    return Holder.FORMAT.clone();
+	}
+
+	public int hashCode() {
+	    return Holder.FORMAT.hashCode();
+	}
+
+	public boolean equals(Object o) {
+	    return o == this || Holder.FORMAT.equals(o);
+	}
+
+	private Object writeReplace() {
+	    return Holder.FORMAT.clone();
+	}
+    }
+
+    /**
+     * Parses a date in the format of 'RAVEN_DATE_FORMAT', e.g.
+     * "20140101T120000Z". Thread-safe, and allocates nothing.
+     * 
+     * @return the date in milliseconds since the epoch.
+     * @throws ParseException
+     *             if 's' is not a valid date in that format.
+     */
+    public static long parseRavenDate(String s) throws ParseException {
+	if (s.length() != 16 || s.charAt(8) != 'T' || s.charAt(15) != 'Z')
+	    throw new ParseException("Bad date: " + s, 0);
+	final int year = digits(s, 0, 4);
+	final int month = digits(s, 4, 2);
+	final int day = digits(s, 6, 2);
+	final int hour = digits(s, 9, 2);
+	final int minute = digits(s, 11, 2);
+	final int second = digits(s, 13, 2);
+	if (month < 1 || month > 12 || day < 1
+		|| day > daysInMonth(year, month) || hour > 23 || minute > 59
+		|| second > 59)
+	    throw new ParseException("Bad date: " + s, 0);
+	return ((daysFromCivil(year, month, day) * 24L + hour) * 60L + minute)
+		* 60000L + second * 1000L;
+    }
+
+    /**
+     * Formats 'millis', in milliseconds since the epoch, in the format of
+     * 'RAVEN_DATE_FORMAT'. Thread-safe.
+     */
+    public static String formatRavenDate(long millis) {
+	final long seconds = Math.floorDiv(millis, 1000L);
+	final long days = Math.floorDiv(seconds, 86400L);
+	final int secondOfDay = (int) (seconds - days * 86400L);
+	// Convert days since 1970-01-01 to a civil date.
+	final long z = days + 719468L;
+	final long era = Math.floorDiv(z, 146097L);
+	final int dayOfEra = (int) (z - era * 146097L);
+	final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+		- dayOfEra / 146096) / 365;
+	final int dayOfYear = dayOfEra
+		- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+	final int mp = (5 * dayOfYear + 2) / 153;
+	final int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+	final int month = mp < 10 ? mp + 3 : mp - 9;
+	final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+	final char[] ans = new char[16];
+	putDigits(ans, 0, 4, (int) year);
+	putDigits(ans, 4, 2, month);
+	putDigits(ans, 6, 2, day);
+	ans[8] = 'T';
+	putDigits(ans, 9, 2, secondOfDay / 3600);
+	putDigits(ans, 11, 2, secondOfDay / 60 % 60);
+	putDigits(ans, 13, 2, secondOfDay % 60);
+	ans[15] = 'Z';
+	return new String(ans);
+    }
+
+    /** Parses 'count' decimal digits of 's' starting at 'start'. */
+    private static int digits(String s, int start, int count)
+	    throws ParseException {
+	int ans = 0;
+	for (int i = start; i < start + count; i++) {
+	    final char c = s.charAt(i);
+	    if (c < '0' || c > '9')
+		throw new ParseException("Bad date: " + s, i);
+	    ans = ans * 10 + (c - '0');
+	}
+	return ans;
+    }
+
+    /** Writes 'value' as 'count' decimal digits into 'out' at 'start'. */
+    private static void putDigits(char[] out, int start, int count, int value) {
+	for (int i = start + count - 1; i >= start; i--) {
+	    out[i] = (char) ('0' + value % 10);
+	    value /= 10;
+	}
+    }
+
+    private static int daysInMonth(int year, int month) {
+	if (month == 2)
+	    return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29
+		    : 28;
+	return (month == 4 || month == 6 || month == 9 || month == 11) ? 30
+		: 31;
+    }
+
+    /** Returns the number of days from 1970-01-01 to the given date. */
+    private static long daysFromCivil(int year, int month, int day) {
+	final int y = month <= 2 ? year - 1 : year;
+	final int era = (y >= 0 ? y : y - 399) / 400;
+	final int yearOfEra = y - era * 400;
+	final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2)
+		/ 5 + day - 1;
+	final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+		+ dayOfYear;
+	return era * 146097L + dayOfEra - 719468L;
     }
 
     /**
-     * URL encode the supplied string.
+     * URL encode the supplied string. The result is the same as that of
+     * 'URLEncoder.encode(s, "UTF-8")', but 's' itself is returned if nothing
+     * needs escaping.
      * 
      * @param s
      * @return URLEncoded version of the string.
      */
     public static final String urlEncode(String s) {
-	try {
-	    return URLEncoder.encode(s, "UTF-8");
-	} catch (UnsupportedEncodingException zoov) {
-	    throw new RuntimeException("UTF-8 not supported. Apparently.");
+	final int length = s.length();
+	int pos = 0;
+	while (pos < length) {
+	    final char c = s.charAt(pos);
+	    if (c >= 128 || !URL_SAFE[c])
+		break;
+	    pos++;
+	}
+	if (pos == length)
+	    return s;
+	final StringBuilder ans = new StringBuilder(length + 16);
+	ans.append(s, 0, pos);
+	urlEncode(s, pos, length, ans);
+	return ans.toString();
+    }
+
+    /**
+     * URL encodes 's' as 'urlEncode(String)' does, appending the result to
+     * 'out'.
+     */
+    public static final void urlEncode(CharSequence s, StringBuilder out) {
+	urlEncode(s, 0, s.length(), out);
+    }
+
+    /**
+     * URL encodes 's' as 'urlEncode(String)' does, appending the result to
+     * 'out'.
+     * 
+     * @throws IOException
+     *             if 'out' does.
+     */
+    public static final void urlEncode(CharSequence s, Appendable out)
+	    throws IOException {
+	if (out instanceof StringBuilder) {
+	    urlEncode(s, 0, s.length(), (StringBuilder) out);
+	} else {
+	    final StringBuilder ans = new StringBuilder(s.length() + 16);
+	    urlEncode(s, 0, s.length(), ans);
+	    out.append(ans);
+	}
+    }
+
+    /**
+     * URL encodes the characters of 's' from 'start' (inclusive) to 'end'
+     * (exclusive), appending the result to 'out'.
+     */
+    private static void urlEncode(CharSequence s, int start, int end,
+	    StringBuilder out) {
+	for (int pos = start; pos < end; pos++) {
+	    final char c = s.charAt(pos);
+	    if (c < 128) {
+		if (URL_SAFE[c])
+		    out.append(c);
+		else if (c == ' ')
+		    out.append('+');
+		else
+		    appendEscape(c, out);
+	    } else if (c < 0x800) {
+		appendEscape(0xC0 | (c >> 6), out);
+		appendEscape(0x80 | (c & 0x3F), out);
+	    } else if (Character.isHighSurrogate(c) && pos + 1 < end
+		    && Character.isLowSurrogate(s.charAt(pos + 1))) {
+		final int cp = Character.toCodePoint(c, s.charAt(++pos));
+		appendEscape(0xF0 | (cp >> 18), out);
+		appendEscape(0x80 | ((cp >> 12) & 0x3F), out);
+		appendEscape(0x80 | ((cp >> 6) & 0x3F), out);
+		appendEscape(0x80 | (cp & 0x3F), out);
+	    } else if (Character.isSurrogate(c)) {
+		// Unpaired surrogates become '?', as in String.getBytes().
+		appendEscape('?', out);
+	    } else {
+		appendEscape(0xE0 | (c >> 12), out);
+		appendEscape(0x80 | ((c >> 6) & 0x3F), out);
+		appendEscape(0x80 | (c & 0x3F), out);
+	    }
+	}
+    }
+
+    private static void appendEscape(int b, StringBuilder out) {
+	out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF])
+		.append(HEX_DIGITS[b & 0xF]);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The ASCII characters that 'urlEncode()' leaves alone, as in URLEncoder:
+     * letters, digits, '.', '-', '*' and '_'.
+     */
+    private static final boolean[] URL_SAFE = new boolean[128];
+    static {
+	for (char c = 'a'; c <= 'z'; c++)
+	    URL_SAFE[c] = true;
+	for (char c = 'A'; c <= 'Z'; c++)
+	    URL_SAFE[c] = true;
+	for (char c = '0'; c <= '9'; c++)
+	    URL_SAFE[c] = true;
+	URL_SAFE['.'] = true;
+	URL_SAFE['-'] = true;
+	URL_SAFE['*'] = true;
+	URL_SAFE['_'] = true;
+    }
+
+    /**
+     * Finds the first field called 'name' in the raw query string 'query' (as
+     * returned by 'HttpServletRequest.getQueryString()') and returns its
+     * URL-decoded value. Only the requested field is decoded; the rest of
+     * 'query' is skipped over without being copied.
+     * 
+     * @return the decoded value, or 'null' if 'query' is 'null' or contains no
+     *         field called 'name'.
+     * @throws IllegalArgumentException
+     *             if the value contains a malformed '%' escape.
+     */
+    public static final String queryParameter(String query, String name) {
+	if (query == null)
+	    return null;
+	final int length = query.length();
+	final int nameLength = name.length();
+	int pos = 0;
+	while (pos < length) {
+	    int end = query.indexOf('&', pos);
+	    if (end == -1)
+		end = length;
+	    if (end - pos > nameLength
+		    && query.charAt(pos + nameLength) == '='
+		    && query.regionMatches(pos, name, 0, nameLength))
+		return urlDecode(query, pos + nameLength + 1, end);
+	    pos = end + 1;
+	}
+	return null;
+    }
+
+    /**
+     * URL-decodes the characters of 's' from 'start' (inclusive) to 'end'
+     * (exclusive), treating '+' as a space and '%' escapes as UTF-8 bytes. If
+     * there is nothing to decode the result is a plain substring of 's'.
+     * 
+     * @throws IllegalArgumentException
+     *             if the range contains a malformed '%' escape.
+     */
+    public static final String urlDecode(String s, int start, int end) {
+	int pos = start;
+	while (pos < end && s.charAt(pos) != '%' && s.charAt(pos) != '+')
+	    pos++;
+	if (pos == end)
+	    return s.substring(start, end);
+	final StringBuilder ans = new StringBuilder(end - start);
+	ans.append(s, start, pos);
+	byte[] bytes = null;
+	while (pos < end) {
+	    final char c = s.charAt(pos);
+	    if (c == '+') {
+		ans.append(' ');
+		pos++;
+	    } else if (c != '%') {
+		ans.append(c);
+		pos++;
+	    } else {
+		// Gather a run of escapes, which may form multi-byte UTF-8.
+		if (bytes == null)
+		    bytes = new byte[(end - pos) / 3];
+		int count = 0;
+		while (pos < end && s.charAt(pos) == '%') {
+		    if (pos + 3 > end)
+			throw new IllegalArgumentException(
+				"Incomplete escape at " + pos);
+		    final int hi = Character.digit(s.charAt(pos + 1), 16);
+		    final int lo = Character.digit(s.charAt(pos + 2), 16);
+		    if (hi < 0 || lo < 0)
+			throw new IllegalArgumentException("Bad escape at "
+				+ pos);
+		    bytes[count++] = (byte) ((hi << 4) | lo);
+		    pos += 3;
+		}
+		ans.append(new String(bytes, 0, count, UTF8));
+	    }
 	}
+	return ans.toString();
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns the same string as 'new URL(s).toString()'. Plain http and https
+     * URLs, which are already in that form, are recognised and returned
+     * without constructing a URL object.
+     * 
+     * @throws MalformedURLException
+     *             if 's' is not a URL.
+     */
+    public static final String normaliseURL(String s)
+	    throws MalformedURLException {
+	if (isPlainHttpURL(s))
+	    return s;
+	return new URL(s).toString();
+    }
+
+    /**
+     * Returns 'true' if 's' is a lower-case http or https URL with a simple
+     * host name and port, and no surrounding white space, so that 'new
+     * URL(s).toString()' would return it unchanged.
+     */
+    private static boolean isPlainHttpURL(String s) {
+	final int hostStart;
+	if (s.startsWith("http://"))
+	    hostStart = 7;
+	else if (s.startsWith("https://"))
+	    hostStart = 8;
+	else
+	    return false;
+	final int length = s.length();
+	if (s.charAt(length - 1) <= ' ')
+	    return false;
+	int pos = hostStart;
+	while (pos < length && isHostChar(s.charAt(pos)))
+	    pos++;
+	if (pos == hostStart)
+	    return false;
+	if (pos < length && s.charAt(pos) == ':') {
+	    final int portStart = ++pos;
+	    while (pos < length && pos - portStart < 6
+		    && Character.isDigit(s.charAt(pos)))
+		pos++;
+	    if (pos == portStart || pos - portStart > 5)
+		return false;
+	}
+	if (pos == length)
+	    return true;
+	final char c = s.charAt(pos);
+	return c == '/' || c == '?' || c == '#';
+    }
+
+    private static boolean isHostChar(char c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+		|| (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '_';
     }
 
     /**
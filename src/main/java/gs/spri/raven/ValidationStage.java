@@ -0,0 +1,75 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+/**
+ * An application-defined check applied to every Token validated by an
+ * Authenticator, for example a replay check, a revocation check or a principal
+ * allow-list. Stages are added with 'Authenticator.withStage()'.
+ * <p>
+ * Each stage declares a Cost. Authenticator runs the checks of a cheaper tier
+ * before those of a more expensive one, so that most bad tokens are rejected
+ * cheaply, and always verifies the RSA signature last. Stages must be
+ * thread-safe; one instance is used for every session.
+ */
+public abstract class ValidationStage {
+
+    /**
+     * The cost tiers of validation checks, cheapest first.
+     */
+    public enum Cost {
+	/** Constant-time checks of fields of the Token. */
+	TRIVIAL,
+	/** Checks that compare or scan strings. */
+	LINEAR,
+	/** Checks that consult an in-memory table or cache. */
+	LOOKUP,
+	/** Checks that may block on I/O, such as a remote revocation list. */
+	REMOTE
+    }
+
+    /**
+     * Constructs a ValidationStage in the given cost tier.
+     */
+    protected ValidationStage(Cost cost) {
+	if (cost == null)
+	    throw new NullPointerException("cost");
+	this.cost = cost;
+    }
+
+    private final Cost cost;
+
+    /** Returns the cost tier of this stage. */
+    public final Cost getCost() {
+	return this.cost;
+    }
+
+    /**
+     * Does nothing if 't' is acceptable as a response to 'r', otherwise throws
+     * a RavenException describing the problem. Called only after all built-in
+     * checks of the same or a cheaper tier have passed, and before the
+     * signature has been verified.
+     * 
+     * @throws RavenException
+     *             if 't' is not acceptable.
+     */
+    public abstract void validate(Request r, Token t) throws RavenException;
+}
@@ -0,0 +1,220 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Token validation, and in particular the RSA signature check, on a
+ * bounded pool of threads rather than on the caller's thread. During a surge
+ * of logins this limits the number of verifications in progress, so that the
+ * rest of the application keeps its share of threads and CPU.
+ * <p>
+ * At most 'concurrency' verifications run at once, and at most
+ * 'queueCapacity' more wait for a thread. A verification that cannot be
+ * admitted within 'maxWait' milliseconds fails with a
+ * RavenOverloadedException; a 'maxWait' of zero fails fast. Virtual threads
+ * are used when the JVM provides them.
+ */
+public final class VerificationService {
+
+    /**
+     * Constructs a VerificationService.
+     * 
+     * @param concurrency
+     *            the largest number of verifications to run at once.
+     * @param queueCapacity
+     *            the largest number of admitted verifications waiting to run.
+     * @param maxWait
+     *            how long, in milliseconds, to wait for admission when the
+     *            service is full, or zero to fail immediately.
+     */
+    public VerificationService(int concurrency, int queueCapacity, long maxWait) {
+	if (concurrency <= 0 || queueCapacity < 0 || maxWait < 0)
+	    throw new IllegalArgumentException("Bad verification limits");
+	this.admission = new Semaphore(concurrency + queueCapacity);
+	this.running = new Semaphore(concurrency);
+	this.maxWait = maxWait;
+	final ExecutorService virtual = newVirtualThreadExecutor();
+	if (virtual != null) {
+	    // Virtual threads are cheap to park, so each task waits for a
+	    // 'running' permit on its own thread rather than in a queue.
+	    this.executor = virtual;
+	} else {
+	    this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0L,
+		    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+		    new DaemonThreadFactory());
+	}
+    }
+
+    /**
+     * Validates 't' with 'v' on a pool thread. The result completes with 't'
+     * if it is valid, or exceptionally with the RavenException describing the
+     * failure, including a RavenOverloadedException if the service was full.
+     * <p>
+     * The result is completed on the pool thread after it has given up its
+     * permits, so stages added without an Executor run there without
+     * counting against the limits. Without virtual threads the pool has only
+     * 'concurrency' threads, though, so slow stages, such as handling the
+     * request that waited for this Token, should be added with an Executor
+     * of their own.
+     * 
+     * @param v
+     *            the validation pipeline to apply.
+     * @param t
+     *            the Token to validate.
+     */
+    public CompletableFuture<Token> verify(final Authenticator.Validator v,
+	    final Token t) {
+	final CompletableFuture<Token> ans = new CompletableFuture<Token>();
+	if (!this.admit()) {
+	    ans.completeExceptionally(FULL.reuse());
+	    return ans;
+	}
+	try {
+	    this.executor.execute(new Runnable() {
+		public void run() {
+		    Throwable failure = null;
+		    running.acquireUninterruptibly();
+		    try {
+			v.validate(t);
+		    } catch (Throwable xoov) {
+			failure = xoov;
+		    } finally {
+			running.release();
+			admission.release();
+		    }
+		    // Complete only now, so that dependent stages, which run on
+		    // this thread, do not count against the limits.
+		    if (failure == null)
+			ans.complete(t);
+		    else
+			ans.completeExceptionally(failure);
+		}
+	    });
+	} catch (RejectedExecutionException xoov) {
+	    this.admission.release();
+	    ans.completeExceptionally(SHUT_DOWN.reuse());
+	}
+	return ans;
+    }
+
+    /**
+     * Validates 't' with 'v' on a pool thread, and waits for the result. The
+     * calling thread is blocked meanwhile, so this bounds the CPU spent on
+     * verification but does not free the caller's thread; use 'verify()' for
+     * that.
+     * 
+     * @throws RavenException
+     *             if 't' is not valid, or could not be verified in time.
+     */
+    public void validate(Authenticator.Validator v, Token t)
+	    throws RavenException {
+	try {
+	    this.verify(v, t).get();
+	} catch (InterruptedException xoov) {
+	    Thread.currentThread().interrupt();
+	    throw new RavenOverloadedException("Interrupted awaiting verification");
+	} catch (ExecutionException xoov) {
+	    final Throwable cause = xoov.getCause();
+	    if (cause instanceof RavenException)
+		throw (RavenException) cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new RuntimeException(cause);
+	}
+    }
+
+    /**
+     * Stops accepting work. Verifications already admitted still complete.
+     */
+    public void shutdown() {
+	this.executor.shutdown();
+    }
+
+    private boolean admit() {
+	if (this.maxWait == 0)
+	    return this.admission.tryAcquire();
+	try {
+	    return this.admission.tryAcquire(this.maxWait,
+		    TimeUnit.MILLISECONDS);
+	} catch (InterruptedException xoov) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+    }
+
+    /**
+     * Returns 'Executors.newVirtualThreadPerTaskExecutor()' if this JVM has
+     * it, otherwise 'null'.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+	try {
+	    return (ExecutorService) Executors.class.getMethod(
+		    "newVirtualThreadPerTaskExecutor").invoke(null);
+	} catch (Exception xoov) {
+	    return null;
+	}
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+	private final AtomicInteger count = new AtomicInteger();
+
+	public Thread newThread(Runnable r) {
+	    final Thread t = new Thread(r, "raven-verify-"
+		    + this.count.incrementAndGet());
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    private static final RavenException FULL = RavenOverloadedException
+	    .shared("Too many tokens awaiting verification");
+    private static final RavenException SHUT_DOWN = RavenOverloadedException
+	    .shared("Verification service has shut down");
+
+    /** Permits for running and queued verifications. */
+    private final Semaphore admission;
+
+    /**
+     * Permits for running verifications. A fixed pool never contends for
+     * these, but virtual threads would otherwise all run at once.
+     */
+    private final Semaphore running;
+
+    /** Milliseconds to wait for a permit. */
+    private final long maxWait;
+
+    private final ExecutorService executor;
+}
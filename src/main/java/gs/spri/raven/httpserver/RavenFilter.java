@@ -0,0 +1,501 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.httpserver;
+
+import gs.spri.raven.Attributes;
+import gs.spri.raven.Authenticator;
+import gs.spri.raven.Enricher;
+import gs.spri.raven.Identity;
+import gs.spri.raven.PathPolicy;
+import gs.spri.raven.RavenAuthenticationException;
+import gs.spri.raven.RavenEndpoints;
+import gs.spri.raven.RavenException;
+import gs.spri.raven.RavenOverloadedException;
+import gs.spri.raven.RavenSession;
+import gs.spri.raven.Request;
+import gs.spri.raven.VerificationService;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsExchange;
+
+/**
+ * Protects every handler of an 'HttpContext' of the JDK's built-in HTTP
+ * server with Raven authentication, without holding the server's threads
+ * during signature verification. Usage:
+ *
+ * <pre>
+ * final RavenFilter filter = new RavenFilter(auth, endpoints,
+ * 	"https://www.example.org", "/login", null);
+ * filter.setVerificationService(new VerificationService(4, 64, 0L));
+ * server.createContext("/app", handler).getFilters().add(filter);
+ * </pre>
+ *
+ * A request for the intercept login path, relative to the context, is taken
+ * to be the callback from Raven. Any other request in a session that is not
+ * yet authenticated is redirected to Raven. Once the callback has arrived,
+ * the next request validates the Token: with a VerificationService, on one of
+ * its threads, the request continuing down the chain when it completes;
+ * without one, on the server's thread. Authenticated requests reach the
+ * handler with the Identity in the exchange attribute IDENTITY_ATTRIBUTE.
+ * <p>
+ * The server is not event driven: it gives each exchange a thread of its
+ * executor, which is held until the handler returns. What this filter saves
+ * is that thread's wait for a verification. It returns without completing
+ * the exchange, and the request continues down the chain on the server's
+ * executor once the Token has been validated, so that handlers never run on
+ * the VerificationService's threads.
+ * <p>
+ * Sessions are kept in memory, keyed by a random cookie, and are forgotten
+ * after 'maxIdle' milliseconds without a request. Until it authenticates, a
+ * session is one of at most 'maxSessions' kept in order of use, the least
+ * recently used being forgotten to make room for a new one, so that clients
+ * which never log in cannot lock anyone else out. A session that
+ * authenticates is given a new cookie, so that a cookie planted before the
+ * login is of no use afterwards. At most 'maxSessions' authenticated sessions
+ * are kept; beyond that, logins are refused with 503 until old ones expire.
+ */
+public class RavenFilter extends Filter {
+
+    /** The exchange attribute holding the Identity of the user. */
+    public static final String IDENTITY_ATTRIBUTE = "gs.spri.raven.Identity";
+
+    /**
+     * The exchange attribute holding a CompletableFuture of the Attributes of
+     * the user, if there is an Enricher.
+     */
+    public static final String ATTRIBUTES_ATTRIBUTE =
+	    "gs.spri.raven.Attributes";
+
+    /** The name of the session cookie. */
+    public static final String COOKIE = "RAVENSESSION";
+
+    private final Authenticator auth;
+    private final RavenEndpoints endpoints;
+    private final String baseURL;
+    private final String interceptLoginPath;
+    private final String description;
+
+    /** Where to validate tokens, or 'null' to validate them inline. */
+    private volatile VerificationService verificationService = null;
+
+    /**
+     * Where to continue the chain once a Token has been validated, or 'null'
+     * to continue on the server's executor.
+     */
+    private volatile Executor resumeExecutor = null;
+
+    /** Where to look up Attributes, or 'null' if there is nowhere. */
+    private volatile Enricher enricher = null;
+
+    /** Which paths need no authentication, or 'null' if all do. */
+    private volatile PathPolicy pathPolicy = null;
+
+    /** Authenticated sessions, by cookie. */
+    private final ConcurrentHashMap<String, Entry> sessions =
+	    new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Sessions that have not yet authenticated, by cookie, least recently used
+     * first. Guarded by itself.
+     */
+    private final LinkedHashMap<String, Entry> pending =
+	    new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+			Map.Entry<String, Entry> eldest) {
+		    return this.size() > maxSessions;
+		}
+	    };
+
+    private final SecureRandom random = new SecureRandom();
+    private int maxSessions = 100000;
+    private long maxIdle = 30L * 60L * 1000L;
+
+    /**
+     * Constructs a RavenFilter.
+     *
+     * @param auth
+     *            the Authenticator used to validate tokens.
+     * @param endpoints
+     *            the Raven servers to which users may be redirected in order
+     *            to authenticate.
+     * @param baseURL
+     *            the scheme, host and port by which users reach the server,
+     *            e.g. "https://www.example.org". The URLs that Raven returns
+     *            users to are built on it, not on the untrusted Host header.
+     * @param interceptLoginPath
+     *            a path, relative to the context, that this filter recognises
+     *            as the callback from Raven. It must start with a '/'.
+     * @param description
+     *            a text description of the resource requiring authentication,
+     *            or 'null'. This value is used in 'Request.desc'.
+     */
+    public RavenFilter(Authenticator auth, RavenEndpoints endpoints,
+	    String baseURL, String interceptLoginPath, String description) {
+	this.auth = auth;
+	this.endpoints = endpoints;
+	this.baseURL = baseURL.endsWith("/") ? baseURL.substring(0,
+		baseURL.length() - 1) : baseURL;
+	this.interceptLoginPath = interceptLoginPath;
+	this.description = description;
+    }
+
+    /**
+     * Makes sessions validate tokens on the bounded threads of 'service'. If
+     * the service is full, the request fails with 503 and the token is kept
+     * for a later attempt. Give the service a 'maxWait' of zero, or the
+     * server's threads wait for admission. Applies to sessions created
+     * afterwards; 'null' restores inline validation.
+     */
+    public void setVerificationService(VerificationService service) {
+	this.verificationService = service;
+    }
+
+    /**
+     * Makes requests whose Token was validated by the VerificationService
+     * continue down the chain on 'executor' rather than on the server's.
+     * 'null' restores the default. A server without an executor runs its
+     * handlers on its one dispatching thread, which the filter cannot hand
+     * work back to; such requests continue on the common ForkJoinPool.
+     */
+    public void setResumeExecutor(Executor executor) {
+	this.resumeExecutor = executor;
+    }
+
+    /**
+     * Makes every successful validation start a lookup of the principal's
+     * Attributes with 'enricher'. Authenticated requests reach the handler
+     * with a CompletableFuture of them in the exchange attribute
+     * ATTRIBUTES_ATTRIBUTE. Applies to sessions created afterwards; 'null'
+     * disables lookups.
+     */
+    public void setEnricher(Enricher enricher) {
+	this.enricher = enricher;
+    }
+
+    /**
+     * Lets requests whose decoded path, relative to the context, is PUBLIC
+     * under 'policy' go straight down the chain, without a session. Paths
+     * with empty, "." or ".." segments or an encoded '/' are never PUBLIC.
+     * Other Rules are ignored: every other request is authenticated, and the
+     * callback is always the intercept login path. 'null' protects every
+     * path.
+     */
+    public void setPathPolicy(PathPolicy policy) {
+	this.pathPolicy = policy;
+    }
+
+    /**
+     * Sets the most sessions to keep, and how many milliseconds a session may
+     * go without a request before it is forgotten.
+     */
+    public void setSessionLimits(int maxSessions, long maxIdle) {
+	this.maxSessions = maxSessions;
+	this.maxIdle = maxIdle;
+    }
+
+    /** Returns a description of this filter. */
+    public String description() {
+	return "Raven authentication";
+    }
+
+    public void doFilter(final HttpExchange ex, final Chain chain)
+	    throws IOException {
+	final long now = this.auth.getClock().currentTimeMillis();
+	final String context = ex.getHttpContext().getPath();
+	final String path = ex.getRequestURI().getRawPath();
+	final boolean intercept = path.length() == context.length()
+		+ this.interceptLoginPath.length()
+		&& path.startsWith(context)
+		&& path.endsWith(this.interceptLoginPath);
+	final PathPolicy policy = this.pathPolicy;
+	if (!intercept && policy != null) {
+	    final String relative = relativePath(context, ex.getRequestURI());
+	    if (relative != null
+		    && policy.match(relative) == PathPolicy.Rule.PUBLIC) {
+		chain.doFilter(ex);
+		return;
+	    }
+	}
+	final Entry entry = this.session(ex, now, !intercept);
+	if (entry == null) {
+	    respond(ex, 400);
+	    return;
+	}
+	if (intercept) {
+	    if (!entry.session.isExpectingResponse()) {
+		respond(ex, 400);
+		return;
+	    }
+	    try {
+		redirect(ex, entry.session.receiveResponse(ex.getRequestURI()
+			.getRawQuery()));
+	    } catch (RavenException xoov) {
+		respond(ex, 400);
+	    }
+	    return;
+	}
+	final BiConsumer<Boolean, Throwable> resume =
+		new BiConsumer<Boolean, Throwable>() {
+	    public void accept(Boolean ok, Throwable failure) {
+		try {
+		    resume(ex, chain, entry, ok, failure);
+		} catch (IOException xoov) {
+		    ex.close();
+		}
+	    }
+	};
+	final CompletableFuture<Boolean> f = entry.session
+		.authenticateAsync(now);
+	if (f.isDone()) {
+	    f.whenComplete(resume);
+	    return;
+	}
+	Executor executor = this.resumeExecutor;
+	if (executor == null)
+	    executor = ex.getHttpContext().getServer().getExecutor();
+	if (executor == null)
+	    f.whenCompleteAsync(resume);
+	else
+	    f.whenCompleteAsync(resume, executor);
+    }
+
+    /**
+     * Continues a request once its session has been checked: down the chain
+     * if 'ok', to Raven if not, or to an error if validation failed.
+     */
+    private void resume(HttpExchange ex, Chain chain, Entry entry,
+	    Boolean ok, Throwable failure) throws IOException {
+	final RavenSession session = entry.session;
+	if (failure instanceof CompletionException)
+	    failure = failure.getCause();
+	if (failure instanceof RavenOverloadedException)
+	    respond(ex, 503);
+	else if (failure instanceof RavenAuthenticationException)
+	    respond(ex, 403);
+	else if (failure != null)
+	    respond(ex, 400);
+	else if (ok.booleanValue()) {
+	    if (!entry.authenticated.get() && !this.promote(ex, entry)) {
+		respond(ex, 503);
+		return;
+	    }
+	    final Identity identity = session.getIdentity();
+	    ex.setAttribute(IDENTITY_ATTRIBUTE, identity);
+	    final CompletableFuture<Attributes> attributes =
+		    session.getAttributes();
+	    // The exchange's attributes cannot hold 'null'.
+	    if (attributes != null)
+		ex.setAttribute(ATTRIBUTES_ATTRIBUTE, attributes);
+	    chain.doFilter(ex);
+	} else
+	    this.sendRedirectToRaven(ex, session);
+    }
+
+    /** Redirects the user to Raven to authenticate. */
+    private void sendRedirectToRaven(HttpExchange ex, RavenSession session)
+	    throws IOException {
+	final URI uri = ex.getRequestURI();
+	final String query = uri.getRawQuery();
+	final Request request = new Request(this.baseURL
+		+ ex.getHttpContext().getPath() + this.interceptLoginPath,
+		this.auth.getClock());
+	request.desc = this.description;
+	redirect(ex, session.sendRequest(request, this.baseURL
+		+ uri.getRawPath() + (query == null ? "" : "?" + query)));
+    }
+
+    /**
+     * Returns the session of 'ex', making a new one and setting its cookie if
+     * there is none and 'create' is set. Returns 'null' if there is none.
+     */
+    private Entry session(HttpExchange ex, long now, boolean create) {
+	final String id = cookie(ex.getRequestHeaders().get("Cookie"));
+	if (id != null) {
+	    Entry e = this.sessions.get(id);
+	    if (e == null)
+		synchronized (this.pending) {
+		    e = this.pending.get(id);
+		}
+	    if (e != null && now - e.lastUsed <= this.maxIdle) {
+		e.lastUsed = now;
+		return e;
+	    }
+	}
+	if (!create)
+	    return null;
+	final String key = this.newKey();
+	final RavenSession session = new RavenSession(this.auth,
+		this.endpoints);
+	session.setEnricher(this.enricher);
+	session.setVerificationService(this.verificationService);
+	final Entry e = new Entry(session, key, now);
+	synchronized (this.pending) {
+	    this.pending.put(key, e);
+	}
+	this.setCookie(ex, key);
+	return e;
+    }
+
+    /**
+     * Moves 'entry', which has just authenticated, from 'pending' to
+     * 'sessions' under a new cookie, unless a concurrent request has already
+     * done so. Returns 'false' if there are too many authenticated sessions.
+     */
+    private boolean promote(HttpExchange ex, Entry entry) {
+	if (this.sessions.size() >= this.maxSessions) {
+	    this.expire(this.auth.getClock().currentTimeMillis());
+	    if (this.sessions.size() >= this.maxSessions)
+		return false;
+	}
+	if (!entry.authenticated.compareAndSet(false, true))
+	    return true;
+	synchronized (this.pending) {
+	    this.pending.remove(entry.key);
+	}
+	final String key = this.newKey();
+	this.sessions.put(key, entry);
+	this.setCookie(ex, key);
+	return true;
+    }
+
+    /** Returns a new random session cookie value. */
+    private String newKey() {
+	final byte[] b = new byte[16];
+	this.random.nextBytes(b);
+	final StringBuilder key = new StringBuilder(32);
+	for (int i = 0; i < b.length; i++)
+	    key.append(Character.forDigit((b[i] >> 4) & 15, 16)).append(
+		    Character.forDigit(b[i] & 15, 16));
+	return key.toString();
+    }
+
+    /** Sets the session cookie of 'ex' to 'key'. */
+    private void setCookie(HttpExchange ex, String key) {
+	final String path = ex.getHttpContext().getPath();
+	ex.getResponseHeaders().add("Set-Cookie", COOKIE + "=" + key
+		+ "; Path=" + (path.length() == 0 ? "/" : path) + "; HttpOnly"
+		+ (ex instanceof HttpsExchange ? "; Secure" : ""));
+    }
+
+    /** Forgets every authenticated session that has been idle too long. */
+    private void expire(long now) {
+	final Iterator<Entry> i = this.sessions.values().iterator();
+	while (i.hasNext())
+	    if (now - i.next().lastUsed > this.maxIdle)
+		i.remove();
+    }
+
+    /**
+     * Returns the decoded path of 'uri' relative to 'context', for matching
+     * against the PathPolicy, or 'null' if it is not safe to match. Paths with
+     * empty, "." or ".." segments, even encoded, or with an encoded '/', are
+     * not safe: a handler might resolve them to a different path than the
+     * PathPolicy sees.
+     */
+    private static String relativePath(String context, URI uri) {
+	final String raw = uri.getRawPath();
+	if (raw == null || raw.indexOf("%2F") >= 0 || raw.indexOf("%2f") >= 0)
+	    return null;
+	final String path = uri.normalize().getPath();
+	if (!path.equals(uri.getPath()) || !path.startsWith("/"))
+	    return null;
+	for (int start = 1; start < path.length();) {
+	    int end = path.indexOf('/', start);
+	    if (end < 0)
+		end = path.length();
+	    final int n = end - start;
+	    if ((n == 0 && end < path.length())
+		    || (n == 1 && path.charAt(start) == '.')
+		    || (n == 2 && path.startsWith("..", start)))
+		return null;
+	    start = end + 1;
+	}
+	final String prefix = context.endsWith("/") ? context.substring(0,
+		context.length() - 1) : context;
+	if (!path.startsWith(prefix))
+	    return null;
+	if (path.length() == prefix.length())
+	    return "/";
+	return path.charAt(prefix.length()) == '/' ? path.substring(prefix
+		.length()) : null;
+    }
+
+    /** Returns the value of COOKIE in the Cookie 'headers', or 'null'. */
+    private static String cookie(List<String> headers) {
+	if (headers == null)
+	    return null;
+	for (String h : headers)
+	    for (String c : h.split(";")) {
+		final String t = c.trim();
+		if (t.startsWith(COOKIE) && t.length() > COOKIE.length()
+			&& t.charAt(COOKIE.length()) == '=')
+		    return t.substring(COOKIE.length() + 1);
+	    }
+	return null;
+    }
+
+    private static void redirect(HttpExchange ex, String location)
+	    throws IOException {
+	ex.getResponseHeaders().set("Location", location);
+	respond(ex, 302);
+    }
+
+    private static void respond(HttpExchange ex, int status) throws IOException {
+	ex.sendResponseHeaders(status, -1);
+	ex.close();
+    }
+
+    /** A session, its first cookie, and when it was last used. */
+    private static final class Entry {
+	Entry(RavenSession session, String key, long lastUsed) {
+	    this.session = session;
+	    this.key = key;
+	    this.lastUsed = lastUsed;
+	}
+
+	final RavenSession session;
+
+	/** The cookie by which the session is found in 'pending'. */
+	final String key;
+
+	/** Set once the session has moved to 'sessions'. */
+	final AtomicBoolean authenticated = new AtomicBoolean();
+
+	volatile long lastUsed;
+    }
+}
@@ -0,0 +1,132 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.servlet;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Caches the base URL of a servlet, i.e. the URL of the servlet root, for each
+ * combination of scheme, host, port, context path and servlet path seen in
+ * requests. The URLs are in exactly the form produced by 'new URL(scheme,
+ * host, port, contextPath + servletPath).toString()', but are built with
+ * string operations. One instance is normally shared by all the
+ * RavenAuthenticators of a servlet. Thread-safe.
+ */
+public final class BaseURLCache {
+
+    /**
+     * The most base URLs to remember. The host name comes from the client, so
+     * the cache must not grow without limit. When it is full, arbitrary
+     * entries are dropped to make room, so that a flood of made-up host names
+     * cannot keep the real ones out.
+     */
+    private static final int MAX_ENTRIES = 256;
+
+    private final ConcurrentHashMap<Key, String> cache =
+	    new ConcurrentHashMap<Key, String>();
+
+    /**
+     * Returns the URL of the servlet root for 'req'. Append the path info,
+     * relative to the servlet root, to obtain a full URL.
+     */
+    public String baseURL(HttpServletRequest req) {
+	final Key key = new Key(req.getScheme(), req.getServerName(),
+		req.getServerPort(), req.getContextPath(), req.getServletPath());
+	String ans = this.cache.get(key);
+	if (ans == null) {
+	    ans = key.toURL();
+	    if (this.cache.size() >= MAX_ENTRIES)
+		this.evict();
+	    this.cache.putIfAbsent(key, ans);
+	}
+	return ans;
+    }
+
+    /** Drops arbitrary entries until the cache is three-quarters full. */
+    private void evict() {
+	final int target = MAX_ENTRIES * 3 / 4;
+	for (Iterator<Key> it = this.cache.keySet().iterator(); it.hasNext()
+		&& this.cache.size() > target;) {
+	    it.next();
+	    it.remove();
+	}
+    }
+
+    private static final class Key {
+	Key(String scheme, String host, int port, String contextPath,
+		String servletPath) {
+	    this.scheme = scheme;
+	    this.host = host;
+	    this.port = port;
+	    this.contextPath = contextPath;
+	    this.servletPath = servletPath;
+	}
+
+	final String scheme;
+	final String host;
+	final int port;
+	final String contextPath;
+	final String servletPath;
+
+	public int hashCode() {
+	    int h = this.scheme.hashCode();
+	    h = h * 31 + this.host.hashCode();
+	    h = h * 31 + this.port;
+	    h = h * 31 + this.contextPath.hashCode();
+	    return h * 31 + this.servletPath.hashCode();
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key))
+		return false;
+	    final Key k = (Key) o;
+	    return this.port == k.port && this.host.equals(k.host)
+		    && this.scheme.equals(k.scheme)
+		    && this.contextPath.equals(k.contextPath)
+		    && this.servletPath.equals(k.servletPath);
+	}
+
+	/**
+	 * Returns what 'new URL(scheme, host, port, contextPath +
+	 * servletPath).toString()' would.
+	 */
+	String toURL() {
+	    final StringBuilder ans = new StringBuilder(this.scheme.length()
+		    + this.host.length() + this.contextPath.length()
+		    + this.servletPath.length() + 16);
+	    for (int i = 0; i < this.scheme.length(); i++)
+		ans.append(Character.toLowerCase(this.scheme.charAt(i)));
+	    ans.append("://");
+	    // URL puts brackets around IPv6 literals.
+	    if (this.host.indexOf(':') >= 0 && !this.host.startsWith("["))
+		ans.append('[').append(this.host).append(']');
+	    else
+		ans.append(this.host);
+	    if (this.port != -1)
+		ans.append(':').append(this.port);
+	    return ans.append(this.contextPath).append(this.servletPath)
+		    .toString();
+	}
+    }
+}
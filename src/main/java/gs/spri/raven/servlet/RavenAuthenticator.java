@@ -20,16 +20,24 @@
  */
 package gs.spri.raven.servlet;
 
+import gs.spri.raven.Attributes;
 import gs.spri.raven.Authenticator;
+import gs.spri.raven.Clock;
+import gs.spri.raven.Enricher;
+import gs.spri.raven.Identity;
 import gs.spri.raven.RavenAuthenticationException;
+import gs.spri.raven.RavenEndpoints;
 import gs.spri.raven.RavenException;
+import gs.spri.raven.RavenSession;
 import gs.spri.raven.Request;
+import gs.spri.raven.SlowAuthLog;
 import gs.spri.raven.Token;
+import gs.spri.raven.VerificationService;
 
 import java.io.IOException;
-import java.net.URL;
 import java.security.KeyStore;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -60,14 +68,14 @@ import javax.servlet.http.HttpServletResponse;
  * <li>Process the request using the saved request parameters, and clear the
  * saved request parameters from the session.
  * </ul>
+ * The state of the session is kept in a RavenSession, which does not depend
+ * on the servlet API and can be used directly by other web frameworks.
  * 
  * @author Matthew Lavy and Alistair Turnbull
  * @version 1.0.3, 02 January 2007
  */
 public class RavenAuthenticator {
 
-    private final Authenticator auth;
-
     /**
      * Constructs a RavenAuthenticator object. This constructor is deprectated
      * as the clockskew parameter is no longer supported by the raven
@@ -98,10 +106,7 @@ public class RavenAuthenticator {
     public RavenAuthenticator(long clockSkew, String ravenURL,
 	    String interceptLoginPath, String description, KeyStore keys,
 	    String keyPrefix) {
-	this.auth = new Authenticator(keys, keyPrefix);
-	this.ravenURL = ravenURL;
-	this.interceptLoginPath = interceptLoginPath;
-	this.description = description;
+	this(ravenURL, interceptLoginPath, description, keys, keyPrefix);
     }
 
     /**
@@ -127,8 +132,65 @@ public class RavenAuthenticator {
      */
     public RavenAuthenticator(String ravenURL, String interceptLoginPath,
 	    String description, KeyStore keys, String keyPrefix) {
-	this.auth = new Authenticator(keys, keyPrefix);
-	this.ravenURL = ravenURL;
+	this(new Authenticator(keys, keyPrefix), ravenURL, interceptLoginPath,
+		description);
+    }
+
+    /**
+     * Constructs a RavenAuthenticator object which validates tokens with an
+     * existing Authenticator. Authenticator is immutable, so one instance can
+     * be shared by the RavenAuthenticators of every session. The
+     * Authenticator's Clock is also used to timestamp Requests and to compute
+     * Token expiry times.
+     * 
+     * @param auth
+     *            the Authenticator used to validate tokens.
+     * @param ravenURL
+     *            the URL of the Raven server. This is the URL to which users
+     *            will be redirected in order to authenticate. To use several
+     *            servers, pass 'RavenEndpoints.parse(list)' instead.
+     * @param interceptLoginPath
+     *            a path in the URL namespace of the (local) servlet which this
+     *            RavenAuthenticator can recognise as its own. Requests to this
+     *            path will be intercepted by the 'interceptLoginRequest()'
+     *            method. The path must be relative to the servlet root and
+     *            start with a '/'.
+     * @param description
+     *            a text description of the resource requiring authentication,
+     *            or 'null'. This value is used in 'Request.desc'.
+     */
+    public RavenAuthenticator(Authenticator auth, String ravenURL,
+	    String interceptLoginPath, String description) {
+	this(auth, RavenEndpoints.single(ravenURL), interceptLoginPath,
+		description);
+    }
+
+    /**
+     * Constructs a RavenAuthenticator object which validates tokens with an
+     * existing Authenticator, and sends users to whichever of several Raven
+     * servers is currently performing best. 'endpoints' records how each
+     * server behaves, and should be shared by the RavenAuthenticators of
+     * every session.
+     * 
+     * @param auth
+     *            the Authenticator used to validate tokens.
+     * @param endpoints
+     *            the Raven servers to which users may be redirected in order
+     *            to authenticate.
+     * @param interceptLoginPath
+     *            a path in the URL namespace of the (local) servlet which this
+     *            RavenAuthenticator can recognise as its own. Requests to this
+     *            path will be intercepted by the 'interceptLoginRequest()'
+     *            method. The path must be relative to the servlet root and
+     *            start with a '/'.
+     * @param description
+     *            a text description of the resource requiring authentication,
+     *            or 'null'. This value is used in 'Request.desc'.
+     */
+    public RavenAuthenticator(Authenticator auth, RavenEndpoints endpoints,
+	    String interceptLoginPath, String description) {
+	this.clock = auth.getClock();
+	this.session = new RavenSession(auth, endpoints);
 	this.interceptLoginPath = interceptLoginPath;
 	this.description = description;
     }
@@ -160,15 +222,12 @@ public class RavenAuthenticator {
 	    HttpServletResponse res) throws RavenException, IOException {
 	if (!this.interceptLoginPath.equals(req.getPathInfo()))
 	    return false;
-	if (this.request == null)
-	    throw new RavenStateException(
-		    "No memory of an authentication request. This can happen if the "
-			    + "user bookmarks the Raven login page.");
-	final String p = req.getParameter("WLS-Response");
-	if (p == null)
-	    throw new RavenException("Entire WLS-Response is missing");
-	this.token = new Token(p);
-	res.sendRedirect(res.encodeRedirectURL(this.requestedURL));
+	if (!this.session.isExpectingResponse())
+	    throw NO_REQUEST_MEMORY.reuse();
+	final String url = this.session.receiveResponse(req.getQueryString());
+	final long started = SlowAuthLog.start();
+	res.sendRedirect(res.encodeRedirectURL(url));
+	SlowAuthLog.record(SlowAuthLog.Phase.REDIRECT, started);
 	return true;
     }
 
@@ -201,24 +260,38 @@ public class RavenAuthenticator {
     public boolean handleAuthentication(HttpServletRequest req,
 	    HttpServletResponse res, Date when, String msg)
 	    throws RavenException, IOException {
-	if (!this.isTokenCurrent(when)) {
-	    this.sendRedirectToRaven(req, res, msg);
-	    return true;
-	}
-	try {
-	    auth.validateTokenAgainstRequest(this.request, this.token);
-	} catch (RavenException xoov) {
-	    this.token = null;
-	    throw xoov;
-	}
-	return false;
+	return this.handleAuthentication(req, res, when.getTime(), msg);
+    }
+
+    /**
+     * As 'handleAuthentication(HttpServletRequest, HttpServletResponse, Date,
+     * String)', but with 'when' given in milliseconds since the epoch so that
+     * callers need not allocate a Date for every request.
+     */
+    public boolean handleAuthentication(HttpServletRequest req,
+	    HttpServletResponse res, long when, String msg)
+	    throws RavenException, IOException {
+	if (this.session.authenticate(when))
+	    return false;
+	final long started = SlowAuthLog.start();
+	this.sendRedirectToRaven(req, res, msg);
+	SlowAuthLog.record(SlowAuthLog.Phase.REDIRECT, started);
+	return true;
     }
 
     /**
      * Returns 'true' if 'this.getToken()' exists and has not expired by 'when'.
      */
     public boolean isTokenCurrent(Date when) {
-	return this.token == null ? false : this.token.isCurrent(when);
+	return this.isTokenCurrent(when.getTime());
+    }
+
+    /**
+     * Returns 'true' if 'this.getToken()' exists and has not expired by 'when',
+     * in milliseconds since the epoch.
+     */
+    public boolean isTokenCurrent(long when) {
+	return this.session.isTokenCurrent(when);
     }
 
     /**
@@ -243,7 +316,34 @@ public class RavenAuthenticator {
      * requested and that the cryptographic signature is correct.
      */
     public void checkTokenValid() throws RavenException {
-	this.auth.validateTokenAgainstRequest(this.request, this.token);
+	this.session.checkTokenValid();
+    }
+
+    /**
+     * Makes 'handleAuthentication()' validate tokens on the bounded threads of
+     * 'service' rather than on the calling thread. If the service is full,
+     * 'handleAuthentication()' throws a RavenOverloadedException and keeps
+     * the token for a later attempt. 'null' restores inline validation.
+     */
+    public void setVerificationService(VerificationService service) {
+	this.session.setVerificationService(service);
+    }
+
+    /**
+     * Makes each successful 'handleAuthentication()' start a lookup of the
+     * principal's Attributes with 'enricher'. 'null' disables lookups.
+     */
+    public void setEnricher(Enricher enricher) {
+	this.session.setEnricher(enricher);
+    }
+
+    /**
+     * Makes this RavenAuthenticator build redirect and callback URLs using
+     * 'cache', which may be shared with other RavenAuthenticators of the same
+     * servlet. By default all RavenAuthenticators share 'DEFAULT_BASE_URLS'.
+     */
+    public void setBaseURLCache(BaseURLCache cache) {
+	this.baseURLCache = cache;
     }
 
     /**
@@ -258,26 +358,57 @@ public class RavenAuthenticator {
 
     /**
      * Returns the authentication token most recently received from the Raven
-     * server.
+     * server, if it has not yet been validated. Once 'handleAuthentication()'
+     * has validated a Token, only its Identity is kept; use 'getIdentity()'.
      */
     public Token getToken() {
-	return this.token;
+	return this.session.getToken();
     }
 
     /**
-     * During the authentication protocol, a record of the URL that the user
-     * originally requested. This is used purely for cosmetic purposes.
+     * Returns the identity established by the most recently validated Token,
+     * or 'null' if there is none. The identity may have expired; check with
+     * 'Identity.isCurrent()'.
      */
-    private String requestedURL = null;
+    public Identity getIdentity() {
+	return this.session.getIdentity();
+    }
 
-    /** The Request most recently sent to the Raven server, or 'null'. */
-    private Request request = null;
+    /**
+     * Returns the Attributes of the principal of 'getIdentity()', or 'null' if
+     * there is no identity or no Enricher. See 'RavenSession.getAttributes()'.
+     */
+    public CompletableFuture<Attributes> getAttributes() {
+	return this.session.getAttributes();
+    }
 
-    /** The Token most recently received from the Raven server, or 'null'. */
-    private Token token = null;
+    /**
+     * Returns the framework-independent state of the session, to which this
+     * RavenAuthenticator delegates.
+     */
+    public RavenSession getRavenSession() {
+	return this.session;
+    }
+
+    /** The authentication state of the session. */
+    private final RavenSession session;
+
+    /* Failures with fixed messages; see 'RavenException.shared()'. */
+    static final RavenException NO_REQUEST_MEMORY = RavenStateException
+	    .shared("No memory of an authentication request. This can happen"
+		    + " if the user bookmarks the Raven login page.");
 
-    /** The URL of the Raven server. */
-    private final String ravenURL;
+    /** The source of the current time, shared with 'auth'. */
+    private final Clock clock;
+
+    /**
+     * The BaseURLCache used until 'setBaseURLCache()' is called, so that a new
+     * session does not allocate a cache of its own.
+     */
+    private static final BaseURLCache DEFAULT_BASE_URLS = new BaseURLCache();
+
+    /** Builds the URL of the servlet root for each request. */
+    private volatile BaseURLCache baseURLCache = DEFAULT_BASE_URLS;
 
     /** The path recognised by 'interceptLoginPath()'. */
     private final String interceptLoginPath;
@@ -292,32 +423,30 @@ public class RavenAuthenticator {
      */
     private void sendRedirectToRaven(HttpServletRequest req,
 	    HttpServletResponse res, String msg) throws IOException {
+	final String base = this.baseURLCache.baseURL(req);
+
 	// Take a copy of the requested URL for cosmetic purposes.
 	final String pi = req.getPathInfo();
-	this.requestedURL = new URL(req.getScheme(), req.getServerName(),
-		req.getServerPort(), req.getContextPath()
-			+ req.getServletPath() + (pi == null ? "" : pi))
-		.toString();
-	/*
-	 * Or, if using an up-to-date servlet container:- this.requestedURL =
-	 * req.getRequestURL().toString();
-	 */
 	final String query = req.getQueryString();
+	final StringBuilder requestedURL = new StringBuilder(base.length()
+		+ (pi == null ? 0 : pi.length())
+		+ (query == null ? 0 : query.length() + 1));
+	requestedURL.append(base);
+	if (pi != null)
+	    requestedURL.append(pi);
 	if (query != null)
-	    this.requestedURL += "?" + query;
+	    requestedURL.append('?').append(query);
 
 	// Construct a Raven Request object.
-	this.request = new Request(res.encodeRedirectURL(new URL(req
-		.getScheme(), req.getServerName(), req.getServerPort(), req
-		.getContextPath()
-		+ req.getServletPath()
-		+ this.interceptLoginPath).toString()));
-	this.request.desc = this.description;
-	this.request.msg = msg;
-	this.customiseRequest(this.request, req);
-
-	// Redirect to Raven.
-	res.sendRedirect(this.ravenURL + "?" + this.request.toQString());
+	final Request request = new Request(res.encodeRedirectURL(base
+		.concat(this.interceptLoginPath)), this.clock);
+	request.desc = this.description;
+	request.msg = msg;
+	this.customiseRequest(request, req);
+
+	// Publish the new Request, and redirect to Raven.
+	res.sendRedirect(this.session.sendRequest(request,
+		requestedURL.toString()));
     }
 
 }
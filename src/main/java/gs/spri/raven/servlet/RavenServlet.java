@@ -20,21 +20,40 @@
  */
 package gs.spri.raven.servlet;
 
+import gs.spri.raven.AuthEvents;
+import gs.spri.raven.Attributes;
+import gs.spri.raven.Authenticator;
+import gs.spri.raven.Clock;
+import gs.spri.raven.Enricher;
+import gs.spri.raven.Identity;
+import gs.spri.raven.IdentityStore;
+import gs.spri.raven.KeyRegistry;
+import gs.spri.raven.KeySet;
+import gs.spri.raven.PathPolicy;
 import gs.spri.raven.RavenAuthenticationException;
+import gs.spri.raven.RavenEndpoints;
 import gs.spri.raven.RavenException;
+import gs.spri.raven.RavenOverloadedException;
+import gs.spri.raven.ResponseLimits;
+import gs.spri.raven.SlowAuthLog;
 import gs.spri.raven.Token;
+import gs.spri.raven.VerificationService;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.util.Date;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -42,6 +61,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
 /**
  * RavenServlet is the shell of a complete web application. It's purpose is to
@@ -66,22 +87,68 @@ public abstract class RavenServlet extends HttpServlet {
      * or 'null'.
      */
     public String getUserName(HttpSession ses) {
-	final Token tok = this.getToken(ses);
-	if (tok == null)
+	final Identity id = this.getIdentity(ses);
+	if (id == null)
 	    return null;
-	return tok.principal;
+	return id.getPrincipal();
     }
 
     /**
-     * Returns the authentication token associated with 'ses' or 'null'.
+     * Returns the identity of the logged in principal associated with 'ses',
+     * or 'null'.
+     */
+    public Identity getIdentity(HttpSession ses) {
+	if (ses == null)
+	    return null;
+	final Object attribute = ses.getAttribute(SESSION_KEY);
+	if (attribute instanceof StoredIdentity)
+	    return ((StoredIdentity) attribute).get();
+	if (!(attribute instanceof SessionObject))
+	    return null;
+	return ((SessionObject) attribute).ra.getIdentity();
+    }
+
+    /**
+     * Returns the Attributes of the logged in principal associated with 'ses',
+     * as found by the Enricher, or 'null' if there is no principal or no
+     * Enricher.
+     */
+    public CompletableFuture<Attributes> getAttributes(HttpSession ses) {
+	if (ses == null)
+	    return null;
+	final Object attribute = ses.getAttribute(SESSION_KEY);
+	if (attribute instanceof StoredIdentity) {
+	    final Identity id = ((StoredIdentity) attribute).get();
+	    final Enricher e = this.enricher;
+	    return id == null || e == null ? null : e.lookup(id.getPrincipal());
+	}
+	if (!(attribute instanceof SessionObject))
+	    return null;
+	return ((SessionObject) attribute).ra.getAttributes();
+    }
+
+    /**
+     * Makes every successful authentication start a lookup of the principal's
+     * Attributes with 'enricher', for 'getAttributes()'. Subclasses typically
+     * call this from 'init()', after 'super.init()'. It applies to sessions
+     * created afterwards. 'null' disables lookups.
+     */
+    public void setEnricher(Enricher enricher) {
+	this.enricher = enricher;
+    }
+
+    /**
+     * Returns the authentication token associated with 'ses' or 'null'. Once
+     * the token has been validated only its Identity is kept, so this returns
+     * 'null' for an authenticated session; use 'getIdentity()' instead.
      */
     public Token getToken(HttpSession ses) {
 	if (ses == null)
 	    return null;
-	final SessionObject so = (SessionObject) ses.getAttribute(SESSION_KEY);
-	if (so == null)
+	final Object attribute = ses.getAttribute(SESSION_KEY);
+	if (!(attribute instanceof SessionObject))
 	    return null;
-	return so.ra.getToken();
+	return ((SessionObject) attribute).ra.getToken();
     }
 
     /* HTTPSERVLET OVERRIDES */
@@ -91,33 +158,224 @@ public abstract class RavenServlet extends HttpServlet {
      * servlet starts up. If subclasses override this method, they MUST call
      * 'super.init(config)'.
      * <p>
-     * 
+     * The following initialisation parameters are read, each prefixed by
+     * CONF_PREFIX:
+     * <ul>
+     * <li>'raven-url': the URL of the Raven server, or a list of Raven servers
+     * with weights as accepted by 'RavenEndpoints.parse()', for example
+     * "https://primary/auth 3, https://fallback/auth 1".
+     * <li>'intercept-login-path', 'key-prefix', 'description': see
+     * RavenAuthenticator.
+     * <li>'public-paths', 'protected-paths' (optional): comma-separated path
+     * patterns, as accepted by PathPolicy, matched against the path info.
+     * Requests for public paths are performed without authentication, with
+     * the client's existing session if any, which is neither created nor
+     * checked; requests for protected paths are authenticated. Only paths matching neither, nor the intercept
+     * login path, are passed to 'requiresAuthentication()'.
+     * <li>'keystore', 'keystore-password': the JKS file holding the Raven
+     * certificates, or a directory of certificate files that needs no
+     * password. Loaded through KeyRegistry, so the keys are shared by every
+     * servlet in the JVM that names them.
+     * <li>'clock-resolution' (optional): if set, time checks read a coarse
+     * Clock refreshed every this many milliseconds.
+     * <li>'verify-threads' (optional): if set, tokens are validated by a
+     * VerificationService running at most this many verifications at once,
+     * with at most 'verify-queue' (default 16 per thread) waiting, and
+     * 'verify-max-wait' milliseconds (default 0) to wait for admission. This
+     * bounds the CPU spent on signatures, but each waiting login still holds
+     * a container thread, because this servlet does not use asynchronous
+     * processing; only RavenFilter frees the request thread while a login
+     * is verified.
+     * <li>'max-response-length', 'max-field-length', 'max-signature-length',
+     * 'max-parameters' (optional): override the corresponding limits of
+     * 'ResponseLimits.DEFAULT'. A request that would have to be kept while
+     * the user logs in, but has more parameters than that, is refused with
+     * 413 before the user is sent to Raven.
+     * <li>'slow-auth-threshold' (optional): if set, callbacks and
+     * authenticated requests whose authentication takes at least this many
+     * milliseconds are kept, with a breakdown by SlowAuthLog.Phase, in a
+     * SlowAuthLog of 'slow-auth-capacity' (default 256) entries. The log is
+     * published as the ServletContext attribute named by
+     * 'slowAuthLogAttribute()' for this servlet, for SlowAuthServlet to show.
+     * <li>'identity-store-capacity' (optional): if set, the Identity of each
+     * authenticated session is moved into an IdentityStore of this many
+     * records outside the heap, and the session keeps only a handle to it.
+     * Principals may have at most 'identity-store-max-principal' (default 64)
+     * characters; longer ones, and any beyond the capacity, stay on the
+     * heap. If 'identity-store-file' is set, the store is a memory-mapped
+     * file at that path. Expired records are swept every
+     * 'identity-store-sweep' milliseconds (default 60000).
+     * </ul>
      */
     public void init(ServletConfig config) throws ServletException {
 	super.init(config);
-	this.ravenURL = config.getInitParameter(CONF_PREFIX + "raven-url");
+	try {
+	    this.ravenEndpoints = RavenEndpoints.parse(config
+		    .getInitParameter(CONF_PREFIX + "raven-url"));
+	} catch (IllegalArgumentException xoov) {
+	    throw new ServletException("Bad Raven URL list", xoov);
+	}
 	this.interceptLoginPath = config.getInitParameter(CONF_PREFIX
 		+ "intercept-login-path");
+	try {
+	    this.pathPolicy = PathPolicy.parse(config
+		    .getInitParameter(CONF_PREFIX + "public-paths"), config
+		    .getInitParameter(CONF_PREFIX + "protected-paths"),
+		    this.interceptLoginPath);
+	} catch (IllegalArgumentException xoov) {
+	    throw new ServletException("Bad path policy", xoov);
+	}
 	this.keyPrefix = config.getInitParameter(CONF_PREFIX + "key-prefix");
 	this.description = config.getInitParameter(CONF_PREFIX + "description");
 	try {
-	    this.keyStore = KeyStore.getInstance("JKS");
 	    final String filename = config.getInitParameter(CONF_PREFIX
 		    + "keystore");
 	    final String password = config.getInitParameter(CONF_PREFIX
 		    + "keystore-password");
-	    final InputStream is = new FileInputStream(filename);
-	    this.keyStore.load(is, password.toCharArray());
-	    is.close();
-	} catch (KeyStoreException xoov) {
-	    throw new ServletException("Cannot construct keystore", xoov);
+	    // Servlets naming the same keys share one copy, loaded once.
+	    this.keys = KeyRegistry.keys(filename, password);
 	} catch (IOException xoov) {
 	    throw new ServletException("Cannot load certificate file", xoov);
-	} catch (NoSuchAlgorithmException xoov) {
-	    throw new ServletException("Cannot understand cert file", xoov);
-	} catch (CertificateException xoov) {
+	} catch (GeneralSecurityException xoov) {
 	    throw new ServletException("Cannot understand cert file", xoov);
 	}
+	final String resolution = config.getInitParameter(CONF_PREFIX
+		+ "clock-resolution");
+	if (resolution == null) {
+	    this.clock = Clock.SYSTEM;
+	} else {
+	    try {
+		this.clock = Clock.coarse(Long.parseLong(resolution));
+	    } catch (IllegalArgumentException xoov) {
+		throw new ServletException("Bad clock resolution", xoov);
+	    }
+	}
+	final ResponseLimits d = ResponseLimits.DEFAULT;
+	try {
+	    final int response = intParameter(config, "max-response-length",
+		    d.getMaxResponseLength());
+	    final int field = intParameter(config, "max-field-length",
+		    d.getMaxFieldLength());
+	    final int signature = intParameter(config, "max-signature-length",
+		    d.getMaxSignatureLength());
+	    final int parameters = intParameter(config, "max-parameters",
+		    d.getMaxParameters());
+	    this.limits = new ResponseLimits(response, field, signature,
+		    parameters);
+	} catch (IllegalArgumentException xoov) {
+	    throw new ServletException("Bad response limits", xoov);
+	}
+	// Each servlet has its own Authenticator, and so its own negative
+	// caches, over the shared keys.
+	this.authenticator = new Authenticator(this.keys, this.keyPrefix,
+		this.clock).withLimits(this.limits);
+	final String threshold = config.getInitParameter(CONF_PREFIX
+		+ "slow-auth-threshold");
+	if (threshold != null) {
+	    try {
+		this.slowAuthLog = new SlowAuthLog(intParameter(config,
+			"slow-auth-capacity", 256), Long.parseLong(threshold
+			.trim()), this.clock);
+	    } catch (IllegalArgumentException xoov) {
+		throw new ServletException("Bad slow authentication log", xoov);
+	    }
+	    config.getServletContext().setAttribute(
+		    slowAuthLogAttribute(config.getServletName()),
+		    this.slowAuthLog);
+	}
+	final String storeCapacity = config.getInitParameter(CONF_PREFIX
+		+ "identity-store-capacity");
+	if (storeCapacity != null)
+	    this.startIdentityStore(config, storeCapacity);
+	final String threads = config.getInitParameter(CONF_PREFIX
+		+ "verify-threads");
+	if (threads != null) {
+	    try {
+		final int n = Integer.parseInt(threads);
+		final String queue = config.getInitParameter(CONF_PREFIX
+			+ "verify-queue");
+		final String wait = config.getInitParameter(CONF_PREFIX
+			+ "verify-max-wait");
+		this.verificationService = new VerificationService(n,
+			queue == null ? 16 * n : Integer.parseInt(queue),
+			wait == null ? 0L : Long.parseLong(wait));
+	    } catch (IllegalArgumentException xoov) {
+		throw new ServletException("Bad verification limits", xoov);
+	    }
+	}
+    }
+
+    /**
+     * Creates the IdentityStore of 'capacity' records described by 'config',
+     * and starts sweeping it.
+     * 
+     * @throws ServletException
+     *             if it cannot be created.
+     */
+    private void startIdentityStore(ServletConfig config, String capacity)
+	    throws ServletException {
+	final String file = config.getInitParameter(CONF_PREFIX
+		+ "identity-store-file");
+	final long interval;
+	try {
+	    final int maxPrincipal = intParameter(config,
+		    "identity-store-max-principal", 64);
+	    interval = intParameter(config, "identity-store-sweep", 60000);
+	    final int records = Integer.parseInt(capacity.trim());
+	    this.identityStore = file == null ? new IdentityStore(records,
+		    maxPrincipal) : new IdentityStore(new File(file), records,
+		    maxPrincipal);
+	} catch (IllegalArgumentException xoov) {
+	    throw new ServletException("Bad identity store limits", xoov);
+	} catch (IOException xoov) {
+	    throw new ServletException("Cannot create identity store", xoov);
+	}
+	final IdentityStore store = this.identityStore;
+	final Clock clock = this.clock;
+	this.identitySweeper = new Timer("raven-identity-sweep", true);
+	this.identitySweeper.schedule(new TimerTask() {
+	    public void run() {
+		store.sweep(clock.currentTimeMillis());
+	    }
+	}, interval, interval);
+    }
+
+    /**
+     * Returns the initialisation parameter CONF_PREFIX + 'name' of 'config' as
+     * an int, or 'otherwise' if it is not set.
+     * 
+     * @throws NumberFormatException
+     *             if it is set but is not an int.
+     */
+    private static int intParameter(ServletConfig config, String name,
+	    int otherwise) {
+	final String value = config.getInitParameter(CONF_PREFIX + name);
+	return value == null ? otherwise : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Releases the resources held by this RavenServlet. Called by the servlet
+     * container when a servlet is taken out of service. If subclasses override
+     * this method, they MUST call 'super.destroy()'.
+     */
+    public void destroy() {
+	if (this.verificationService != null)
+	    this.verificationService.shutdown();
+	if (this.clock instanceof Clock.CoarseClock)
+	    ((Clock.CoarseClock) this.clock).stop();
+	if (this.identitySweeper != null)
+	    this.identitySweeper.cancel();
+	if (this.identityStore != null) {
+	    try {
+		this.identityStore.close();
+	    } catch (IOException xoov) {
+		this.log("Cannot close identity store", xoov);
+	    }
+	}
+	if (this.slowAuthLog != null)
+	    this.getServletContext().removeAttribute(
+		    slowAuthLogAttribute(this.getServletName()));
+	super.destroy();
     }
 
     protected final void doGet(HttpServletRequest req, HttpServletResponse res)
@@ -127,51 +385,185 @@ public abstract class RavenServlet extends HttpServlet {
 
     protected final void doPost(HttpServletRequest req, HttpServletResponse res)
 	    throws IOException, ServletException {
-	// Get a RavenAuthenticator
-	final HttpSession ses = req.getSession(true);
-	SessionObject so = (SessionObject) ses.getAttribute(SESSION_KEY);
-	if (so == null) {
-	    so = new SessionObject();
-	    so.ra = new RavenAuthenticator(this.ravenURL,
-		    this.interceptLoginPath, this.description, this.keyStore,
-		    this.keyPrefix);
-	    ses.setAttribute(SESSION_KEY, so);
-	}
+	final AuthEvents.Span span = AuthEvents.begin(AuthEvents.Kind.REQUEST);
+	final SlowAuthLog slow = this.slowAuthLog;
+	final long slowStart = slow == null ? 0L : slow.begin();
+	String kind = null;
+	final PathPolicy.Rule rule = this.pathPolicy.match(req.getPathInfo());
+	// Only look for an existing session here; one is created only once a
+	// request turns out to need authentication. A public request is given
+	// the session, but never reads or changes its authentication state.
+	long started = SlowAuthLog.start();
+	HttpSession ses = req.getSession(false);
+	final Object attribute = ses == null || rule == PathPolicy.Rule.PUBLIC
+		? null : ses.getAttribute(SESSION_KEY);
+	SessionObject so = attribute instanceof SessionObject
+		? (SessionObject) attribute : null;
+	// An authenticated session may keep only a handle to its Identity.
+	final StoredIdentity stored = attribute instanceof StoredIdentity
+		? (StoredIdentity) attribute : null;
+	boolean storedCurrent = false;
+	SlowAuthLog.record(SlowAuthLog.Phase.SESSION, started);
 	Action a = null;
+	int status = 0;
+	String reason = null;
 	try {
-	    a = so.action;
-	    if (so.ra.interceptLoginRequest(req, res))
-		return;
-	    so.action = null;
+	    if (rule == PathPolicy.Rule.CALLBACK)
+		kind = "callback";
+	    if (so == null) {
+		// A callback without a session cannot match any Request.
+		if (kind != null)
+		    throw RavenAuthenticator.NO_REQUEST_MEMORY.reuse();
+	    } else {
+		if (so.ra.interceptLoginRequest(req, res))
+		    return;
+		// Claim the saved Action atomically so that concurrent requests
+		// in the same session cannot both perform it.
+		a = so.action.getAndSet(null);
+	    }
 	    if (a == null)
 		a = this.parseRequest(req);
-	    if (this.requiresAuthentication(a)) {
-		if (so.ra.handleAuthentication(req, res, new Date(), null)) {
-		    so.action = a;
-		    return;
+	    if (rule == PathPolicy.Rule.PROTECTED || rule == null
+		    && this.requiresAuthentication(a)) {
+		kind = "authenticate";
+		final long now = this.clock.currentTimeMillis();
+		storedCurrent = stored != null && stored.isCurrent(now);
+		if (!storedCurrent) {
+		    if (this.exceedsLimits(a, so, now)) {
+			reason = TOO_MANY_PARAMETERS;
+			res.sendError(
+				HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+				reason);
+			return;
+		    }
+		    if (so == null) {
+			started = SlowAuthLog.start();
+			ses = req.getSession(true);
+			so = this.sessionObject(ses);
+			SlowAuthLog.record(SlowAuthLog.Phase.SESSION, started);
+		    }
+		    if (so.ra.handleAuthentication(req, res, now, null)) {
+			so.action.set(a.detach());
+			return;
+		    }
+		    this.store(ses, so, now);
 		}
 	    }
+	    // The Action's own time is not part of authentication.
+	    if (slow != null)
+		slow.end(slowStart, kind, kid(so), null);
 	    this.performAction(a, ses, res);
 	} catch (RavenAuthenticationException xoov) {
+	    status = xoov.status;
+	    reason = xoov.getMessage();
 	    this.reportRavenAuthenticationException(a, res, xoov);
 	} catch (RavenStateException xoov) {
+	    reason = xoov.getMessage();
 	    this.reportRavenStateException(a, res, xoov);
+	} catch (RavenOverloadedException xoov) {
+	    reason = xoov.getMessage();
+	    this.reportRavenOverloadedException(a, res, xoov);
 	} catch (RavenException xoov) {
+	    reason = xoov.getMessage();
 	    this.reportRavenException(a, res, xoov);
 	} catch (ServletException xoov) {
+	    reason = xoov.getMessage();
 	    this.reportServletException(a, res, xoov);
+	} finally {
+	    final String kid = kid(so);
+	    if ((storedCurrent || so != null && so.ra.getIdentity() != null)
+		    && status == 0)
+		status = 200;
+	    span.end(kid, status, reason);
+	    if (slow != null)
+		slow.end(slowStart, kind, kid, reason);
 	}
     }
 
+    /**
+     * Returns the kid of the Identity or Token of 'so', or 'null'.
+     */
+    private static String kid(SessionObject so) {
+	if (so == null)
+	    return null;
+	final Identity id = so.ra.getIdentity();
+	if (id != null)
+	    return id.getKid();
+	final Token t = so.ra.getToken();
+	return t == null ? null : t.kid;
+    }
+
+    /**
+     * Returns the SessionObject of 'ses', installing a new one if there is
+     * none.
+     */
+    private SessionObject sessionObject(HttpSession ses) {
+	Object attribute = ses.getAttribute(SESSION_KEY);
+	if (!(attribute instanceof SessionObject)) {
+	    // Only the creation is locked, so that two concurrent first
+	    // requests cannot each install their own SessionObject.
+	    synchronized (this.sessionObjectLock) {
+		attribute = ses.getAttribute(SESSION_KEY);
+		if (!(attribute instanceof SessionObject)) {
+		    final SessionObject so = new SessionObject(
+			    new RavenAuthenticator(this.authenticator,
+				    this.ravenEndpoints, this.interceptLoginPath,
+				    this.description));
+		    so.ra.setVerificationService(this.verificationService);
+		    so.ra.setEnricher(this.enricher);
+		    so.ra.setBaseURLCache(this.baseURLCache);
+		    // Replacing a StoredIdentity frees its record.
+		    ses.setAttribute(SESSION_KEY, so);
+		    return so;
+		}
+	    }
+	}
+	return (SessionObject) attribute;
+    }
+
+    /**
+     * Moves the Identity of 'so', if any, into the IdentityStore, if there is
+     * one, leaving only its handle in 'ses'. Does nothing if the store is
+     * full, or 'so' holds an Action for a later request.
+     */
+    private void store(HttpSession ses, SessionObject so, long now) {
+	final IdentityStore store = this.identityStore;
+	final Identity id = so.ra.getIdentity();
+	if (store == null || id == null || so.action.get() != null)
+	    return;
+	final long handle = store.put(id, now);
+	if (handle >= 0L)
+	    ses.setAttribute(SESSION_KEY, new StoredIdentity(store, handle));
+    }
+
+    /**
+     * Returns 'true' if 'a', parsed from the current request, has more
+     * parameters than the limits allow to be kept in the session while the
+     * user authenticates, and 'so', if any, holds no Identity current at
+     * 'when', so that it would have to be kept. Checked before a session is
+     * created or anything is written to the response.
+     */
+    private boolean exceedsLimits(Action a, SessionObject so, long when) {
+	if (!(a instanceof RequestMapAction))
+	    return false;
+	final Identity id = so == null ? null : so.ra.getIdentity();
+	return (id == null || !id.isCurrent(when))
+		&& ((RequestMapAction) a).hasMoreParameters(this.limits
+			.getMaxParameters());
+    }
+
     /**
      * Extracts from 'req' all information necessary for processing the request.
-     * This method can be called before the user is authenticated. The Action
-     * returned should contain no reference to 'req'. Subclasses must not assume
-     * that the Action will be passed to 'performAction()' immediately or at
-     * all; it may be delayed by several request/response cycles. The method
-     * should therefore not have any side-effects.
+     * This method can be called before the user is authenticated. Subclasses
+     * must not assume that the Action will be passed to 'performAction()'
+     * immediately or at all; it may be delayed by several request/response
+     * cycles, in which case it is first replaced by 'Action.detach()'. The
+     * method should therefore not have any side-effects, and an Action that
+     * keeps a reference to 'req' must override 'detach()'.
      * <p>
-     * The default implementation puts all the HTTP parameters into a MapAction.
+     * The default implementation returns a MapAction whose 'params' is a
+     * read-only view of the HTTP parameters of 'req'. Nothing is copied unless
+     * the Action has to be kept across a redirect to Raven.
      * 
      * @param req
      *            the HttpServletRequest to parse.
@@ -179,20 +571,16 @@ public abstract class RavenServlet extends HttpServlet {
      */
     protected Action parseRequest(HttpServletRequest req) throws IOException,
 	    ServletException {
-	final Map<String, String> params = new HashMap<String, String>();
-	for (Enumeration<String> e = req.getParameterNames(); e
-		.hasMoreElements();) {
-	    final String name = (String) e.nextElement();
-	    final String value = req.getParameter(name);
-	    params.put(name, value);
-	}
-	return new MapAction(req.getPathInfo(), params);
+	return new RequestMapAction(req);
     }
 
     /**
      * Returns 'true' if 'a' requires authentication. Otherwise returns 'false'.
      * The default implementation always returns 'true'. Subclasses can override
-     * this to provide finer-grained control of access to resources.
+     * this to provide finer-grained control of access to resources. A request
+     * for which this returns 'false' does not create an HttpSession. It is
+     * called only for paths that match neither 'public-paths' nor
+     * 'protected-paths', which decide faster, before the Action is built.
      * 
      * @param a
      *            the Action to test.
@@ -210,7 +598,8 @@ public abstract class RavenServlet extends HttpServlet {
      * @param a
      *            the Action to perform.
      * @param ses
-     *            the HttpSession.
+     *            the HttpSession, or 'null' if 'a' does not require
+     *            authentication and the client has no session yet.
      * @param res
      *            the HttpServletResponse to which to write.
      */
@@ -261,6 +650,28 @@ public abstract class RavenServlet extends HttpServlet {
 	res.sendRedirect("/");
     }
 
+    /**
+     * Called when a token could not be verified because too many others were
+     * already awaiting verification. The default implementation sends an
+     * error 503 to the browser, asking it to retry after a second.
+     * 
+     * @param action
+     *            the Action that would have been called had authentication
+     *            succeeded. The Action will be discarded after this method is
+     *            called.
+     * @param res
+     *            the HttpServletResponse to which to write.
+     * @param cause
+     *            the RavenException describing the error.
+     */
+    protected void reportRavenOverloadedException(Action action,
+	    HttpServletResponse res, RavenOverloadedException cause)
+	    throws IOException, ServletException {
+	res.setHeader("Retry-After", "1");
+	res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+		cause.getMessage());
+    }
+
     /**
      * Called when authentication is not possible because of a protocol error.
      * The default implementation sends an error 500 to the browser.
@@ -308,6 +719,15 @@ public abstract class RavenServlet extends HttpServlet {
      * delayed by several request/response cycles.
      */
     public static abstract class Action {
+	/**
+	 * Returns an equivalent Action that holds no reference to the request
+	 * from which this one was parsed. RavenServlet calls this before keeping
+	 * an Action in the session while the user authenticates. The default
+	 * implementation returns 'this'.
+	 */
+	protected Action detach() {
+	    return this;
+	}
     }
 
     /**
@@ -333,9 +753,130 @@ public abstract class RavenServlet extends HttpServlet {
 	public final Map<String, String> params;
     }
 
+    /**
+     * The MapAction returned by the default 'parseRequest()'. Its 'params'
+     * reads through to the HttpServletRequest until it is detached.
+     */
+    private static final class RequestMapAction extends MapAction {
+	RequestMapAction(HttpServletRequest req) {
+	    super(req.getPathInfo(), new ParameterView(req));
+	}
+
+	/**
+	 * Returns 'true' if the request has more than 'max' parameters. Stops
+	 * counting once it knows.
+	 */
+	boolean hasMoreParameters(int max) {
+	    final Enumeration<String> names = ((ParameterView) this.params).req
+		    .getParameterNames();
+	    for (int i = 0; i <= max; i++) {
+		if (!names.hasMoreElements())
+		    return false;
+		names.nextElement();
+	    }
+	    return true;
+	}
+
+	protected Action detach() {
+	    return new MapAction(this.pathInfo,
+		    ((ParameterView) this.params).snapshot());
+	}
+    }
+
+    /**
+     * A read-only Map view of the first value of each HTTP parameter of a
+     * request.
+     */
+    private static final class ParameterView extends
+	    AbstractMap<String, String> {
+	private final HttpServletRequest req;
+
+	ParameterView(HttpServletRequest req) {
+	    this.req = req;
+	}
+
+	public String get(Object key) {
+	    return key instanceof String ? this.req.getParameter((String) key)
+		    : null;
+	}
+
+	public boolean containsKey(Object key) {
+	    return this.get(key) != null;
+	}
+
+	public int size() {
+	    return this.req.getParameterMap().size();
+	}
+
+	public Set<Map.Entry<String, String>> entrySet() {
+	    return new AbstractSet<Map.Entry<String, String>>() {
+		public int size() {
+		    return ParameterView.this.size();
+		}
+
+		public Iterator<Map.Entry<String, String>> iterator() {
+		    final Enumeration<String> names = req.getParameterNames();
+		    return new Iterator<Map.Entry<String, String>>() {
+			public boolean hasNext() {
+			    return names.hasMoreElements();
+			}
+
+			public Map.Entry<String, String> next() {
+			    final String name = names.nextElement();
+			    return new AbstractMap.SimpleImmutableEntry<String, String>(
+				    name, req.getParameter(name));
+			}
+
+			public void remove() {
+			    throw new UnsupportedOperationException();
+			}
+		    };
+		}
+	    };
+	}
+
+	/** Returns an immutable copy of this view, sized to fit. */
+	Map<String, String> snapshot() {
+	    final Enumeration<String> names = this.req.getParameterNames();
+	    if (!names.hasMoreElements())
+		return Collections.emptyMap();
+	    final String first = names.nextElement();
+	    if (!names.hasMoreElements())
+		return Collections.singletonMap(first,
+			this.req.getParameter(first));
+	    final int size = this.size();
+	    final Map<String, String> copy = new HashMap<String, String>(
+		    (int) (size / 0.75f) + 1);
+	    copy.put(first, this.req.getParameter(first));
+	    while (names.hasMoreElements()) {
+		final String name = names.nextElement();
+		copy.put(name, this.req.getParameter(name));
+	    }
+	    return Collections.unmodifiableMap(copy);
+	}
+    }
+
     /** The key used to retrieve the RavenAuthenticator from an HttpSession. */
     public static final String SESSION_KEY = "Igneousrocksarebetterthansedimentaryones.Applepieisbetterthanplum35";
 
+    /** Why a request with too many parameters to keep is refused. */
+    private static final String TOO_MANY_PARAMETERS = "Too many parameters";
+
+    /**
+     * The prefix of the ServletContext attributes holding SlowAuthLogs; see
+     * 'slowAuthLogAttribute()'.
+     */
+    public static final String SLOW_AUTH_LOG = "gs.spri.raven.SlowAuthLog";
+
+    /**
+     * Returns the ServletContext attribute holding the SlowAuthLog of the
+     * RavenServlet named 'servletName', if it has one. Each RavenServlet in a
+     * web application has its own, so that they do not overwrite each other.
+     */
+    public static String slowAuthLogAttribute(String servletName) {
+	return SLOW_AUTH_LOG + "." + servletName;
+    }
+
     /**
      * The prefix for all RavenServlet configuration parameters in web.xml.
      */
@@ -343,17 +884,64 @@ public abstract class RavenServlet extends HttpServlet {
 
     /* PRIVATE */
 
-    private String ravenURL = null;
+    private RavenEndpoints ravenEndpoints = null;
     private String interceptLoginPath = null;
+    private PathPolicy pathPolicy = null;
     private String description = null;
     private String keyPrefix = null;
-    private KeyStore keyStore = null;
+    private KeySet keys = null;
+    private Clock clock = null;
+    private Authenticator authenticator = null;
+    private ResponseLimits limits = ResponseLimits.DEFAULT;
+    private SlowAuthLog slowAuthLog = null;
+    private VerificationService verificationService = null;
+    private volatile Enricher enricher = null;
+    private IdentityStore identityStore = null;
+    private Timer identitySweeper = null;
+    private final BaseURLCache baseURLCache = new BaseURLCache();
+    private final Object sessionObjectLock = new Object();
 
     /**
      * Wraps a RavenAuthenticator and an Action to put in a session.
      */
     private static class SessionObject {
-	public RavenAuthenticator ra = null;
-	public Action action = null;
+	SessionObject(RavenAuthenticator ra) {
+	    this.ra = ra;
+	}
+
+	public final RavenAuthenticator ra;
+	public final AtomicReference<Action> action = new AtomicReference<Action>();
+    }
+
+    /**
+     * Put in a session in place of a SessionObject once its Identity has been
+     * moved into an IdentityStore. Frees the record when it is removed from
+     * the session, or the session ends.
+     */
+    private static final class StoredIdentity implements
+	    HttpSessionBindingListener {
+	StoredIdentity(IdentityStore store, long handle) {
+	    this.store = store;
+	    this.handle = handle;
+	}
+
+	private final IdentityStore store;
+	private final long handle;
+
+	boolean isCurrent(long when) {
+	    return this.store.isCurrent(this.handle, when);
+	}
+
+	Identity get() {
+	    return this.store.get(this.handle);
+	}
+
+	public void valueBound(HttpSessionBindingEvent event) {
+	    // Nothing to do.
+	}
+
+	public void valueUnbound(HttpSessionBindingEvent event) {
+	    this.store.remove(this.handle);
+	}
     }
 }
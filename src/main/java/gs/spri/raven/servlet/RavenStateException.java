@@ -41,4 +41,24 @@ public class RavenStateException extends RavenException {
     public RavenStateException(String msg) {
 	super(msg);
     }
+
+    /**
+     * Constructs a RavenStateException that can be thrown repeatedly; see
+     * 'RavenException.shared()'.
+     */
+    protected RavenStateException(String msg, boolean shared) {
+	super(msg, shared);
+    }
+
+    /**
+     * Returns a RavenStateException with message 'msg' to be kept in a
+     * constant and thrown with 'reuse()'.
+     */
+    public static RavenStateException shared(String msg) {
+	return new RavenStateException(msg, true);
+    }
+
+    protected RavenException copy() {
+	return new RavenStateException(this.getMessage());
+    }
 }
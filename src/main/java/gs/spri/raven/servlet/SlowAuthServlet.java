@@ -0,0 +1,90 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.servlet;
+
+import gs.spri.raven.SlowAuthLog;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the SlowAuthLog of a RavenServlet in the same web application, as
+ * tab-separated text: a header line, then one line per captured request,
+ * oldest first, with times in microseconds. The init parameter
+ * 'gs.spri.raven.raven-servlet' names the RavenServlet; without it, the only
+ * RavenServlet with a log is shown. Responds 404 if there is no such log,
+ * for example because the RavenServlet has no 'slow-auth-threshold'. The log
+ * reveals key IDs and failure reasons, so map this servlet only where
+ * operators can reach it.
+ */
+public class SlowAuthServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+	    throws IOException {
+	final SlowAuthLog log = this.log();
+	if (log == null) {
+	    res.sendError(HttpServletResponse.SC_NOT_FOUND,
+		    "No slow authentication log");
+	    return;
+	}
+	res.setContentType("text/plain; charset=UTF-8");
+	res.setHeader("Cache-Control", "no-store");
+	final PrintWriter out = res.getWriter();
+	out.println(SlowAuthLog.header());
+	for (SlowAuthLog.Entry e : log.snapshot())
+	    out.println(e);
+	out.flush();
+    }
+
+    /**
+     * Returns the SlowAuthLog of the RavenServlet named by the init parameter,
+     * or else of the only RavenServlet that has one, or 'null'.
+     */
+    private SlowAuthLog log() {
+	final ServletContext context = this.getServletContext();
+	final String name = this.getInitParameter(RavenServlet.CONF_PREFIX
+		+ "raven-servlet");
+	if (name != null)
+	    return (SlowAuthLog) context.getAttribute(RavenServlet
+		    .slowAuthLogAttribute(name));
+	final String prefix = RavenServlet.slowAuthLogAttribute("");
+	SlowAuthLog ans = null;
+	for (Enumeration<String> e = context.getAttributeNames(); e
+		.hasMoreElements();) {
+	    final String attribute = e.nextElement();
+	    if (!attribute.startsWith(prefix))
+		continue;
+	    // With several, the operator must say which one.
+	    if (ans != null)
+		return null;
+	    ans = (SlowAuthLog) context.getAttribute(attribute);
+	}
+	return ans;
+    }
+}
@@ -0,0 +1,306 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.tools;
+
+import gs.spri.raven.Authenticator;
+import gs.spri.raven.Clock;
+import gs.spri.raven.KeyRegistry;
+import gs.spri.raven.KeySet;
+import gs.spri.raven.Request;
+import gs.spri.raven.Token;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command-line entry point that measures how long a freshly started process
+ * takes to validate its first Raven response, as a scale-to-zero service
+ * must.
+ * <p>
+ * Run once, it loads the keystore through KeyRegistry, parses and validates
+ * the recorded response, then validates it '--iterations' more times, and
+ * writes one line per step to standard output, as
+ *
+ * <pre>
+ * STEP	MILLISECONDS
+ * </pre>
+ *
+ * The steps are 'launch' (from '--launched', in milliseconds since the epoch,
+ * or else the JVM's own start time, to 'main()'), 'load-keys', 'first-parse',
+ * 'first-validate', 'first-total' (from launch to the end of the first
+ * validation) and 'warm-validate' (the mean of the rest).
+ * <p>
+ * With '--runs N', it instead starts itself N times in a new JVM, and N times
+ * as the executable given by '--native' if any, for example a native image
+ * of this class built by the caller, and writes the median of each step in
+ * each mode, as
+ *
+ * <pre>
+ * STEP	JVM-MILLISECONDS	NATIVE-MILLISECONDS
+ * </pre>
+ *
+ * with a last step 'process', the time from starting each process to its
+ * exit. The recorded response must be a successful Encoded Response String
+ * signed by a key in the keystore. Its issue time is used as the current
+ * time. Run with no arguments for usage.
+ */
+public final class StartupBenchmark {
+
+    private static final String USAGE = "Usage: java -cp rslib.jar"
+	    + " gs.spri.raven.tools.StartupBenchmark --keystore FILE"
+	    + " --storepass PASSWORD [--key-prefix PREFIX] [--iterations N]"
+	    + " [--launched MILLIS | --runs N [--native EXECUTABLE]]"
+	    + " RESPONSEFILE";
+
+    private StartupBenchmark() {
+    }
+
+    public static void main(String[] args) {
+	final long main = System.currentTimeMillis();
+	try {
+	    System.exit(run(args, main, System.out));
+	} catch (IllegalArgumentException xoov) {
+	    System.err.println(xoov.getMessage());
+	    System.err.println(USAGE);
+	    System.exit(2);
+	} catch (Exception xoov) {
+	    xoov.printStackTrace();
+	    System.exit(2);
+	}
+    }
+
+    /**
+     * Runs the benchmark using the arguments in 'args', writing the results
+     * to 'out'. 'main' is when 'main()' was entered, in milliseconds since the
+     * epoch. Returns 0 on success, otherwise 1.
+     *
+     * @throws IllegalArgumentException
+     *             if 'args' are not valid.
+     */
+    public static int run(String[] args, long main, PrintStream out)
+	    throws Exception {
+	final Map<String, String> opts = new LinkedHashMap<String, String>();
+	String responseFile = null;
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].startsWith("--")) {
+		if (i + 1 == args.length)
+		    throw new IllegalArgumentException("Missing value for "
+			    + args[i]);
+		opts.put(args[i], args[++i]);
+	    } else if (responseFile == null) {
+		responseFile = args[i];
+	    } else {
+		throw new IllegalArgumentException(
+			"Only one response file allowed");
+	    }
+	}
+	if (responseFile == null || !opts.containsKey("--keystore")
+		|| !opts.containsKey("--storepass"))
+	    throw new IllegalArgumentException("Missing argument");
+	if (opts.containsKey("--runs")) {
+	    if (opts.containsKey("--launched"))
+		throw new IllegalArgumentException(
+			"--runs and --launched are exclusive");
+	    return compare(opts, responseFile, out);
+	}
+	if (opts.containsKey("--native"))
+	    throw new IllegalArgumentException("--native needs --runs");
+	final long launched = opts.containsKey("--launched") ? Long
+		.parseLong(opts.get("--launched")) : ManagementFactory
+		.getRuntimeMXBean().getStartTime();
+	for (Map.Entry<String, Double> e : measure(opts, responseFile,
+		launched, main).entrySet())
+	    out.println(e.getKey() + "\t" + format(e.getValue().doubleValue()));
+	return 0;
+    }
+
+    /** Measures each step once in this process, returning milliseconds. */
+    private static Map<String, Double> measure(Map<String, String> opts,
+	    String responseFile, long launched, long main) throws Exception {
+	final int iterations = opts.containsKey("--iterations") ? Integer
+		.parseInt(opts.get("--iterations")) : 1000;
+	final String prefix = opts.containsKey("--key-prefix") ? opts
+		.get("--key-prefix") : "webauth-pubkey";
+	final String ers = readResponse(responseFile);
+	final Map<String, Double> ans = new LinkedHashMap<String, Double>();
+	ans.put("launch", Double.valueOf(main - launched));
+
+	long start = System.nanoTime();
+	final KeySet keys = KeyRegistry.keys(opts.get("--keystore"),
+		opts.get("--storepass"));
+	ans.put("load-keys", millisSince(start));
+
+	start = System.nanoTime();
+	final Token first = new Token(ers);
+	final Clock clock = Clock.fixed(first.getIssue().getTime());
+	final Authenticator auth = new Authenticator(keys, prefix, clock);
+	final Token token = auth.parseToken(ers);
+	ans.put("first-parse", millisSince(start));
+
+	start = System.nanoTime();
+	final Authenticator.Validator validator = auth.compile(new Request(
+		first.url, clock));
+	validator.validate(token);
+	ans.put("first-validate", millisSince(start));
+	ans.put("first-total",
+		Double.valueOf(System.currentTimeMillis() - launched));
+
+	start = System.nanoTime();
+	for (int i = 0; i < iterations; i++)
+	    validator.validate(auth.parseToken(ers));
+	ans.put("warm-validate", Double.valueOf(millisSince(start)
+		.doubleValue() / Math.max(1, iterations)));
+	return ans;
+    }
+
+    /**
+     * Starts this benchmark '--runs' times in each mode, writing the median
+     * of each step. Returns 1 if any run failed.
+     */
+    private static int compare(Map<String, String> opts, String responseFile,
+	    PrintStream out) throws Exception {
+	final int runs = Integer.parseInt(opts.get("--runs"));
+	if (runs <= 0)
+	    throw new IllegalArgumentException("Bad number of runs");
+	final List<String> args = new ArrayList<String>();
+	for (Map.Entry<String, String> e : opts.entrySet())
+	    if (!e.getKey().equals("--runs")
+		    && !e.getKey().equals("--native")) {
+		args.add(e.getKey());
+		args.add(e.getValue());
+	    }
+	args.add(responseFile);
+	final List<String> jvm = new ArrayList<String>(Arrays.asList(
+		System.getProperty("java.home") + File.separator + "bin"
+			+ File.separator + "java", "-cp",
+		System.getProperty("java.class.path"),
+		StartupBenchmark.class.getName()));
+	jvm.addAll(args);
+	final Map<String, double[]> jvmTimes = runAll(jvm, runs);
+	Map<String, double[]> nativeTimes = null;
+	if (opts.containsKey("--native")) {
+	    final List<String> image = new ArrayList<String>();
+	    image.add(opts.get("--native"));
+	    image.addAll(args);
+	    nativeTimes = runAll(image, runs);
+	}
+	if (jvmTimes == null || (opts.containsKey("--native")
+		&& nativeTimes == null))
+	    return 1;
+	for (Map.Entry<String, double[]> e : jvmTimes.entrySet()) {
+	    final double[] n = nativeTimes == null ? null : nativeTimes.get(e
+		    .getKey());
+	    out.println(e.getKey() + "\t" + format(median(e.getValue())) + "\t"
+		    + (n == null ? "-" : format(median(n))));
+	}
+	return 0;
+    }
+
+    /**
+     * Runs 'command' 'runs' times, each with '--launched' set to the time it
+     * is started, and returns the time of each step in each run, or 'null' if
+     * a run failed.
+     */
+    private static Map<String, double[]> runAll(List<String> command,
+	    int runs) throws Exception {
+	final Map<String, double[]> ans = new LinkedHashMap<String, double[]>();
+	for (int run = 0; run < runs; run++) {
+	    final List<String> c = new ArrayList<String>(command);
+	    final long launched = System.currentTimeMillis();
+	    c.add(c.size() - 1, "--launched");
+	    c.add(c.size() - 1, Long.toString(launched));
+	    final Process p = new ProcessBuilder(c).redirectErrorStream(true)
+		    .start();
+	    final BufferedReader r = new BufferedReader(new InputStreamReader(
+		    p.getInputStream(), "UTF-8"));
+	    final Map<String, Double> steps =
+		    new LinkedHashMap<String, Double>();
+	    try {
+		String line;
+		while ((line = r.readLine()) != null) {
+		    final int tab = line.indexOf('\t');
+		    if (tab < 0) {
+			System.err.println(line);
+			continue;
+		    }
+		    steps.put(line.substring(0, tab),
+			    Double.valueOf(line.substring(tab + 1)));
+		}
+	    } finally {
+		r.close();
+	    }
+	    if (p.waitFor() != 0) {
+		System.err.println("Failed: " + c);
+		return null;
+	    }
+	    steps.put("process",
+		    Double.valueOf(System.currentTimeMillis() - launched));
+	    for (Map.Entry<String, Double> e : steps.entrySet()) {
+		double[] times = ans.get(e.getKey());
+		if (times == null) {
+		    times = new double[runs];
+		    ans.put(e.getKey(), times);
+		}
+		times[run] = e.getValue().doubleValue();
+	    }
+	}
+	return ans;
+    }
+
+    private static double median(double[] times) {
+	final double[] sorted = times.clone();
+	Arrays.sort(sorted);
+	final int mid = sorted.length / 2;
+	return sorted.length % 2 == 1 ? sorted[mid]
+		: (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+
+    private static Double millisSince(long nanos) {
+	return Double.valueOf((System.nanoTime() - nanos) / 1e6);
+    }
+
+    private static String format(double millis) {
+	return String.format(Locale.ROOT, "%.3f", Double.valueOf(millis));
+    }
+
+    private static String readResponse(String file) throws Exception {
+	final BufferedReader r = new BufferedReader(new InputStreamReader(
+		new FileInputStream(file), "UTF-8"));
+	try {
+	    final String line = r.readLine();
+	    if (line == null || line.trim().length() == 0)
+		throw new IllegalArgumentException("Empty response file");
+	    return line.trim();
+	} finally {
+	    r.close();
+	}
+    }
+}
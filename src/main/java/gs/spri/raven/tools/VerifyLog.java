@@ -0,0 +1,520 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.tools;
+
+import gs.spri.raven.Authenticator;
+import gs.spri.raven.Clock;
+import gs.spri.raven.KeyRegistry;
+import gs.spri.raven.KeySet;
+import gs.spri.raven.RavenAuthenticationException;
+import gs.spri.raven.RavenException;
+import gs.spri.raven.Request;
+import gs.spri.raven.Token;
+import gs.spri.raven.Util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Command-line entry point that verifies a log of recorded WLS-Responses
+ * offline, as if each had been received at a given time.
+ * <p>
+ * Each line of the log is either an Encoded Response String, or (with
+ * '--ndjson') a JSON object with a "response" member and optional "url" and
+ * "params" members giving the values expected in the Request. The log is read
+ * through a sliding memory-mapped window and verified in parallel, so memory
+ * use does not depend on the size of the log. One verdict per line is written
+ * to standard output, in order, as
+ * 
+ * <pre>
+ * LINE	OK	PRINCIPAL
+ * LINE	FAIL	REASON
+ * </pre>
+ * 
+ * and summary statistics are written to standard error. Run with no arguments
+ * for usage.
+ */
+public final class VerifyLog {
+
+    private static final String USAGE = "Usage: java -jar rslib.jar"
+	    + " --keystore FILE --storepass PASSWORD [--key-prefix PREFIX]"
+	    + " --as-of YYYYMMDDTHHMMSSZ [--url URL] [--ndjson] [--threads N]"
+	    + " LOGFILE";
+
+    /** Lines are handed to worker threads in batches of this many. */
+    private static final int BATCH_SIZE = 512;
+
+    /** The largest span of the log mapped into memory at once. */
+    private static final int WINDOW = 64 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private VerifyLog() {
+    }
+
+    public static void main(String[] args) {
+	try {
+	    System.exit(run(args, System.out, System.err));
+	} catch (IllegalArgumentException xoov) {
+	    System.err.println(xoov.getMessage());
+	    System.err.println(USAGE);
+	    System.exit(2);
+	} catch (Exception xoov) {
+	    xoov.printStackTrace();
+	    System.exit(2);
+	}
+    }
+
+    /**
+     * Verifies the log named in 'args', writing verdicts to 'out' and the
+     * summary to 'err'. Returns 0 if every line verified, otherwise 1.
+     * 
+     * @throws IllegalArgumentException
+     *             if 'args' are not valid.
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err)
+	    throws Exception {
+	final Map<String, String> opts = new HashMap<String, String>();
+	String logFile = null;
+	for (int i = 0; i < args.length; i++) {
+	    if ("--ndjson".equals(args[i])) {
+		opts.put(args[i], "true");
+	    } else if (args[i].startsWith("--")) {
+		if (i + 1 == args.length)
+		    throw new IllegalArgumentException("Missing value for "
+			    + args[i]);
+		opts.put(args[i], args[++i]);
+	    } else if (logFile == null) {
+		logFile = args[i];
+	    } else {
+		throw new IllegalArgumentException("Only one log file allowed");
+	    }
+	}
+	if (logFile == null || !opts.containsKey("--keystore")
+		|| !opts.containsKey("--storepass")
+		|| !opts.containsKey("--as-of"))
+	    throw new IllegalArgumentException("Missing argument");
+
+	final Clock clock;
+	try {
+	    clock = Clock.fixed(Util.parseRavenDate(opts.get("--as-of")));
+	} catch (ParseException xoov) {
+	    throw new IllegalArgumentException("Bad --as-of time");
+	}
+	final KeySet keys = KeyRegistry.keys(opts.get("--keystore"),
+		opts.get("--storepass"));
+	final String prefix = opts.containsKey("--key-prefix") ? opts
+		.get("--key-prefix") : "webauth-pubkey";
+	final Verifier verifier = new Verifier(new Authenticator(keys, prefix,
+		clock), clock, opts.containsKey("--ndjson"),
+		opts.get("--url"));
+	final int threads = opts.containsKey("--threads") ? Integer
+		.parseInt(opts.get("--threads")) : Runtime.getRuntime()
+		.availableProcessors();
+
+	final long start = System.nanoTime();
+	final Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8),
+		1 << 16);
+	final ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    verifyAll(logFile, verifier, pool, threads, w);
+	} finally {
+	    pool.shutdownNow();
+	    w.flush();
+	}
+	verifier.printSummary(err, System.nanoTime() - start);
+	return verifier.failed.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Reads 'logFile' in batches, verifies each batch on 'pool', and writes
+     * the verdicts in order. At most 2 * 'threads' batches are in memory.
+     */
+    private static void verifyAll(String logFile, final Verifier verifier,
+	    ExecutorService pool, int threads, Writer w) throws IOException,
+	    InterruptedException, ExecutionException {
+	final BlockingQueue<Future<String[]>> pending =
+		new ArrayBlockingQueue<Future<String[]>>(2 * threads);
+	final LineReader reader = new LineReader(logFile);
+	try {
+	    while (true) {
+		final Batch batch = reader.readBatch(BATCH_SIZE);
+		if (batch == null)
+		    break;
+		if (pending.remainingCapacity() == 0)
+		    write(pending.take(), w);
+		pending.put(pool.submit(new Callable<String[]>() {
+		    public String[] call() {
+			final String[] ans = new String[batch.lines.length];
+			for (int i = 0; i < ans.length; i++)
+			    ans[i] = batch.numbers[i] + "\t"
+				    + verifier.verify(batch.lines[i]);
+			return ans;
+		    }
+		}));
+	    }
+	    while (!pending.isEmpty())
+		write(pending.take(), w);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    private static void write(Future<String[]> f, Writer w)
+	    throws IOException, InterruptedException, ExecutionException {
+	for (String line : f.get()) {
+	    w.write(line);
+	    w.write('\n');
+	}
+    }
+
+    /**
+     * Verifies single lines of the log, and keeps the statistics.
+     * Thread-safe.
+     */
+    private static final class Verifier {
+	Verifier(Authenticator auth, Clock clock, boolean ndjson, String url) {
+	    this.auth = auth;
+	    this.clock = clock;
+	    this.ndjson = ndjson;
+	    this.url = url;
+	}
+
+	private final Authenticator auth;
+	private final Clock clock;
+	private final boolean ndjson;
+	private final String url;
+
+	final AtomicLong ok = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * The number of failures of each Category, by ordinal. Reasons
+	 * themselves may contain text from the log, so are not counted.
+	 */
+	private final AtomicLongArray reasons = new AtomicLongArray(
+		Category.values().length);
+
+	/** Returns the verdict for 'line', without its line number. */
+	String verify(String line) {
+	    final Token t;
+	    final Request r;
+	    try {
+		String ers = line.trim();
+		String expectedURL = this.url;
+		String params = null;
+		if (this.ndjson) {
+		    final Map<String, String> fields = parseObject(ers);
+		    ers = fields.get("response");
+		    if (ers == null)
+			throw new RavenException("No \"response\" member");
+		    if (fields.containsKey("url"))
+			expectedURL = fields.get("url");
+		    params = fields.get("params");
+		}
+		t = new Token(ers, this.clock);
+		// Without an expected URL, accept the one in the response.
+		r = new Request(expectedURL == null ? t.url : expectedURL,
+			this.clock);
+		r.params = params;
+	    } catch (RavenException xoov) {
+		return this.fail(Category.FORMAT, xoov.getMessage());
+	    } catch (RuntimeException xoov) {
+		return this.fail(Category.ERROR, xoov.toString());
+	    }
+	    try {
+		this.auth.compile(r).validate(t);
+		this.ok.incrementAndGet();
+		return "OK\t" + t.principal;
+	    } catch (RavenAuthenticationException xoov) {
+		return this.fail(Category.STATUS, "status " + xoov.status);
+	    } catch (RavenException xoov) {
+		return this.fail(Category.INVALID, xoov.getMessage());
+	    } catch (RuntimeException xoov) {
+		return this.fail(Category.ERROR, xoov.toString());
+	    }
+	}
+
+	private String fail(Category category, String reason) {
+	    this.failed.incrementAndGet();
+	    this.reasons.incrementAndGet(category.ordinal());
+	    return "FAIL\t" + reason;
+	}
+
+	void printSummary(PrintStream err, long nanos) {
+	    final long total = this.ok.get() + this.failed.get();
+	    err.println("lines:   " + total);
+	    err.println("valid:   " + this.ok.get());
+	    err.println("invalid: " + this.failed.get());
+	    for (Category c : Category.values())
+		if (this.reasons.get(c.ordinal()) > 0)
+		    err.println("  " + this.reasons.get(c.ordinal()) + "\t"
+			    + c.description);
+	    final double seconds = nanos / 1e9;
+	    err.println("time:    " + String.format("%.3f", seconds) + "s ("
+		    + String.format("%.0f", total / Math.max(seconds, 1e-9))
+		    + " lines/s)");
+	}
+    }
+
+    /** The kinds of failure counted in the summary. */
+    private enum Category {
+	FORMAT("malformed line or response"),
+	STATUS("unsuccessful status from Raven"),
+	INVALID("failed validation"),
+	ERROR("unexpected error");
+
+	Category(String description) {
+	    this.description = description;
+	}
+
+	final String description;
+    }
+
+    /** Lines of the log, and the line number of each within the file. */
+    private static final class Batch {
+	Batch(String[] lines, long[] numbers) {
+	    this.lines = lines;
+	    this.numbers = numbers;
+	}
+
+	final String[] lines;
+	final long[] numbers;
+    }
+
+    /**
+     * Parses a flat JSON object whose members are strings, ignoring members
+     * of other types.
+     */
+    static Map<String, String> parseObject(String s) throws RavenException {
+	final Map<String, String> ans = new HashMap<String, String>();
+	final int[] pos = { skipSpace(s, 0) };
+	expect(s, pos, '{');
+	if (peek(s, pos) == '}')
+	    return ans;
+	while (true) {
+	    final String name = parseString(s, pos);
+	    expect(s, pos, ':');
+	    if (peek(s, pos) == '"') {
+		ans.put(name, parseString(s, pos));
+	    } else {
+		// Skip a number, literal or null.
+		while (pos[0] < s.length() && ",}".indexOf(s.charAt(pos[0])) < 0)
+		    pos[0]++;
+	    }
+	    if (peek(s, pos) == '}')
+		return ans;
+	    expect(s, pos, ',');
+	}
+    }
+
+    private static char peek(String s, int[] pos) throws RavenException {
+	pos[0] = skipSpace(s, pos[0]);
+	if (pos[0] >= s.length())
+	    throw new RavenException("Truncated JSON");
+	return s.charAt(pos[0]);
+    }
+
+    private static void expect(String s, int[] pos, char c)
+	    throws RavenException {
+	if (peek(s, pos) != c)
+	    throw new RavenException("Bad JSON: expected '" + c + "'");
+	pos[0]++;
+    }
+
+    private static int skipSpace(String s, int pos) {
+	while (pos < s.length() && s.charAt(pos) <= ' ')
+	    pos++;
+	return pos;
+    }
+
+    private static String parseString(String s, int[] pos)
+	    throws RavenException {
+	expect(s, pos, '"');
+	final StringBuilder ans = new StringBuilder();
+	int i = pos[0];
+	while (true) {
+	    if (i >= s.length())
+		throw new RavenException("Truncated JSON");
+	    final char c = s.charAt(i++);
+	    if (c == '"')
+		break;
+	    if (c != '\\') {
+		ans.append(c);
+		continue;
+	    }
+	    if (i >= s.length())
+		throw new RavenException("Truncated JSON");
+	    final char e = s.charAt(i++);
+	    switch (e) {
+	    case 'b':
+		ans.append('\b');
+		break;
+	    case 'f':
+		ans.append('\f');
+		break;
+	    case 'n':
+		ans.append('\n');
+		break;
+	    case 'r':
+		ans.append('\r');
+		break;
+	    case 't':
+		ans.append('\t');
+		break;
+	    case 'u':
+		if (i + 4 > s.length())
+		    throw new RavenException("Truncated JSON");
+		try {
+		    ans.append((char) Integer.parseInt(s.substring(i, i + 4),
+			    16));
+		} catch (NumberFormatException xoov) {
+		    throw new RavenException("Bad JSON escape");
+		}
+		i += 4;
+		break;
+	    default:
+		ans.append(e);
+	    }
+	}
+	pos[0] = i;
+	return ans.toString();
+    }
+
+    /**
+     * Reads lines from a file through a memory-mapped window that slides
+     * along the file, so that only WINDOW bytes are mapped at a time.
+     */
+    private static final class LineReader {
+	LineReader(String filename) throws IOException {
+	    this.file = new RandomAccessFile(filename, "r");
+	    this.channel = this.file.getChannel();
+	    this.size = this.channel.size();
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+
+	/** The file offset of the start of 'window'. */
+	private long windowStart = 0;
+
+	private MappedByteBuffer window = null;
+
+	private byte[] line = new byte[256];
+
+	/** The number of lines, blank or not, read so far. */
+	private long lineNumber = 0;
+
+	/**
+	 * Returns up to 'max' lines, or 'null' at the end of the file. Blank
+	 * lines are skipped, but still counted in the line numbers.
+	 */
+	Batch readBatch(int max) throws IOException {
+	    final String[] lines = new String[max];
+	    final long[] numbers = new long[max];
+	    int n = 0;
+	    while (n < max) {
+		final String s = this.readLine();
+		if (s == null)
+		    break;
+		this.lineNumber++;
+		if (s.length() > 0) {
+		    lines[n] = s;
+		    numbers[n++] = this.lineNumber;
+		}
+	    }
+	    if (n == 0)
+		return null;
+	    if (n == max)
+		return new Batch(lines, numbers);
+	    final String[] someLines = new String[n];
+	    System.arraycopy(lines, 0, someLines, 0, n);
+	    final long[] someNumbers = new long[n];
+	    System.arraycopy(numbers, 0, someNumbers, 0, n);
+	    return new Batch(someLines, someNumbers);
+	}
+
+	/** Returns the next line, or 'null' at the end of the file. */
+	private String readLine() throws IOException {
+	    if (this.window == null || !this.window.hasRemaining()) {
+		final long next = this.window == null ? 0 : this.windowStart
+			+ this.window.position();
+		if (next >= this.size)
+		    return null;
+		this.map(next);
+	    }
+	    int length = 0;
+	    while (true) {
+		if (!this.window.hasRemaining()) {
+		    final long next = this.windowStart + this.window.position();
+		    if (next >= this.size)
+			break;
+		    this.map(next);
+		}
+		final byte b = this.window.get();
+		if (b == '\n')
+		    break;
+		if (length == this.line.length) {
+		    if (length >= WINDOW)
+			throw new IOException("Line too long");
+		    final byte[] bigger = new byte[length * 2];
+		    System.arraycopy(this.line, 0, bigger, 0, length);
+		    this.line = bigger;
+		}
+		this.line[length++] = b;
+	    }
+	    if (length > 0 && this.line[length - 1] == '\r')
+		length--;
+	    return new String(this.line, 0, length, UTF8);
+	}
+
+	private void map(long start) throws IOException {
+	    this.windowStart = start;
+	    this.window = this.channel.map(FileChannel.MapMode.READ_ONLY,
+		    start, Math.min(WINDOW, this.size - start));
+	}
+
+	void close() throws IOException {
+	    this.window = null;
+	    this.file.close();
+	}
+    }
+}
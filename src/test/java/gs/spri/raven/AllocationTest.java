@@ -0,0 +1,95 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the main paths of the library allocate no more than their
+ * budgets, in bytes per call, so that allocation regressions fail the build
+ * before they reach a busy server. The budgets suit a current HotSpot JVM.
+ */
+public class AllocationTest {
+
+    private static final int ITERATIONS = 50000;
+
+    private static final String URL = "http://localhost:8080/login";
+
+    private String ers;
+    private Authenticator auth;
+    private Request request;
+    private Authenticator.Validator validator;
+
+    @Before
+    public void setUp() throws Exception {
+	assumeTrue(Probe.canCountAllocations());
+	final long now = System.currentTimeMillis() / 1000L * 1000L;
+	final Clock clock = Clock.fixed(now);
+	this.ers = Fixture.response(URL, now);
+	this.auth = new Authenticator(Fixture.keys(), Fixture.KEY_PREFIX,
+		clock);
+	this.request = new Request(URL, clock);
+	this.request.desc = "Allocation budget";
+	this.request.msg = "Measuring allocation & nothing else";
+	this.validator = this.auth.compile(this.request);
+	this.validator.validate(this.auth.parseToken(this.ers));
+    }
+
+    private static void assertWithin(long budget, long bytes) {
+	assertTrue(bytes + " bytes per call exceeds budget of " + budget,
+		bytes <= budget);
+    }
+
+    /** 'Authenticator.parseToken()' of a response. */
+    @Test
+    public void testParse() throws Exception {
+	assertWithin(6144L, Probe.allocatedBytes(new Probe.Call() {
+	    public void call() throws RavenException {
+		auth.parseToken(ers);
+	    }
+	}, ITERATIONS));
+    }
+
+    /** 'Authenticator.Validator.validate()', including the signature. */
+    @Test
+    public void testValidate() throws Exception {
+	final Token t = this.auth.parseToken(this.ers);
+	assertWithin(6144L, Probe.allocatedBytes(new Probe.Call() {
+	    public void call() throws RavenException {
+		validator.validate(t);
+	    }
+	}, ITERATIONS));
+    }
+
+    /** 'Request.toQString()'. */
+    @Test
+    public void testRequestQString() throws Exception {
+	assertWithin(768L, Probe.allocatedBytes(new Probe.Call() {
+	    public void call() {
+		request.toQString();
+	    }
+	}, ITERATIONS));
+    }
+}
@@ -0,0 +1,251 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives shared objects from many threads at once, and checks that no
+ * result is torn or lost however the threads interleave.
+ */
+public class ConcurrencyTest {
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime()
+	    .availableProcessors());
+
+    private static final String URL = "http://localhost:8080/login";
+
+    /** A URL for which the response is not valid. */
+    private static final String OTHER_URL = "http://localhost:8080/other";
+
+    private static final int ROUNDS = 200;
+
+    private long now;
+    private Clock clock;
+    private String ers;
+    private String forged;
+    private Authenticator auth;
+    private Authenticator.Validator validator;
+
+    @Before
+    public void setUp() throws Exception {
+	final long now = System.currentTimeMillis() / 1000L * 1000L;
+	final Clock clock = Clock.fixed(now);
+	this.now = now;
+	this.clock = clock;
+	this.ers = Fixture.response(URL, now);
+	this.forged = Fixture.forge(this.ers);
+	this.auth = new Authenticator(Fixture.keys(), Fixture.KEY_PREFIX,
+		clock);
+	this.validator = this.auth.compile(new Request(URL, clock));
+    }
+
+    /**
+     * 'Util.formatRavenDate()' and 'Util.parseRavenDate()' agree with a
+     * SimpleDateFormat confined to one thread.
+     */
+    @Test
+    public void testDates() throws Exception {
+	assertNull(Probe.race(THREADS, new Probe.Call() {
+	    public void call() throws ParseException {
+		final DateFormat reference = new SimpleDateFormat(
+			"yyyyMMdd'T'HHmmss'Z'");
+		reference.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+		final Random random = new Random();
+		for (int i = 0; i < 20000; i++) {
+		    final long millis = (random.nextLong() & Long.MAX_VALUE)
+			    % 4102444800000L / 1000L * 1000L;
+		    final String expected = reference.format(new Date(millis));
+		    assertEquals(expected, Util.formatRavenDate(millis));
+		    assertEquals(millis, Util.parseRavenDate(expected));
+		}
+	    }
+	}));
+    }
+
+    /**
+     * One Authenticator and Validator accept the response and reject a copy
+     * with a corrupted signature, every time, however the two interleave.
+     */
+    @Test
+    public void testAuthenticator() throws Exception {
+	assertNull(Probe.race(THREADS, new Probe.Call() {
+	    public void call() throws RavenException {
+		for (int i = 0; i < 200; i++) {
+		    final Token t = auth.parseToken(ers);
+		    validator.validate(t);
+		    auth.validateTokenAgainstRequest(validator.getRequest(), t);
+		    try {
+			validator.validate(auth.parseToken(forged));
+			fail("Forged response accepted");
+		    } catch (RavenException xoov) {
+			// Either the signature check, or the cache of its
+			// result.
+			assertEquals("Signature does not match plaintext",
+				xoov.getMessage());
+		    }
+		}
+	    }
+	}));
+    }
+
+    /**
+     * A VerificationService gives up its permits before completing a
+     * result, so a stage depending on the result is not counted against the
+     * limits, and can itself start a verification.
+     */
+    @Test
+    public void testVerificationPermits() throws Exception {
+	final VerificationService service = new VerificationService(1, 0, 0L);
+	try {
+	    final CompletableFuture<Boolean> admitted =
+		    new CompletableFuture<Boolean>();
+	    final Token t = this.auth.parseToken(this.ers);
+	    service.verify(this.validator, t).whenComplete(
+		    new BiConsumer<Token, Throwable>() {
+			public void accept(Token ignored, Throwable failure) {
+			    admitted.complete(Boolean.valueOf(failure == null
+				    && !service.verify(validator, t)
+					    .isCompletedExceptionally()));
+			}
+		    });
+	    assertEquals(Boolean.TRUE, admitted.get(10, TimeUnit.SECONDS));
+	} finally {
+	    service.shutdown();
+	}
+    }
+
+    /**
+     * In one RavenSession, redirects to Raven race callbacks with its
+     * response. A Token is only ever validated against the Request it
+     * answers, 'receiveResponse()' returns a URL that was requested, and
+     * the session ends up either authenticated as the right principal or
+     * ready for another attempt.
+     */
+    @Test
+    public void testRedirectAgainstCallback() throws Exception {
+	final Request good = new Request(URL, this.clock);
+	final Request other = new Request(OTHER_URL, this.clock);
+	final String query = "WLS-Response=" + Util.urlEncode(this.ers);
+	for (int round = 0; round < ROUNDS; round++) {
+	    final RavenSession session = new RavenSession(this.auth,
+		    RavenEndpoints.single("https://raven.invalid/auth"));
+	    session.sendRequest(good, "/good");
+	    final AtomicInteger next = new AtomicInteger();
+	    assertNull(Probe.race(THREADS, new Probe.Call() {
+		public void call() throws RavenException {
+		    if (next.getAndIncrement() % 2 == 0) {
+			session.sendRequest(other, "/other");
+			session.sendRequest(good, "/good");
+			return;
+		    }
+		    final String requested;
+		    try {
+			requested = session.receiveResponse(query);
+		    } catch (RavenException xoov) {
+			// A concurrent callback validated the Token first.
+			assertEquals("No memory of an authentication request",
+				xoov.getMessage());
+			return;
+		    }
+		    assertTrue(requested, "/good".equals(requested)
+			    || "/other".equals(requested));
+		    try {
+			if (session.authenticate(now))
+			    assertEquals(Fixture.PRINCIPAL, session
+				    .getIdentity().getPrincipal());
+		    } catch (RavenException xoov) {
+			// Only a redirect for 'other' can make it fail.
+			assertEquals("Non-matching URL", xoov.getMessage());
+		    }
+		}
+	    }));
+	    if (session.getIdentity() == null) {
+		session.sendRequest(good, "/good");
+		session.receiveResponse(query);
+		assertTrue(session.authenticate(now));
+	    }
+	    assertEquals(Fixture.PRINCIPAL, session.getIdentity()
+		    .getPrincipal());
+	}
+    }
+
+    /**
+     * Prints how the throughput of dates, parsing and validation scales from
+     * one thread to THREADS. Runs only if 'Probe.SCALE' is set.
+     */
+    @Test
+    public void testScalability() throws Exception {
+	Assume.assumeTrue(Probe.SCALE);
+	assertNull(Probe.scale(System.out, "dates", THREADS, 500L,
+		new Probe.Factory() {
+		    public Probe.Call newCall() {
+			final Random random = new Random();
+			return new Probe.Call() {
+			    public void call() throws ParseException {
+				final long millis = (random.nextLong()
+					& Long.MAX_VALUE) % 4102444800000L;
+				Util.parseRavenDate(Util.formatRavenDate(millis));
+			    }
+			};
+		    }
+		}));
+	assertNull(Probe.scale(System.out, "parse", THREADS, 500L,
+		new Probe.Factory() {
+		    public Probe.Call newCall() {
+			return new Probe.Call() {
+			    public void call() throws RavenException {
+				auth.parseToken(ers);
+			    }
+			};
+		    }
+		}));
+	assertNull(Probe.scale(System.out, "validate", THREADS, 500L,
+		new Probe.Factory() {
+		    public Probe.Call newCall() throws RavenException {
+			final Token t = auth.parseToken(ers);
+			return new Probe.Call() {
+			    public void call() throws RavenException {
+				validator.validate(t);
+			    }
+			};
+		    }
+		}));
+    }
+}
@@ -0,0 +1,261 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that Enricher caches hits and misses, refreshes and expires them,
+ * evicts from a full cache, and gathers concurrent lookups into one call to
+ * its AttributeSource.
+ */
+public class EnricherTest {
+
+    private static final long TTL = 1000L;
+
+    private static final long REFRESH_AHEAD = 200L;
+
+    /** Runs each task at once, on the calling thread. */
+    private static final Executor INLINE = new Executor() {
+	public void execute(Runnable task) {
+	    task.run();
+	}
+    };
+
+    private Clock.FixedClock clock;
+    private AttributeSource.InMemory source;
+
+    @Before
+    public void setUp() {
+	this.clock = Clock.fixed(1000000L);
+	this.source = new AttributeSource.InMemory();
+	this.source.put(Fixture.PRINCIPAL, "groups", Arrays.asList("a", "b"));
+    }
+
+    private Enricher enricher(AttributeSource s, Executor e, int maxEntries) {
+	return new Enricher(s, e, TTL, REFRESH_AHEAD, 100, maxEntries,
+		this.clock);
+    }
+
+    /** A known principal is looked up once, then served from the cache. */
+    @Test
+    public void testHit() throws Exception {
+	final Enricher e = this.enricher(this.source, INLINE, 10);
+	final CompletableFuture<Attributes> first = e
+		.lookup(Fixture.PRINCIPAL);
+	assertTrue(first.isDone());
+	assertEquals(Arrays.asList("a", "b"), first.get().getAll("groups"));
+	this.clock.advance(TTL - REFRESH_AHEAD - 1L);
+	assertSame(first.get(), e.lookup(Fixture.PRINCIPAL).get());
+	assertEquals(1, this.source.getCalls());
+    }
+
+    /**
+     * A principal the source does not know has no Attributes, and that too
+     * is cached.
+     */
+    @Test
+    public void testMiss() throws Exception {
+	final Enricher e = this.enricher(this.source, INLINE, 10);
+	final Attributes a = e.lookup("nobody").get();
+	assertEquals("nobody", a.getPrincipal());
+	assertTrue(a.getNames().isEmpty());
+	e.lookup("nobody").get();
+	assertEquals(1, this.source.getCalls());
+    }
+
+    /**
+     * A result read near the end of its life is returned at once and
+     * refreshed once; an expired one is looked up again.
+     */
+    @Test
+    public void testRefreshAndExpiry() throws Exception {
+	final Enricher e = this.enricher(this.source, INLINE, 10);
+	final Attributes old = e.lookup(Fixture.PRINCIPAL).get();
+	this.source.put(Fixture.PRINCIPAL, "groups", Arrays.asList("c"));
+	this.clock.advance(TTL - REFRESH_AHEAD);
+	// The refresh runs inline, but the stale result is what is returned.
+	assertSame(old, e.lookup(Fixture.PRINCIPAL).get());
+	assertEquals(2, this.source.getCalls());
+	assertEquals(Arrays.asList("c"), e.lookup(Fixture.PRINCIPAL).get()
+		.getAll("groups"));
+	assertEquals(2, this.source.getCalls());
+	this.clock.advance(TTL);
+	e.lookup(Fixture.PRINCIPAL).get();
+	assertEquals(3, this.source.getCalls());
+	e.invalidate(Fixture.PRINCIPAL);
+	e.lookup(Fixture.PRINCIPAL).get();
+	assertEquals(4, this.source.getCalls());
+    }
+
+    /** A failed call fails its lookups and caches nothing. */
+    @Test
+    public void testFailure() throws Exception {
+	final IOException down = new IOException("Directory is down");
+	final AttributeSource failing = new AttributeSource() {
+	    public Map<String, Attributes> lookup(Collection<String> principals)
+		    throws IOException {
+		throw down;
+	    }
+	};
+	final Enricher e = this.enricher(failing, INLINE, 10);
+	try {
+	    e.lookup(Fixture.PRINCIPAL).get();
+	    fail("Lookup succeeded");
+	} catch (ExecutionException xoov) {
+	    assertSame(down, xoov.getCause());
+	}
+	assertTrue(e.lookup(Fixture.PRINCIPAL).isCompletedExceptionally());
+    }
+
+    /**
+     * A full cache makes room by dropping expired results first, and still
+     * caches the new one.
+     */
+    @Test
+    public void testEvictExpired() throws Exception {
+	final Enricher e = this.enricher(this.source, INLINE, 4);
+	e.lookup("a").get();
+	e.lookup("b").get();
+	this.clock.advance(TTL / 2);
+	e.lookup("c").get();
+	e.lookup("d").get();
+	this.clock.advance(TTL / 2);
+	// 'a' and 'b' have expired; the cache is full.
+	e.lookup("e").get();
+	final int calls = this.source.getCalls();
+	for (String p : new String[] { "c", "d", "e" })
+	    e.lookup(p).get();
+	assertEquals(calls, this.source.getCalls());
+    }
+
+    /**
+     * A cache full of live results drops some to make room, rather than
+     * refusing the new one.
+     */
+    @Test
+    public void testEvictLive() throws Exception {
+	final Enricher e = this.enricher(this.source, INLINE, 4);
+	final String[] principals = { "a", "b", "c", "d", "e" };
+	for (String p : principals)
+	    e.lookup(p).get();
+	assertEquals(5, this.source.getCalls());
+	e.lookup("e").get();
+	assertEquals(5, this.source.getCalls());
+	// Room was made for 'e' by dropping others, which are looked up again.
+	for (String p : principals)
+	    e.lookup(p).get();
+	assertTrue(this.source.getCalls() > 5);
+    }
+
+    /**
+     * Lookups of a principal already being looked up share its call, and
+     * lookups made meanwhile are gathered into one more call.
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+	final CountDownLatch entered = new CountDownLatch(1);
+	final CountDownLatch release = new CountDownLatch(1);
+	final List<Collection<String>> batches =
+		new ArrayList<Collection<String>>();
+	final AttributeSource gated = new AttributeSource() {
+	    public Map<String, Attributes> lookup(Collection<String> principals)
+		    throws IOException {
+		synchronized (batches) {
+		    batches.add(new ArrayList<String>(principals));
+		}
+		entered.countDown();
+		try {
+		    release.await();
+		} catch (InterruptedException xoov) {
+		    throw new IOException(xoov);
+		}
+		return source.lookup(principals);
+	    }
+	};
+	final ExecutorService executor = Executors.newSingleThreadExecutor();
+	try {
+	    final Enricher e = this.enricher(gated, executor, 100);
+	    final CompletableFuture<Attributes> first = e
+		    .lookup(Fixture.PRINCIPAL);
+	    assertTrue(entered.await(10L, TimeUnit.SECONDS));
+	    final int threads = 8;
+	    final List<CompletableFuture<Attributes>> same =
+		    new ArrayList<CompletableFuture<Attributes>>();
+	    final List<CompletableFuture<Attributes>> others =
+		    new ArrayList<CompletableFuture<Attributes>>();
+	    final Thread[] t = new Thread[threads];
+	    for (int i = 0; i < threads; i++) {
+		final String other = "other" + i;
+		t[i] = new Thread() {
+		    public void run() {
+			final CompletableFuture<Attributes> s = e
+				.lookup(Fixture.PRINCIPAL);
+			final CompletableFuture<Attributes> o = e
+				.lookup(other);
+			synchronized (same) {
+			    same.add(s);
+			    others.add(o);
+			}
+		    }
+		};
+		t[i].start();
+	    }
+	    for (int i = 0; i < threads; i++)
+		t[i].join();
+	    for (CompletableFuture<Attributes> s : same)
+		assertSame(first, s);
+	    release.countDown();
+	    assertEquals(Arrays.asList("a", "b"), first.get(10L,
+		    TimeUnit.SECONDS).getAll("groups"));
+	    for (CompletableFuture<Attributes> o : others)
+		assertTrue(o.get(10L, TimeUnit.SECONDS).getNames().isEmpty());
+	    synchronized (batches) {
+		assertEquals(2, batches.size());
+		assertEquals(Arrays.asList(Fixture.PRINCIPAL), batches.get(0));
+		assertEquals(threads, batches.get(1).size());
+	    }
+	} finally {
+	    release.countDown();
+	    executor.shutdownNow();
+	}
+    }
+}
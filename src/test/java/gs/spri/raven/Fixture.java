@@ -0,0 +1,150 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+
+/**
+ * A self-signed RSA key pair, generated with keytool the first time it is
+ * needed, and WLS-Responses signed with it. The key store holds the key as
+ * 'KEY_PREFIX + KID', as Raven's public keys are held, so an Authenticator
+ * built from 'keys()' accepts the responses.
+ */
+public final class Fixture {
+
+    /** The alias prefix of the key within the key store. */
+    public static final String KEY_PREFIX = "webauth-pubkey";
+
+    /** The kid of every response signed by the fixture. */
+    public static final String KID = "2";
+
+    /** The password of the key store and of the key. */
+    public static final String PASSWORD = "changeit";
+
+    /** The principal of every successful response. */
+    public static final String PRINCIPAL = "test0001";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static File file = null;
+
+    private static KeyStore keys = null;
+
+    private Fixture() {
+    }
+
+    /**
+     * Returns the JKS key store file, generating it if this is the first
+     * call.
+     */
+    public static synchronized File keyStoreFile() throws Exception {
+	if (file == null) {
+	    final File f = File.createTempFile("raven-test-keys", ".jks");
+	    f.deleteOnExit();
+	    if (!f.delete())
+		throw new IOException("Cannot replace " + f);
+	    final Process p = new ProcessBuilder(keytool(), "-genkeypair",
+		    "-alias", KEY_PREFIX + KID, "-keyalg", "RSA", "-keysize",
+		    "1024", "-sigalg", "SHA256withRSA", "-dname",
+		    "CN=Raven test key", "-validity", "3650", "-storetype",
+		    "JKS", "-keystore", f.getPath(), "-storepass", PASSWORD,
+		    "-keypass", PASSWORD).redirectErrorStream(true).start();
+	    final InputStream out = p.getInputStream();
+	    while (out.read() >= 0)
+		; // keytool warns about the key size; ignore it.
+	    if (p.waitFor() != 0)
+		throw new IOException("keytool failed");
+	    file = f;
+	}
+	return file;
+    }
+
+    /** Returns the key store holding the fixture's key. */
+    public static synchronized KeyStore keys() throws Exception {
+	if (keys == null) {
+	    final KeyStore ks = KeyStore.getInstance("JKS");
+	    final InputStream in = new FileInputStream(keyStoreFile());
+	    try {
+		ks.load(in, PASSWORD.toCharArray());
+	    } finally {
+		in.close();
+	    }
+	    keys = ks;
+	}
+	return keys;
+    }
+
+    /**
+     * Returns a successful response for 'url', issued at 'issue' milliseconds
+     * since the epoch and signed by the fixture's key.
+     */
+    public static String response(String url, long issue) throws Exception {
+	return response(200, url, issue);
+    }
+
+    /**
+     * Returns a response with 'status' for 'url', issued at 'issue'
+     * milliseconds since the epoch and signed by the fixture's key. Only a
+     * successful response names a principal.
+     */
+    public static String response(int status, String url, long issue)
+	    throws Exception {
+	final String body = "1!" + status + "!!" + Util.formatRavenDate(issue)
+		+ "!1351247047-25829-18!" + url + "!"
+		+ (status == 200 ? PRINCIPAL : "") + "!pwd!!36000!";
+	final Signature s = Signature.getInstance("SHA1withRSA");
+	s.initSign((PrivateKey) keys().getKey(KEY_PREFIX + KID,
+		PASSWORD.toCharArray()));
+	s.update(body.getBytes(ASCII));
+	return body + "!" + KID + "!" + encode64(s.sign());
+    }
+
+    /**
+     * Returns 'ers' with the first character of its signature changed, so
+     * that it parses but fails verification.
+     */
+    public static String forge(String ers) {
+	final int i = ers.lastIndexOf('!') + 1;
+	final char c = ers.charAt(i) == 'A' ? 'B' : 'A';
+	return ers.substring(0, i) + c + ers.substring(i + 1);
+    }
+
+    /** Base64 with Raven's substitutions for '+', '/' and '='. */
+    private static String encode64(byte[] b) {
+	return Base64.getEncoder().encodeToString(b).replace('+', '-')
+		.replace('/', '.').replace('=', '_');
+    }
+
+    /** Returns the path of the keytool of the running JVM. */
+    private static String keytool() {
+	final File bin = new File(System.getProperty("java.home"), "bin");
+	final File exe = new File(bin, "keytool.exe");
+	return (exe.exists() ? exe : new File(bin, "keytool")).getPath();
+    }
+}
@@ -0,0 +1,149 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * Checks that IdentityStore returns what was put, refuses stale handles, and
+ * frees records as their Identities expire.
+ */
+public class IdentityStoreTest {
+
+    private static final long NOW = 1000000L;
+
+    private static final long LIFE_END = NOW + 3600000L;
+
+    private static Identity identity(String principal, long lifeEnd) {
+	return new Identity(principal, AuthTypes.code("pwd"),
+		AuthTypes.OTHER_BIT, Fixture.KID, lifeEnd);
+    }
+
+    private static void assertSameIdentity(Identity expected, Identity actual) {
+	assertEquals(expected.getPrincipal(), actual.getPrincipal());
+	assertEquals(expected.getAuth(), actual.getAuth());
+	assertEquals(expected.getSso(), actual.getSso());
+	assertEquals(expected.getKid(), actual.getKid());
+	assertEquals(expected.getLifeEnd(), actual.getLifeEnd());
+    }
+
+    /** An Identity comes back as it was put, until it expires. */
+    @Test
+    public void testRoundTrip() {
+	final IdentityStore store = new IdentityStore(4, 16);
+	final Identity id = identity(Fixture.PRINCIPAL, LIFE_END);
+	final long handle = store.put(id, NOW);
+	assertTrue(handle >= 0L);
+	assertEquals(1, store.size());
+	assertSameIdentity(id, store.get(handle));
+	assertTrue(store.isCurrent(handle, NOW));
+	assertFalse(store.isCurrent(handle, LIFE_END));
+    }
+
+    /**
+     * A removed record is refused by its old handle, even once it has been
+     * reused for another Identity.
+     */
+    @Test
+    public void testStaleHandle() {
+	final IdentityStore store = new IdentityStore(1, 16);
+	final long old = store.put(identity("old", LIFE_END), NOW);
+	store.remove(old);
+	assertEquals(0, store.size());
+	assertNull(store.get(old));
+	final long handle = store.put(identity("new", LIFE_END), NOW);
+	assertTrue(handle >= 0L && handle != old);
+	assertNull(store.get(old));
+	assertFalse(store.isCurrent(old, NOW));
+	// Removing by the stale handle must not free the new record.
+	store.remove(old);
+	assertEquals("new", store.get(handle).getPrincipal());
+    }
+
+    /** Handles outside the store find nothing. */
+    @Test
+    public void testBadHandle() {
+	final IdentityStore store = new IdentityStore(2, 16);
+	assertNull(store.get(-1L));
+	assertNull(store.get(2L));
+	assertFalse(store.isCurrent(5L, NOW));
+	store.remove(7L);
+	assertEquals(0, store.size());
+    }
+
+    /**
+     * Identities that do not fit a record, or have already expired, are
+     * refused.
+     */
+    @Test
+    public void testRefused() {
+	final IdentityStore store = new IdentityStore(2, 4);
+	assertEquals(-1L, store.put(identity("toolong", LIFE_END), NOW));
+	assertEquals(-1L, store.put(identity("abc", NOW), NOW));
+	assertEquals(-1L, store.put(new Identity("abc", AuthTypes.code("pwd"),
+		0L, "123456789", LIFE_END), NOW));
+	assertEquals(0, store.size());
+    }
+
+    /** A full store sweeps expired records to make room, and no others. */
+    @Test
+    public void testFull() {
+	final IdentityStore store = new IdentityStore(2, 16);
+	final long expiring = store.put(identity("a", NOW + 10L), NOW);
+	final long lasting = store.put(identity("b", LIFE_END), NOW);
+	assertEquals(-1L, store.put(identity("c", LIFE_END), NOW));
+	final long handle = store.put(identity("c", LIFE_END), NOW + 10L);
+	assertTrue(handle >= 0L);
+	assertNull(store.get(expiring));
+	assertEquals("b", store.get(lasting).getPrincipal());
+	assertEquals("c", store.get(handle).getPrincipal());
+	assertEquals(-1L, store.put(identity("d", LIFE_END), NOW + 10L));
+	assertEquals(2, store.sweep(LIFE_END));
+	assertEquals(0, store.size());
+    }
+
+    /** A store in a memory-mapped file behaves as one in direct memory. */
+    @Test
+    public void testMapped() throws Exception {
+	final File file = File.createTempFile("identities", ".dat");
+	try {
+	    final IdentityStore store = new IdentityStore(file, 4, 16);
+	    try {
+		final Identity id = identity(Fixture.PRINCIPAL, LIFE_END);
+		final long handle = store.put(id, NOW);
+		assertSameIdentity(id, store.get(handle));
+		store.remove(handle);
+		assertNull(store.get(handle));
+	    } finally {
+		store.close();
+	    }
+	} finally {
+	    file.delete();
+	}
+    }
+}
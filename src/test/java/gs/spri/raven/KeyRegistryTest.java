@@ -0,0 +1,78 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import org.junit.Test;
+
+/**
+ * Checks that KeyRegistry shares one read-only KeySet per key store and
+ * password.
+ */
+public class KeyRegistryTest {
+
+    /** Naming the same key store twice returns the same KeySet. */
+    @Test
+    public void testShared() throws Exception {
+	final String path = Fixture.keyStoreFile().getPath();
+	final KeySet keys = KeyRegistry.keys(path, Fixture.PASSWORD);
+	assertSame(keys, KeyRegistry.keys(path, Fixture.PASSWORD));
+	assertNotNull(keys.getCertificate(Fixture.KEY_PREFIX + Fixture.KID));
+	assertNull(keys.getCertificate(Fixture.KEY_PREFIX + "999"));
+    }
+
+    /**
+     * A wrong password is refused even when the key store has already been
+     * loaded with the right one.
+     */
+    @Test
+    public void testWrongPassword() throws Exception {
+	final String path = Fixture.keyStoreFile().getPath();
+	KeyRegistry.keys(path, Fixture.PASSWORD);
+	try {
+	    KeyRegistry.keys(path, Fixture.PASSWORD + "x");
+	    fail("Wrong password accepted");
+	} catch (IOException xoov) {
+	    // JKS reports a wrong password as an IOException.
+	} catch (GeneralSecurityException xoov) {
+	    // Or as this.
+	}
+    }
+
+    /** A KeySet copied from a KeyStore does not see later changes to it. */
+    @Test
+    public void testCopy() throws Exception {
+	final KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+	store.load(null, null);
+	final KeySet keys = KeySet.copyOf(store);
+	store.setCertificateEntry("added", Fixture.keys().getCertificate(
+		Fixture.KEY_PREFIX + Fixture.KID));
+	assertNull(keys.getCertificate("added"));
+    }
+}
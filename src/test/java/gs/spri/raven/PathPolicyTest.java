@@ -0,0 +1,154 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks which Rule PathPolicy finds for exact and "/*" patterns, trailing
+ * slashes, the root, overlapping patterns and paths that are still encoded.
+ */
+public class PathPolicyTest {
+
+    private static final PathPolicy.Rule PUBLIC = PathPolicy.Rule.PUBLIC;
+    private static final PathPolicy.Rule PROTECTED = PathPolicy.Rule.PROTECTED;
+    private static final PathPolicy.Rule CALLBACK = PathPolicy.Rule.CALLBACK;
+
+    /** An exact pattern matches only its own path. */
+    @Test
+    public void testExact() {
+	final PathPolicy p = PathPolicy.parse("/about", null, "/login");
+	assertEquals(PUBLIC, p.match("/about"));
+	assertEquals(CALLBACK, p.match("/login"));
+	assertNull(p.match("/about/more"));
+	assertNull(p.match("/aboutx"));
+	assertNull(p.match("/abou"));
+	assertNull(p.match("/"));
+    }
+
+    /**
+     * A "/*" pattern matches its path and everything below it, by whole
+     * segments only.
+     */
+    @Test
+    public void testSubtree() {
+	final PathPolicy p = PathPolicy.parse("/static/*", null, null);
+	assertEquals(PUBLIC, p.match("/static"));
+	assertEquals(PUBLIC, p.match("/static/"));
+	assertEquals(PUBLIC, p.match("/static/a"));
+	assertEquals(PUBLIC, p.match("/static/a/b/c"));
+	assertNull(p.match("/staticx"));
+	assertNull(p.match("/statics/a"));
+	assertNull(p.match("/other/static/a"));
+    }
+
+    /**
+     * A trailing slash is an empty last segment: an exact pattern must have
+     * it too, while a "/*" pattern covers it.
+     */
+    @Test
+    public void testTrailingSlash() {
+	final PathPolicy p = PathPolicy.parse("/about, /docs/", "/admin/*",
+		null);
+	assertNull(p.match("/about/"));
+	assertEquals(PUBLIC, p.match("/docs/"));
+	assertNull(p.match("/docs"));
+	assertEquals(PROTECTED, p.match("/admin/"));
+	assertEquals(PROTECTED, p.match("/admin//x"));
+    }
+
+    /**
+     * "/" is the root alone, "/*" everything, including paths that are
+     * 'null', empty or relative.
+     */
+    @Test
+    public void testRoot() {
+	final PathPolicy exact = PathPolicy.parse("/", null, null);
+	assertEquals(PUBLIC, exact.match("/"));
+	assertNull(exact.match("/a"));
+	assertNull(exact.match("//"));
+	assertNull(exact.match(null));
+	assertNull(exact.match(""));
+	final PathPolicy all = PathPolicy.parse("/", "/*", null);
+	assertEquals(PUBLIC, all.match("/"));
+	assertEquals(PROTECTED, all.match("/a/b"));
+	assertEquals(PROTECTED, all.match(null));
+	assertEquals(PROTECTED, all.match(""));
+	assertEquals(PROTECTED, all.match("a"));
+    }
+
+    /**
+     * Where patterns overlap, an exact match wins, otherwise the longest "/*"
+     * pattern, whatever order they were given in.
+     */
+    @Test
+    public void testOverlap() {
+	final PathPolicy p = PathPolicy.parse(
+		"/static/*, /static/private/open", "/*, /static/private/*",
+		"/static/private/open/login");
+	assertEquals(PROTECTED, p.match("/index"));
+	assertEquals(PUBLIC, p.match("/static/a"));
+	assertEquals(PROTECTED, p.match("/static/private"));
+	assertEquals(PROTECTED, p.match("/static/private/a"));
+	assertEquals(PUBLIC, p.match("/static/private/open"));
+	assertEquals(PROTECTED, p.match("/static/private/open/a"));
+	assertEquals(CALLBACK, p.match("/static/private/open/login"));
+	assertEquals(PROTECTED, p.match("/static/private/open/login/a"));
+    }
+
+    /**
+     * Paths are matched as given: escapes are not decoded and dot segments
+     * are not resolved, which is the caller's job, as
+     * 'HttpServletRequest.getPathInfo()' does.
+     */
+    @Test
+    public void testEncoded() {
+	final PathPolicy p = PathPolicy.parse("/static/*, /caf\u00e9", "/*",
+		null);
+	assertEquals(PROTECTED, p.match("/%73tatic/x"));
+	assertEquals(PROTECTED, p.match("/static%2Fx"));
+	assertEquals(PROTECTED, p.match("/caf%C3%A9"));
+	assertEquals(PUBLIC, p.match("/caf\u00e9"));
+	assertEquals(PUBLIC, p.match("/static/%2e%2e/admin"));
+	assertEquals(PUBLIC, p.match("/static/../admin"));
+    }
+
+    /** Bad patterns, and patterns given two Rules, are refused. */
+    @Test
+    public void testBadPatterns() {
+	for (String[] lists : new String[][] { { "about", null },
+		{ "/a*", null }, { "/*/a", null }, { "/a/*/*", null },
+		{ "/a", "/a" }, { "/a/*", "/b, /a/*" } })
+	    try {
+		PathPolicy.parse(lists[0], lists[1], null);
+		fail("Accepted " + lists[0] + " and " + lists[1]);
+	    } catch (IllegalArgumentException xoov) {
+		// Expected.
+	    }
+	// The same pattern twice under one Rule is harmless.
+	assertEquals(PUBLIC, PathPolicy.parse("/a /a,/a", null, null).match(
+		"/a"));
+    }
+}
@@ -0,0 +1,183 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ways of running a piece of code under test, shared by the tests of
+ * several packages.
+ */
+public final class Probe {
+
+    /** The code under test. */
+    public interface Call {
+	void call() throws Exception;
+    }
+
+    /** Makes the Call for each thread of a measurement. */
+    public interface Factory {
+	Call newCall() throws Exception;
+    }
+
+    /**
+     * 'true' if the tests that measure how throughput scales with the number
+     * of threads should run. They take a while and check nothing, so they
+     * run only if the system property "gs.spri.raven.scale" is "true".
+     */
+    public static final boolean SCALE = Boolean
+	    .getBoolean("gs.spri.raven.scale");
+
+    /** Calls made before measuring allocation, so that the JIT has settled. */
+    private static final int WARMUP = 20000;
+
+    private Probe() {
+    }
+
+    /** Returns 'true' if this JVM can count the bytes a thread allocates. */
+    public static boolean canCountAllocations() {
+	return ManagementFactory.getThreadMXBean()
+		instanceof com.sun.management.ThreadMXBean;
+    }
+
+    /**
+     * Returns the mean number of bytes allocated by 'call' on this thread,
+     * over 'iterations' calls after warming it up. Check
+     * 'canCountAllocations()' first.
+     */
+    public static long allocatedBytes(Call call, int iterations)
+	    throws Exception {
+	final com.sun.management.ThreadMXBean mx =
+		(com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	final long id = Thread.currentThread().getId();
+	for (int i = 0; i < WARMUP; i++)
+	    call.call();
+	final long before = mx.getThreadAllocatedBytes(id);
+	for (int i = 0; i < iterations; i++)
+	    call.call();
+	final long after = mx.getThreadAllocatedBytes(id);
+	return (after - before) / iterations;
+    }
+
+    /**
+     * Calls 'call' once on each of 'threads' threads, all started together.
+     * Returns the first Throwable, including failed assertions, as a String,
+     * or 'null' if there were none.
+     */
+    public static String race(int threads, final Call call)
+	    throws InterruptedException {
+	final CountDownLatch start = new CountDownLatch(1);
+	final AtomicReference<String> error = new AtomicReference<String>();
+	final List<Thread> all = new ArrayList<Thread>();
+	for (int i = 0; i < threads; i++) {
+	    final Thread t = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			start.await();
+			call.call();
+		    } catch (Throwable xoov) {
+			error.compareAndSet(null, xoov.toString());
+		    }
+		}
+	    });
+	    t.start();
+	    all.add(t);
+	}
+	start.countDown();
+	for (Thread t : all)
+	    t.join();
+	return error.get();
+    }
+
+    /**
+     * Measures the throughput of the Calls made by 'calls' with 1, 2, 4, ...
+     * and finally 'threads' threads, each making its own Call repeatedly for
+     * 'millis' milliseconds, and writes a line to 'out' for each, as
+     *
+     * <pre>
+     * SCALE	NAME	THREADS	CALLS-PER-SECOND	SPEEDUP
+     * </pre>
+     *
+     * Returns the first Throwable as a String, or 'null' if there were none.
+     */
+    public static String scale(PrintStream out, String name, int threads,
+	    long millis, Factory calls) throws Exception {
+	double base = 0.0;
+	for (int n = 1; n <= threads; n = n == threads ? threads + 1 : Math
+		.min(2 * n, threads)) {
+	    final AtomicReference<String> error =
+		    new AtomicReference<String>();
+	    final double rate = throughput(n, millis, calls, error);
+	    if (error.get() != null)
+		return error.get();
+	    if (n == 1)
+		base = rate;
+	    out.println("SCALE\t" + name + "\t" + n + "\t"
+		    + String.format("%.0f", rate) + "\t"
+		    + String.format("%.2f", rate / base));
+	}
+	return null;
+    }
+
+    /**
+     * Returns the Calls per second made by 'n' threads in 'millis', keeping
+     * the first Throwable in 'error'.
+     */
+    private static double throughput(int n, final long millis, Factory calls,
+	    final AtomicReference<String> error) throws Exception {
+	final CountDownLatch start = new CountDownLatch(1);
+	final AtomicLong count = new AtomicLong();
+	final List<Thread> all = new ArrayList<Thread>();
+	for (int i = 0; i < n; i++) {
+	    final Call call = calls.newCall();
+	    final Thread t = new Thread(new Runnable() {
+		public void run() {
+		    long made = 0;
+		    try {
+			start.await();
+			final long end = System.nanoTime() + millis * 1000000L;
+			while (System.nanoTime() < end) {
+			    call.call();
+			    made++;
+			}
+		    } catch (Throwable xoov) {
+			error.compareAndSet(null, xoov.toString());
+		    }
+		    count.addAndGet(made);
+		}
+	    });
+	    t.start();
+	    all.add(t);
+	}
+	final long begin = System.nanoTime();
+	start.countDown();
+	for (Thread t : all)
+	    t.join();
+	return count.get() * 1e9 / (System.nanoTime() - begin);
+    }
+}
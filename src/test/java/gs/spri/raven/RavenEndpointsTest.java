@@ -0,0 +1,167 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks how RavenEndpoints parses its list, which endpoint 'select()'
+ * favours, and that a small share of selections still explores the others.
+ */
+public class RavenEndpointsTest {
+
+    /** Selections made by each statistical test. */
+    private static final int SELECTIONS = 20000;
+
+    private static final String URL = "https://test.invalid/login";
+
+    /** Returns how many of SELECTIONS selections from 'ends' chose 'e'. */
+    private static int count(RavenEndpoints ends, RavenEndpoints.Endpoint e) {
+	int ans = 0;
+	for (int i = 0; i < SELECTIONS; i++)
+	    if (ends.select() == e)
+		ans++;
+	return ans;
+    }
+
+    /** Records 'n' failures of 'e'. */
+    private static void failures(RavenEndpoints.Endpoint e, int n) {
+	for (int i = 0; i < n; i++)
+	    e.recordFailure();
+    }
+
+    @Test
+    public void testParse() {
+	final List<RavenEndpoints.Endpoint> ends = RavenEndpoints.parse(
+		" https://a/auth 3 ,https://b/auth,, ").getEndpoints();
+	assertEquals(2, ends.size());
+	assertEquals("https://a/auth", ends.get(0).url);
+	assertEquals(3, ends.get(0).weight);
+	assertEquals("https://b/auth", ends.get(1).url);
+	assertEquals(1, ends.get(1).weight);
+	for (String bad : new String[] { null, "", " , ", "https://a/auth 0",
+		"https://a/auth -1", "https://a/auth 1 2" })
+	    try {
+		RavenEndpoints.parse(bad);
+		fail("Accepted " + bad);
+	    } catch (IllegalArgumentException xoov) {
+		// Expected.
+	    }
+    }
+
+    /** 'single()' takes its URL as it is, and never explores. */
+    @Test
+    public void testSingle() {
+	final RavenEndpoints ends = RavenEndpoints
+		.single("https://a/auth?x=1,2 3");
+	final RavenEndpoints.Endpoint only = ends.getEndpoints().get(0);
+	assertEquals("https://a/auth?x=1,2 3", only.url);
+	failures(only, 10);
+	assertEquals(SELECTIONS, count(ends, only));
+    }
+
+    /**
+     * With no history, the heaviest endpoint is chosen, except for the
+     * exploring share spread by weight.
+     */
+    @Test
+    public void testWeight() {
+	final RavenEndpoints ends = RavenEndpoints
+		.parse("https://a/auth 1, https://b/auth 3");
+	final RavenEndpoints.Endpoint a = ends.getEndpoints().get(0);
+	// 5% of selections explore, a quarter of them choosing 'a'.
+	final int n = count(ends, a);
+	assertTrue("Chose the light endpoint " + n + " times", n > 0
+		&& n < SELECTIONS / 20);
+    }
+
+    /**
+     * An endpoint whose responses cannot be parsed loses its preference, but
+     * is still explored, and regains it once it recovers.
+     */
+    @Test
+    public void testFailover() {
+	final RavenEndpoints ends = RavenEndpoints
+		.parse("https://a/auth 3, https://b/auth 1");
+	final RavenEndpoints.Endpoint a = ends.getEndpoints().get(0);
+	failures(a, 20);
+	assertTrue(a.getSuccessRate() < 0.05);
+	// 5% of selections explore, three quarters of them choosing 'a'.
+	int n = count(ends, a);
+	assertTrue("Chose the failing endpoint " + n + " times", n > 0
+		&& n < SELECTIONS / 10);
+	for (int i = 0; i < 20; i++)
+	    a.recordSuccess();
+	n = count(ends, a);
+	assertTrue("Chose the recovered endpoint " + n + " times",
+		n > SELECTIONS * 9 / 10);
+    }
+
+    /** Each sample moves the success rate a fifth of the way towards it. */
+    @Test
+    public void testDecay() {
+	final RavenEndpoints.Endpoint e = RavenEndpoints.single(
+		"https://a/auth").getEndpoints().get(0);
+	assertEquals(1.0, e.getSuccessRate(), 0.0);
+	e.recordFailure();
+	assertEquals(0.8, e.getSuccessRate(), 1e-9);
+	e.recordSuccess();
+	assertEquals(0.84, e.getSuccessRate(), 1e-9);
+    }
+
+    /**
+     * A RavenSession counts only malformed responses against an endpoint,
+     * not redirects that never come back.
+     */
+    @Test
+    public void testSession() throws Exception {
+	final long now = System.currentTimeMillis() / 1000L * 1000L;
+	final Clock.FixedClock clock = Clock.fixed(now);
+	final Authenticator auth = new Authenticator(Fixture.keys(),
+		Fixture.KEY_PREFIX, clock);
+	final RavenEndpoints ends = RavenEndpoints.single("https://a/auth");
+	final RavenEndpoints.Endpoint e = ends.getEndpoints().get(0);
+	final RavenSession session = new RavenSession(auth, ends);
+	final Request request = new Request(URL, clock);
+	session.sendRequest(request, "/first");
+	clock.advance(10L * 60L * 1000L);
+	session.sendRequest(request, "/second");
+	assertEquals(1.0, e.getSuccessRate(), 0.0);
+	try {
+	    session.receiveResponse("WLS-Response=junk");
+	    fail("Accepted a malformed response");
+	} catch (RavenException xoov) {
+	    // Expected.
+	}
+	assertEquals(0.8, e.getSuccessRate(), 1e-9);
+	session.sendRequest(request, "/third");
+	assertEquals("/third", session.receiveResponse("WLS-Response="
+		+ Util.urlEncode(Fixture.response(URL, clock
+			.currentTimeMillis()))));
+	assertEquals(0.84, e.getSuccessRate(), 1e-9);
+    }
+}
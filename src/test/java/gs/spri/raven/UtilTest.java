@@ -0,0 +1,157 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import org.junit.Test;
+
+/**
+ * Checks Util's URL encoding, decoding, query parsing and URL normalisation
+ * against the JDK classes whose results they promise to reproduce.
+ */
+public class UtilTest {
+
+    /** Strings covering every branch of the encoder and decoder. */
+    private static final String[] STRINGS = { "", "plain", "a b+c",
+	    "safe.-*_ unsafe~!'()&=%/?#", "caf\u00e9", "\u20ac100",
+	    "clef \ud834\udd1e", "lone \ud834 high", "lone \udd1e low",
+	    "high at end \ud834", "\u0000\u007f\u0080\u07ff\u0800\uffff" };
+
+    @Test
+    public void testUrlEncode() throws Exception {
+	for (String s : STRINGS) {
+	    final String expected = URLEncoder.encode(s, "UTF-8");
+	    assertEquals(s, expected, Util.urlEncode(s));
+	    final StringBuilder out = new StringBuilder("x");
+	    Util.urlEncode(s, out);
+	    assertEquals(s, "x" + expected, out.toString());
+	}
+	final String safe = "nothing.to-escape_*";
+	assertSame(safe, Util.urlEncode(safe));
+    }
+
+    /** Decoding reverses the JDK's encoding, and agrees with its decoder. */
+    @Test
+    public void testUrlDecode() throws Exception {
+	for (String s : STRINGS) {
+	    // Unpaired surrogates are encoded as '?', so cannot come back.
+	    if (!s.equals(new String(s.getBytes("UTF-8"), "UTF-8")))
+		continue;
+	    final String encoded = "[" + URLEncoder.encode(s, "UTF-8") + "]";
+	    assertEquals(s, s, Util.urlDecode(encoded, 1,
+		    encoded.length() - 1));
+	}
+	for (String s : new String[] { "a+b", "%41%42c", "%c3%a9", "%E2%82%AC",
+		"%F0%9D%84%9E", "%FF", "%C3", "%C3x", "%80%80", "100%25",
+		"%2B+" }) {
+	    final String expected = URLDecoder.decode(s, "UTF-8");
+	    assertEquals(s, expected, Util.urlDecode(s, 0, s.length()));
+	}
+	final String plain = "xx plain xx";
+	assertEquals("plain", Util.urlDecode(plain, 3, 8));
+    }
+
+    /** Malformed '%' escapes are refused, as by the JDK's decoder. */
+    @Test
+    public void testMalformedEscapes() throws Exception {
+	for (String s : new String[] { "%", "a%", "%4", "a%4", "%G1", "%1G",
+		"a%zz", "%%41", "%41%" }) {
+	    try {
+		URLDecoder.decode(s, "UTF-8");
+		fail("The JDK accepted " + s);
+	    } catch (IllegalArgumentException xoov) {
+		// As expected.
+	    }
+	    try {
+		Util.urlDecode(s, 0, s.length());
+		fail("Accepted " + s);
+	    } catch (IllegalArgumentException xoov) {
+		// As expected.
+	    }
+	}
+	// An escape cut off by the end of the range is incomplete.
+	try {
+	    Util.urlDecode("%41", 0, 2);
+	    fail("Accepted a truncated escape");
+	} catch (IllegalArgumentException xoov) {
+	    // As expected.
+	}
+    }
+
+    @Test
+    public void testQueryParameter() throws Exception {
+	final String query = "ab=1&a="
+		+ URLEncoder.encode("\u20ac 1+2", "UTF-8")
+		+ "&a=second&empty=&bare&last=%7E";
+	// The first of a repeated field wins, as in 'getParameter()'.
+	assertEquals("\u20ac 1+2", Util.queryParameter(query, "a"));
+	assertEquals("1", Util.queryParameter(query, "ab"));
+	assertEquals("", Util.queryParameter(query, "empty"));
+	assertEquals("~", Util.queryParameter(query, "last"));
+	// A field without '=' has no value.
+	assertNull(Util.queryParameter(query, "bare"));
+	assertNull(Util.queryParameter(query, "missing"));
+	assertNull(Util.queryParameter(query, "b"));
+	assertNull(Util.queryParameter(null, "a"));
+	assertNull(Util.queryParameter("", "a"));
+	assertEquals("x", Util.queryParameter("&&a=x&", "a"));
+	// Names are compared as they appear in the query, undecoded.
+	assertNull(Util.queryParameter("a%62=1", "ab"));
+	// Only the requested field is decoded.
+	assertEquals("1", Util.queryParameter("bad=%G&a=1", "a"));
+	try {
+	    Util.queryParameter("a=%G&b=1", "a");
+	    fail("Accepted a malformed escape");
+	} catch (IllegalArgumentException xoov) {
+	    // As expected.
+	}
+    }
+
+    /** 'normaliseURL()' agrees with 'new URL(s).toString()'. */
+    @Test
+    public void testNormaliseURL() throws Exception {
+	for (String s : new String[] { "http://example.org",
+		"https://example.org/a/b?c=d#e", "http://example.org:8080/",
+		"HTTP://Example.org/", "http://EXAMPLE.org/a", "http://x:/a",
+		"http://x:123456/", "http://[::1]:80/", "http://user@x/",
+		"http://x/a b", "http://x/ ", "ftp://example.org/",
+		"file:///tmp/x", "http://x?q", "http://x#f" }) {
+	    assertEquals(s, new URL(s).toString(), Util.normaliseURL(s));
+	}
+	for (String s : new String[] { "example.org", "", "nope:x" }) {
+	    try {
+		Util.normaliseURL(s);
+		fail("Accepted " + s);
+	    } catch (MalformedURLException xoov) {
+		// As expected.
+	    }
+	}
+    }
+}
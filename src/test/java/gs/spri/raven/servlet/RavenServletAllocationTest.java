@@ -0,0 +1,50 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import gs.spri.raven.Fixture;
+import gs.spri.raven.Probe;
+
+import org.junit.Test;
+
+/**
+ * Checks that a request to a RavenServlet from a session that has already
+ * authenticated allocates no more than its budget. See 'AllocationTest'.
+ */
+public class RavenServletAllocationTest {
+
+    @Test
+    public void testAuthenticatedRequest() throws Exception {
+	assumeTrue(Probe.canCountAllocations());
+	final ServletHarness harness = new ServletHarness(Fixture.response(
+		"http://localhost:8080/login", System.currentTimeMillis()));
+	final ServletHarness.Session session = harness.login();
+	harness.request(session);
+	assertEquals(1, session.saved.get());
+	final long bytes = Probe.allocatedBytes(harness.requester(session),
+		100000);
+	assertTrue(bytes + " bytes per call exceeds budget of 64",
+		bytes <= 64L);
+    }
+}
@@ -0,0 +1,90 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import gs.spri.raven.Fixture;
+import gs.spri.raven.Probe;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends concurrent requests to a RavenServlet in a session that has just
+ * received its response from Raven.
+ */
+public class RavenServletConcurrencyTest {
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime()
+	    .availableProcessors());
+
+    private static final int ROUNDS = 50;
+
+    private ServletHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+	this.harness = new ServletHarness(Fixture.response(
+		"http://localhost:8080/login", System.currentTimeMillis()));
+    }
+
+    /**
+     * Every request succeeds, exactly one performs the Action saved before
+     * the login, and the session ends up with the right Identity and no
+     * Token.
+     */
+    @Test
+    public void testSavedActionPerformedOnce() throws Exception {
+	for (int round = 0; round < ROUNDS; round++) {
+	    final ServletHarness.Session session = this.harness.login();
+	    assertNull(Probe.race(THREADS, new Probe.Call() {
+		public void call() throws Exception {
+		    harness.request(session);
+		}
+	    }));
+	    assertEquals(1, session.saved.get());
+	    assertEquals(THREADS, session.performed.get());
+	    assertNull(this.harness.servlet.getToken(session));
+	    assertEquals(Fixture.PRINCIPAL,
+		    this.harness.servlet.getUserName(session));
+	}
+    }
+
+    /**
+     * Prints how the throughput of authenticated requests, each thread in
+     * its own session, scales from one thread to THREADS. Runs only if
+     * 'Probe.SCALE' is set.
+     */
+    @Test
+    public void testScalability() throws Exception {
+	Assume.assumeTrue(Probe.SCALE);
+	assertNull(Probe.scale(System.out, "servlet-authenticated", THREADS,
+		500L, new Probe.Factory() {
+		    public Probe.Call newCall() throws Exception {
+			final ServletHarness.Session session = harness.login();
+			harness.request(session);
+			return harness.requester(session);
+		    }
+		}));
+    }
+}
@@ -0,0 +1,355 @@
+/* This file is part of the Raven Library.
+ *
+ * Copyright (c) 2005 Matthew Lavy and Alistair Turnbull.
+ * Copyright (c) 2014 Tom Oinn
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * The library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+package gs.spri.raven.servlet;
+
+import gs.spri.raven.Fixture;
+import gs.spri.raven.Probe;
+import gs.spri.raven.Token;
+import gs.spri.raven.Util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Drives a RavenServlet without a servlet container, for the tests that
+ * measure and check it. The requests, responses and session are minimal
+ * stand-ins that implement only what RavenServlet uses, and throw
+ * UnsupportedOperationException otherwise.
+ */
+final class ServletHarness {
+
+    /** The path of the request that is saved while the user logs in. */
+    static final String SAVED = "/saved";
+
+    private final URI url;
+    private final String ers;
+    final Target servlet = new Target();
+
+    /**
+     * Creates a RavenServlet configured with the Fixture's key store, whose
+     * intercept login path and host are taken from the URL in 'ers', the
+     * response with which sessions will authenticate.
+     */
+    ServletHarness(String ers) throws Exception {
+	final Token t = new Token(ers);
+	this.url = new URI(t.url);
+	if (this.url.getRawQuery() != null
+		|| this.url.getRawPath().length() == 0)
+	    throw new IllegalArgumentException(
+		    "The response must be for a URL with a path and no query");
+	this.ers = ers;
+	final Map<String, String> params = new HashMap<String, String>();
+	params.put("raven-url", "https://raven.invalid/auth");
+	params.put("intercept-login-path", this.url.getRawPath());
+	params.put("key-prefix", Fixture.KEY_PREFIX);
+	params.put("keystore", Fixture.keyStoreFile().getPath());
+	params.put("keystore-password", Fixture.PASSWORD);
+	this.servlet.init(new Config(params));
+    }
+
+    /**
+     * Returns a new session in which a request for SAVED has been redirected
+     * to Raven, and the response from Raven received but not yet validated.
+     */
+    Session login() throws Exception {
+	final Session session = new Session();
+	final Response res = new Response();
+	this.servlet.get(new Req(this.url, session, SAVED, null), res);
+	this.servlet.get(new Req(this.url, session, this.url.getRawPath(),
+		"WLS-Response=" + Util.urlEncode(this.ers)), res);
+	if (res.error != null)
+	    throw new IllegalStateException("Could not log in: " + res.error);
+	return session;
+    }
+
+    /**
+     * Sends a request for '/resource' to the RavenServlet in 'session', and
+     * throws IllegalStateException if it fails.
+     */
+    void request(Session session) throws Exception {
+	this.requester(session).call();
+    }
+
+    /**
+     * Returns a Call that sends a request for '/resource' to the RavenServlet
+     * in 'session', and throws IllegalStateException if it fails. Every call
+     * reuses the same request and response objects.
+     */
+    Probe.Call requester(Session session) {
+	final Req req = new Req(this.url, session, "/resource", null);
+	final Response res = new Response();
+	return new Probe.Call() {
+	    public void call() throws Exception {
+		servlet.get(req, res);
+		if (res.error != null)
+		    throw new IllegalStateException(res.error);
+	    }
+	};
+    }
+
+    /** A RavenServlet whose actions only count themselves. */
+    static final class Target extends RavenServlet {
+	private static final long serialVersionUID = 1L;
+
+	void get(HttpServletRequest req, HttpServletResponse res)
+		throws IOException, ServletException {
+	    this.doGet(req, res);
+	}
+
+	protected void performAction(Action a, HttpSession ses,
+		HttpServletResponse res) {
+	    final Session session = (Session) ses;
+	    session.performed.incrementAndGet();
+	    if (SAVED.equals(((MapAction) a).pathInfo))
+		session.saved.incrementAndGet();
+	}
+    }
+
+    /** Returns an instance of 'type' whose every method is unsupported. */
+    private static <T> T unsupported(Class<T> type) {
+	return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+		new Class<?>[] { type }, new InvocationHandler() {
+		    public Object invoke(Object proxy, Method m, Object[] args) {
+			throw new UnsupportedOperationException(m.getName());
+		    }
+		}));
+    }
+
+    private static final class Config implements ServletConfig {
+	private final Map<String, String> params;
+
+	Config(Map<String, String> params) {
+	    this.params = params;
+	}
+
+	public String getServletName() {
+	    return "raven";
+	}
+
+	public ServletContext getServletContext() {
+	    return unsupported(ServletContext.class);
+	}
+
+	public String getInitParameter(String name) {
+	    return name.startsWith(RavenServlet.CONF_PREFIX) ? this.params
+		    .get(name.substring(RavenServlet.CONF_PREFIX.length()))
+		    : null;
+	}
+
+	public Enumeration<String> getInitParameterNames() {
+	    return Collections.enumeration(Collections.<String> emptySet());
+	}
+    }
+
+    private static final class Req extends HttpServletRequestWrapper {
+	private final URI url;
+	private final HttpSession session;
+	private final String pathInfo;
+	private final String query;
+
+	Req(URI url, HttpSession session, String pathInfo, String query) {
+	    super(unsupported(HttpServletRequest.class));
+	    this.url = url;
+	    this.session = session;
+	    this.pathInfo = pathInfo;
+	    this.query = query;
+	}
+
+	public HttpSession getSession() {
+	    return this.session;
+	}
+
+	public HttpSession getSession(boolean create) {
+	    return this.session;
+	}
+
+	public String getScheme() {
+	    return this.url.getScheme();
+	}
+
+	public String getServerName() {
+	    return this.url.getHost();
+	}
+
+	public int getServerPort() {
+	    return this.url.getPort();
+	}
+
+	public String getContextPath() {
+	    return "";
+	}
+
+	public String getServletPath() {
+	    return "";
+	}
+
+	public String getPathInfo() {
+	    return this.pathInfo;
+	}
+
+	public String getQueryString() {
+	    return this.query;
+	}
+
+	public String getParameter(String name) {
+	    return null;
+	}
+
+	public Enumeration<String> getParameterNames() {
+	    return Collections.enumeration(Collections.<String> emptySet());
+	}
+
+	public Map<String, String[]> getParameterMap() {
+	    return Collections.emptyMap();
+	}
+    }
+
+    private static final class Response extends HttpServletResponseWrapper {
+	String error = null;
+
+	Response() {
+	    super(unsupported(HttpServletResponse.class));
+	}
+
+	public String encodeRedirectURL(String url) {
+	    return url;
+	}
+
+	public void sendRedirect(String location) {
+	    // Ignore.
+	}
+
+	public void setHeader(String name, String value) {
+	    // Ignore.
+	}
+
+	public void sendError(int sc) {
+	    this.error = Integer.toString(sc);
+	}
+
+	public void sendError(int sc, String msg) {
+	    this.error = sc + " " + msg;
+	}
+    }
+
+    /** A session that, like a container's, is safe to share. */
+    @SuppressWarnings("deprecation")
+    static final class Session implements HttpSession {
+	private final Map<String, Object> attributes =
+		new ConcurrentHashMap<String, Object>();
+	private final long created = System.currentTimeMillis();
+
+	/** The number of Actions performed in this session. */
+	final AtomicInteger performed = new AtomicInteger();
+
+	/** The number of times the Action for SAVED was performed. */
+	final AtomicInteger saved = new AtomicInteger();
+
+	public long getCreationTime() {
+	    return this.created;
+	}
+
+	public String getId() {
+	    return "harness";
+	}
+
+	public long getLastAccessedTime() {
+	    return this.created;
+	}
+
+	public ServletContext getServletContext() {
+	    return unsupported(ServletContext.class);
+	}
+
+	public void setMaxInactiveInterval(int interval) {
+	    // Ignore.
+	}
+
+	public int getMaxInactiveInterval() {
+	    return -1;
+	}
+
+	public javax.servlet.http.HttpSessionContext getSessionContext() {
+	    return null;
+	}
+
+	public Object getAttribute(String name) {
+	    return this.attributes.get(name);
+	}
+
+	public Object getValue(String name) {
+	    return this.getAttribute(name);
+	}
+
+	public Enumeration<String> getAttributeNames() {
+	    return Collections.enumeration(this.attributes.keySet());
+	}
+
+	public String[] getValueNames() {
+	    return this.attributes.keySet().toArray(new String[0]);
+	}
+
+	public void setAttribute(String name, Object value) {
+	    if (value == null)
+		this.attributes.remove(name);
+	    else
+		this.attributes.put(name, value);
+	}
+
+	public void putValue(String name, Object value) {
+	    this.setAttribute(name, value);
+	}
+
+	public void removeAttribute(String name) {
+	    this.attributes.remove(name);
+	}
+
+	public void removeValue(String name) {
+	    this.removeAttribute(name);
+	}
+
+	public void invalidate() {
+	    this.attributes.clear();
+	}
+
+	public boolean isNew() {
+	    return false;
+	}
+    }
+}